@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package db.migration.hsqldb;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+public class V2_1_2__SetReleaseTimeForExistingKeys extends BaseJavaMigration {
+
+  @Override
+  public void migrate(Context context) throws Exception {
+
+    // HSQLDB: For Testing purposes only, use the default time skew
+    Duration timeSkew = Duration.ofHours(2);
+
+    // A key is released once it is received and expired, see JdbcGaenDataServiceImpl
+    try (PreparedStatement update =
+        context
+            .getConnection()
+            .prepareStatement(
+                "update t_gaen_exposed set release_at = greatest(received_at,"
+                    + " TIMESTAMP_WITH_ZONE((rolling_start_number + rolling_period) * 10 * 60 + ?))"
+                    + " where release_at is null")) {
+      update.setLong(1, timeSkew.toSeconds());
+      update.execute();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package db.migration.pgsql;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class V2_1_2__SetReleaseTimeForExistingKeys extends BaseJavaMigration {
+
+  private static final String TIME_SKEW_SYS_VAR = "ws.app.gaen.timeskew";
+  private static final String DEFAULT_TIME_SKEW = "PT2h";
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(V2_1_2__SetReleaseTimeForExistingKeys.class);
+
+  @Override
+  public void migrate(Context context) throws Exception {
+
+    String timeSkewValue = System.getProperty(TIME_SKEW_SYS_VAR);
+    if (timeSkewValue == null || timeSkewValue.isBlank()) {
+      timeSkewValue = DEFAULT_TIME_SKEW;
+    }
+    Duration timeSkew = Duration.parse(timeSkewValue);
+
+    logger.info(
+        "Set the release time of all existing keys with a time skew of "
+            + timeSkew
+            + " (can be changed with -D"
+            + TIME_SKEW_SYS_VAR
+            + "=...)");
+
+    // A key is released once it is received and expired, see JdbcGaenDataServiceImpl
+    try (PreparedStatement update =
+        context
+            .getConnection()
+            .prepareStatement(
+                "update t_gaen_exposed set release_at = greatest(received_at,"
+                    + " TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 + ?))"
+                    + " where release_at is null")) {
+      update.setLong(1, timeSkew.toSeconds());
+      update.execute();
+    }
+  }
+}
@@ -15,42 +15,49 @@ import javax.sql.DataSource;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.transaction.annotation.Transactional;
 
 public class JdbcRedeemDataServiceImpl implements RedeemDataService {
 
   private static final Logger logger = LoggerFactory.getLogger(JdbcRedeemDataServiceImpl.class);
 
+  private static final String PGSQL = "pgsql";
+
+  // the unique constraint on uuid decides, so concurrent redeems of the same uuid cannot race
+  private static final String PGSQL_INSERT_SQL =
+      "insert into t_redeem_uuid (uuid, received_at) values (:uuid, :received_at)"
+          + " on conflict on constraint uuid do nothing";
+  private static final String HSQL_INSERT_SQL =
+      "merge into t_redeem_uuid using (values(cast(:uuid as varchar(50)),"
+          + " cast(:received_at as timestamp with time zone))) as vals(uuid, received_at)"
+          + " on t_redeem_uuid.uuid = vals.uuid when not matched then"
+          + " insert (uuid, received_at) values (vals.uuid, vals.received_at)";
+
   private final NamedParameterJdbcTemplate jt;
-  private final SimpleJdbcInsert reedemUUIDInsert;
+  private final String insertSql;
 
-  public JdbcRedeemDataServiceImpl(DataSource dataSource) {
+  public JdbcRedeemDataServiceImpl(String dbType, DataSource dataSource) {
     this.jt = new NamedParameterJdbcTemplate(dataSource);
-    this.reedemUUIDInsert =
-        new SimpleJdbcInsert(dataSource)
-            .withTableName("t_redeem_uuid")
-            .usingGeneratedKeyColumns("pk_redeem_uuid_id");
+    this.insertSql = dbType.equals(PGSQL) ? PGSQL_INSERT_SQL : HSQL_INSERT_SQL;
   }
 
   @Override
   @Transactional(readOnly = false)
   public boolean checkAndInsertPublishUUID(String uuid) {
-    String sql = "select count(1) from t_redeem_uuid where uuid = :uuid";
-    MapSqlParameterSource params = new MapSqlParameterSource("uuid", uuid);
-    Integer count = jt.queryForObject(sql, params, Integer.class);
-    if (count > 0) {
+    // set the received_at to the next day, with no time information
+    // it will stay longer in the DB but we mitigate the risk that the JWT
+    // can be used twice (c.f. testTokensArentDeletedBeforeExpire).
+    var startOfTomorrow = UTCInstant.today().plusDays(1);
+    MapSqlParameterSource params =
+        new MapSqlParameterSource("uuid", uuid).addValue("received_at", startOfTomorrow.getDate());
+    try {
+      return jt.update(insertSql, params) == 1;
+    } catch (DuplicateKeyException e) {
+      // a concurrent merge on hsql may still hit the constraint
       return false;
-    } else {
-      // set the received_at to the next day, with no time information
-      // it will stay longer in the DB but we mitigate the risk that the JWT
-      // can be used twice (c.f. testTokensArentDeletedBeforeExpire).
-      var startOfTomorrow = UTCInstant.today().plusDays(1);
-      params.addValue("received_at", startOfTomorrow.getDate());
-      reedemUUIDInsert.execute(params);
-      return true;
     }
   }
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Sends read-only transactions to read replicas, and everything else to the primary.
+ *
+ * <p>The connection is only fetched when the first statement is executed, as the read-only flag of
+ * a transaction is not known yet when the transaction manager asks for a connection. Connections
+ * used outside of a transaction (e.g. by Flyway) always go to the primary.
+ *
+ * <p>The replication lag of the replicas is checked by {@link #checkReplicas()}, which is meant to
+ * run periodically. A replica is only used if it has replayed the primary up to at most maxLag
+ * before now, and up to at least the start of the current release bucket. The latter makes sure
+ * that a download never misses keys which were stored on the primary before their bucket was
+ * released. As the replay position is only updated by the check, the primary is used again at most
+ * maxLag after the last successful check of a replica. Replicas which can be used are picked in
+ * turn.
+ */
+public class ReplicaRoutingDataSource extends LazyConnectionDataSourceProxy implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+  // replays of a caught up replica are not behind the primary, whatever the last replayed commit
+  private static final String REPLAY_QUERY =
+      "select pg_is_in_recovery() and pg_last_wal_receive_lsn() is distinct from"
+          + " pg_last_wal_replay_lsn() as lagging, pg_last_xact_replay_timestamp() as replayed";
+
+  private static final String PRIMARY = "primary";
+
+  private final DataSource primary;
+  private final List<DataSource> replicas;
+  private final Duration maxLag;
+  private final Duration releaseBucketDuration;
+
+  // time up to which each replica has replayed the primary, null if unknown
+  private final UTCInstant[] replayedUntil;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param primary the data source of the primary
+   * @param replicas the data sources of the read replicas
+   * @param maxLag how far behind the primary a replica may be and still be used
+   * @param releaseBucketDuration duration of a release bucket
+   */
+  public ReplicaRoutingDataSource(
+      DataSource primary,
+      List<DataSource> replicas,
+      Duration maxLag,
+      Duration releaseBucketDuration) {
+    this.primary = primary;
+    this.replicas = List.copyOf(replicas);
+    this.maxLag = maxLag;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.replayedUntil = new UTCInstant[replicas.size()];
+
+    var router = new Router();
+    Map<Object, Object> targets = new HashMap<>();
+    targets.put(PRIMARY, primary);
+    for (int i = 0; i < this.replicas.size(); i++) {
+      targets.put(i, this.replicas.get(i));
+    }
+    router.setTargetDataSources(targets);
+    router.setDefaultTargetDataSource(primary);
+    router.afterPropertiesSet();
+    setTargetDataSource(router);
+    afterPropertiesSet();
+  }
+
+  /** Checks how far each replica has replayed the primary. */
+  public void checkReplicas() {
+    for (int i = 0; i < replicas.size(); i++) {
+      var now = UTCInstant.now();
+      UTCInstant replayed;
+      try {
+        replayed = queryReplayedUntil(replicas.get(i), now);
+      } catch (Exception e) {
+        logger.warn("Failed to check replication lag of replica {}", i, e);
+        replayed = null;
+      }
+      synchronized (replayedUntil) {
+        replayedUntil[i] = replayed;
+      }
+      if (replayed == null || isTooOld(replayed, now)) {
+        logger.warn("Replica {} is behind the primary, replayed until {}", i, replayed);
+      }
+    }
+  }
+
+  /**
+   * Returns the time up to which the given replica has replayed the primary.
+   *
+   * @param replica the replica to check
+   * @param now time of the check
+   * @return the time of the last replayed commit, or now if the replica is caught up. Null if the
+   *     replica has not replayed anything yet.
+   */
+  protected UTCInstant queryReplayedUntil(DataSource replica, UTCInstant now) {
+    return new JdbcTemplate(replica)
+        .queryForObject(
+            REPLAY_QUERY,
+            (rs, i) -> {
+              if (!rs.getBoolean("lagging")) {
+                return now;
+              }
+              Timestamp replayed = rs.getTimestamp("replayed");
+              return replayed == null ? null : UTCInstant.ofEpochMillis(replayed.getTime());
+            });
+  }
+
+  /**
+   * Returns the key of the data source to use for the current transaction, either the index of a
+   * replica or the primary.
+   */
+  Object determineTarget(UTCInstant now) {
+    if (replicas.isEmpty() || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+      return PRIMARY;
+    }
+    var usable = new ArrayList<Integer>();
+    synchronized (replayedUntil) {
+      for (int i = 0; i < replayedUntil.length; i++) {
+        if (replayedUntil[i] != null && !isTooOld(replayedUntil[i], now)) {
+          usable.add(i);
+        }
+      }
+    }
+    if (usable.isEmpty()) {
+      return PRIMARY;
+    }
+    return usable.get(Math.floorMod(next.getAndIncrement(), usable.size()));
+  }
+
+  private boolean isTooOld(UTCInstant replayed, UTCInstant now) {
+    return replayed.isBeforeEpochMillisOf(now.minus(maxLag))
+        || replayed.isBeforeEpochMillisOf(now.roundToBucketStart(releaseBucketDuration));
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (var dataSource : replicas) {
+      closeDataSource(dataSource);
+    }
+    closeDataSource(primary);
+  }
+
+  private static void closeDataSource(DataSource dataSource) throws IOException {
+    if (dataSource instanceof Closeable) {
+      ((Closeable) dataSource).close();
+    }
+  }
+
+  private class Router extends AbstractRoutingDataSource {
+    @Override
+    protected Object determineCurrentLookupKey() {
+      return determineTarget(UTCInstant.now());
+    }
+  }
+}
@@ -17,7 +17,6 @@ public class DebugGaenKeyResultSetExtractor
   public Map<String, List<GaenKey>> extractData(ResultSet rs)
       throws SQLException, DataAccessException {
     Map<String, List<GaenKey>> result = new HashMap<String, List<GaenKey>>();
-    GaenKeyRowMapper gaenKeyRowMapper = new GaenKeyRowMapper();
     while (rs.next()) {
       String deviceName = rs.getString("device_name");
       List<GaenKey> keysForDevice = result.get(deviceName);
@@ -25,7 +24,10 @@ public class DebugGaenKeyResultSetExtractor
         keysForDevice = new ArrayList<>();
         result.put(deviceName, keysForDevice);
       }
-      GaenKey gaenKey = gaenKeyRowMapper.mapRow(rs, rs.getRow());
+      GaenKey gaenKey = new GaenKey();
+      gaenKey.setKeyDataBytes(rs.getBytes("key"));
+      gaenKey.setRollingStartNumber(rs.getInt("rolling_start_number"));
+      gaenKey.setRollingPeriod(rs.getInt("rolling_period"));
       keysForDevice.add(gaenKey);
     }
     return result;
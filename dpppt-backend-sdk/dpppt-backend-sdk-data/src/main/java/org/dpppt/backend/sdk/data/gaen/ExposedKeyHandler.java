@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+/**
+ * Receives exposed keys one at a time, as they are read from the database, such that no {@link
+ * org.dpppt.backend.sdk.model.gaen.GaenKey} needs to be kept per key.
+ */
+@FunctionalInterface
+public interface ExposedKeyHandler {
+
+  /**
+   * @param keyData the raw key data, owned by the handler
+   * @param rollingStartNumber of the key
+   * @param rollingPeriod of the key
+   */
+  void handle(byte[] keyData, int rollingStartNumber, int rollingPeriod);
+}
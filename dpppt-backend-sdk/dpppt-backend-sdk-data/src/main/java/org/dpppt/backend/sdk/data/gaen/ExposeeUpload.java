@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.util.List;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * The keys of one upload, with the parameters of {@link GaenDataService#upsertExposees(List,
+ * UTCInstant, boolean)}.
+ */
+public class ExposeeUpload {
+  private final List<GaenKey> keys;
+  private final UTCInstant now;
+  private final boolean withFederationGateway;
+
+  public ExposeeUpload(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway) {
+    this.keys = keys;
+    this.now = now;
+    this.withFederationGateway = withFederationGateway;
+  }
+
+  public List<GaenKey> getKeys() {
+    return keys;
+  }
+
+  public UTCInstant getNow() {
+    return now;
+  }
+
+  public boolean isWithFederationGateway() {
+    return withFederationGateway;
+  }
+}
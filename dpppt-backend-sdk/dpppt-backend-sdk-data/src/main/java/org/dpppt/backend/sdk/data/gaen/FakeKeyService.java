@@ -4,7 +4,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -49,7 +48,8 @@ public class FakeKeyService {
         byte[] keyData = new byte[keySize];
         random.nextBytes(keyData);
         var keyGaenTime = (int) tmpDate.get10MinutesSince1970();
-        var key = new GaenKey(Base64.getEncoder().encodeToString(keyData), keyGaenTime, 144);
+        var key = new GaenKey(null, keyGaenTime, 144);
+        key.setKeyDataBytes(keyData);
         keys.add(key);
       }
       // TODO: Check if currentKeyDate is indeed intended here
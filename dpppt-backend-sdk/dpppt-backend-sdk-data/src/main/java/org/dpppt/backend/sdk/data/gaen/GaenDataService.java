@@ -12,6 +12,8 @@ package org.dpppt.backend.sdk.data.gaen;
 
 import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -29,6 +31,28 @@ public interface GaenDataService {
   void upsertExposeeFromInterops(
       List<GaenKey> keys, UTCInstant now, String origin, String batchTag);
 
+  /**
+   * Upserts (Update or Inserts) the given keys received from interops synchronization, which may be
+   * of different origins. The default implementation upserts the keys of each origin with {@link
+   * #upsertExposeeFromInterops(List, UTCInstant, String, String)}.
+   *
+   * @param keys the exposed keys to upsert, with their origin
+   * @param now time of the sync
+   * @param batchTag batchTag of downloaded key
+   */
+  default void upsertExposeesFromInterops(
+      List<GaenKeyForInterops> keys, UTCInstant now, String batchTag) {
+    var keysByOrigin =
+        keys.stream()
+            .collect(
+                Collectors.groupingBy(
+                    GaenKeyForInterops::getOrigin,
+                    Collectors.mapping(GaenKeyForInterops::getGaenKey, Collectors.toList())));
+    for (var keysForOrigin : keysByOrigin.entrySet()) {
+      upsertExposeeFromInterops(keysForOrigin.getValue(), now, keysForOrigin.getKey(), batchTag);
+    }
+  }
+
   /**
    * Upserts (Update or Inserts) the given list of exposed keys
    *
@@ -39,6 +63,20 @@ public interface GaenDataService {
    */
   void upsertExposees(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway);
 
+  /**
+   * Upserts the keys of several uploads. Implementations should write them in one transaction,
+   * such that a burst of uploads costs one commit, and with as few statements as possible. The
+   * default implementation upserts each upload with {@link #upsertExposees(List, UTCInstant,
+   * boolean)}.
+   *
+   * @param uploads the uploads to upsert
+   */
+  default void upsertExposees(List<ExposeeUpload> uploads) {
+    for (var upload : uploads) {
+      upsertExposees(upload.getKeys(), upload.getNow(), upload.isWithFederationGateway());
+    }
+  }
+
   /**
    * Upserts (Update or Inserts) the given list of exposed keys, with delayed release of same day
    * TEKs
@@ -76,6 +114,37 @@ public interface GaenDataService {
       UTCInstant now,
       boolean withFederationGateway);
 
+  /**
+   * Returns whether there may be exposed keys released in [since, maxBucket), so that downloads of
+   * empty ranges can be answered without querying the keys. A negative answer is definite, a
+   * positive one is not: the keys still need to be loaded. The default implementation always
+   * returns true.
+   *
+   * @param since start of the release range
+   * @param maxBucket end of the release range, exclusive. Must be the start of a bucket.
+   * @param keyDate if not null, only consider keys used on that day
+   * @param withFederationGateway if set to true, keys from federation gateways are considered as
+   *     well. Otherwise only keys from the origin country.
+   * @param now time of the request
+   * @return false if there are definitely no keys in the range
+   */
+  default boolean mayHaveExposed(
+      UTCInstant since,
+      UTCInstant maxBucket,
+      UTCInstant keyDate,
+      boolean withFederationGateway,
+      UTCInstant now) {
+    return true;
+  }
+
+  /**
+   * Brings the index answering {@link #mayHaveExposed(UTCInstant, UTCInstant, UTCInstant, boolean,
+   * UTCInstant)} up to date, if there is one. Meant to run periodically, downloads never load it.
+   *
+   * @param now the current time
+   */
+  default void loadReleaseIndex(UTCInstant now) {}
+
   /**
    * deletes entries older than retentionperiod
    *
@@ -95,6 +164,29 @@ public interface GaenDataService {
   List<GaenKey> getSortedExposedSince(
       UTCInstant keysSince, UTCInstant now, boolean withFederationGateway);
 
+  /**
+   * Passes all exposed keys since keySince to the given handler, in the order of {@link
+   * #getSortedExposedSince(UTCInstant, UTCInstant, boolean)}. Implementations may read the keys
+   * with a cursor, so that no object is created per key. The handler still receives every key, so
+   * a handler which keeps them needs memory proportional to the result. The default implementation
+   * loads the keys with {@link #getSortedExposedSince(UTCInstant, UTCInstant, boolean)}.
+   *
+   * @param keysSince
+   * @param now
+   * @param withFederationGateway If set to true, all keys from federation gateways are returned in
+   *     the result. Otherwise only keys from the origin country.
+   * @param handler receives the keys
+   */
+  default void streamExposedSince(
+      UTCInstant keysSince,
+      UTCInstant now,
+      boolean withFederationGateway,
+      ExposedKeyHandler handler) {
+    for (var key : getSortedExposedSince(keysSince, now, withFederationGateway)) {
+      handler.handle(key.getKeyDataBytes(), key.getRollingStartNumber(), key.getRollingPeriod());
+    }
+  }
+
   /**
    * Returns all exposed keys since keySince, with origin but only from our own origin.
    *
@@ -107,11 +199,15 @@ public interface GaenDataService {
 
   /**
    * Returns all exposed keys with our own origin that are to be uploaded to the federation gateway,
-   * and haven't been uploaded yet.
+   * and haven't been uploaded yet. A key is uploaded once it is released, as for the download.
    *
+   * @param releasedSince only keys released at or after this time are returned, all keys if null
+   * @param releasedUntil only keys released before this time are returned, must be the start of a
+   *     release bucket
    * @return
    */
-  List<GaenKeyForInterops> getExposedForEfgsUpload();
+  List<GaenKeyForInterops> getExposedForEfgsUpload(
+      UTCInstant releasedSince, UTCInstant releasedUntil);
 
   /**
    * sets the batch tag for the given keys
@@ -120,4 +216,13 @@ public interface GaenDataService {
    * @param batchTag
    */
   void setBatchTagForKeys(List<GaenKeyForInterops> uploadedKeys, String batchTag);
+
+  /**
+   * sets the batch tags of several uploaded batches at once, in one transaction
+   *
+   * @param uploadedKeysByBatchTag the uploaded keys of each batch, by batch tag
+   */
+  default void setBatchTagsForKeys(Map<String, List<GaenKeyForInterops>> uploadedKeysByBatchTag) {
+    uploadedKeysByBatchTag.forEach((batchTag, keys) -> setBatchTagForKeys(keys, batchTag));
+  }
 }
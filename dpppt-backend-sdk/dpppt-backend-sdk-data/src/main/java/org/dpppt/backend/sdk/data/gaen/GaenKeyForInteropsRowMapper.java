@@ -8,8 +8,16 @@ import org.dpppt.backend.sdk.model.gaen.ReportType;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.jdbc.core.RowMapper;
 
+/**
+ * Maps the columns {@link #COLUMNS} to a {@link GaenKeyForInterops}. The columns are read by index,
+ * so the query must select exactly these columns.
+ */
 public class GaenKeyForInteropsRowMapper implements RowMapper<GaenKeyForInterops> {
 
+  public static final String COLUMNS =
+      GaenKeyRowMapper.COLUMNS
+          + ", origin, pk_exposed_id, report_type, days_since_onset_of_symptoms, received_at";
+
   private final GaenKeyRowMapper simpleKeyRowMapper = new GaenKeyRowMapper();
 
   @Override
@@ -17,17 +25,17 @@ public class GaenKeyForInteropsRowMapper implements RowMapper<GaenKeyForInterops
     var gaenKey = simpleKeyRowMapper.mapRow(rs, rowNum);
     var gaenKeyForInterops = new GaenKeyForInterops();
     gaenKeyForInterops.setGaenKey(gaenKey);
-    gaenKeyForInterops.setOrigin(rs.getString("origin"));
-    gaenKeyForInterops.setId(rs.getInt("pk_exposed_id"));
-    String reportTypeValue = rs.getString("report_type");
+    gaenKeyForInterops.setOrigin(rs.getString(4));
+    gaenKeyForInterops.setId(rs.getInt(5));
+    String reportTypeValue = rs.getString(6);
     if (reportTypeValue != null) {
       gaenKeyForInterops.setReportType(ReportType.valueOf(reportTypeValue));
     }
-    int daysSinceOnsetOfSymptoms = rs.getInt("days_since_onset_of_symptoms");
+    int daysSinceOnsetOfSymptoms = rs.getInt(7);
     if (!rs.wasNull()) {
       gaenKeyForInterops.setDaysSinceOnsetOfSymptoms(daysSinceOnsetOfSymptoms);
     }
-    Timestamp receivedAtTimestamp = rs.getTimestamp("received_at");
+    Timestamp receivedAtTimestamp = rs.getTimestamp(8);
     UTCInstant receivedAt = UTCInstant.ofEpochMillis(receivedAtTimestamp.getTime());
     gaenKeyForInterops.setReceivedAt(receivedAt);
     return gaenKeyForInterops;
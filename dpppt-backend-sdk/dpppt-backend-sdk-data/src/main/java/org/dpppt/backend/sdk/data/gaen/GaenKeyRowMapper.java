@@ -5,14 +5,20 @@ import java.sql.SQLException;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.springframework.jdbc.core.RowMapper;
 
+/**
+ * Maps the columns {@link #COLUMNS} to a {@link GaenKey}. The columns are read by index, so the
+ * query must select exactly these columns first.
+ */
 public class GaenKeyRowMapper implements RowMapper<GaenKey> {
 
+  public static final String COLUMNS = "key, rolling_start_number, rolling_period";
+
   @Override
   public GaenKey mapRow(ResultSet rs, int rowNum) throws SQLException {
     var gaenKey = new GaenKey();
-    gaenKey.setKeyData(rs.getString("key"));
-    gaenKey.setRollingStartNumber(rs.getInt("rolling_start_number"));
-    gaenKey.setRollingPeriod(rs.getInt("rolling_period"));
+    gaenKey.setKeyDataBytes(rs.getBytes(1));
+    gaenKey.setRollingStartNumber(rs.getInt(2));
+    gaenKey.setRollingPeriod(rs.getInt(3));
     return gaenKey;
   }
 }
@@ -10,21 +10,41 @@
 
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.transaction.annotation.Transactional;
 
 public class JdbcGaenDataServiceImpl implements GaenDataService {
@@ -32,8 +52,70 @@ public class JdbcGaenDataServiceImpl implements GaenDataService {
   private static final Logger logger = LoggerFactory.getLogger(JdbcGaenDataServiceImpl.class);
 
   private static final String PGSQL = "pgsql";
+  // partitions of t_gaen_exposed are named by the day their keys were received, see
+  // V2_2_0__partition_gaen_exposed
+  private static final Pattern PARTITION_NAME = Pattern.compile("t_gaen_exposed_(\\d{8})");
+  private static final int PARTITION_DAYS_AHEAD = 2;
+  // rows fetched per round trip by streaming reads, which bounds the rows held by the driver
+  private static final int STREAMING_FETCH_SIZE = 1000;
+
+  // The frequent queries are built once, with positional parameters, such that the driver can
+  // reuse its prepared statements. The rows are read by column index, see GaenKeyRowMapper.
+  // Queries for the download of keys, see getKeysSql.
+  private static final String[] KEYS_SQL = {
+    buildKeysSql(false, false),
+    buildKeysSql(false, true),
+    buildKeysSql(true, false),
+    buildKeysSql(true, true)
+  };
+  private static final String INTEROPS_FROM_ORIGIN_SQL =
+      "select "
+          + GaenKeyForInteropsRowMapper.COLUMNS
+          + " from t_gaen_exposed where origin = ? and release_at >= ? and release_at < ?"
+          + " order by pk_exposed_id desc";
+  // the conditions on batch_tag and share_with_federation_gateway must match the partial index
+  // gaen_exposed_efgs_upload, such that only the keys which are not uploaded yet are read
+  private static final String EFGS_UPLOAD_SQL =
+      "select "
+          + GaenKeyForInteropsRowMapper.COLUMNS
+          + " from t_gaen_exposed where origin = ? and batch_tag is null"
+          + " and share_with_federation_gateway = true and release_at >= ? and release_at < ?"
+          + " order by pk_exposed_id desc";
+  private static final String PGSQL_SET_BATCH_TAG_SQL =
+      "update t_gaen_exposed set batch_tag = ? where pk_exposed_id = any(?)";
+  private static final String HSQL_SET_BATCH_TAG_SQL =
+      "update t_gaen_exposed set batch_tag = ? where pk_exposed_id in (unnest(?))";
+  // The unique constraint gaen_exposed_key only covers (key, received_at), as it must contain the
+  // partition key. Keys stored in any partition are skipped with a lookup in its index, see
+  // V2_2_0__partition_gaen_exposed.
+  private static final String PGSQL_UPSERT_SQL =
+      "insert into t_gaen_exposed (key, rolling_start_number, rolling_period, received_at,"
+          + " release_at, origin, share_with_federation_gateway, batch_tag)"
+          + " select * from (values (cast(? as bytea), cast(? as bigint), cast(? as bigint),"
+          + " cast(? as timestamp with time zone), cast(? as timestamp with time zone),"
+          + " cast(? as varchar(10)), cast(? as boolean), cast(? as varchar(50))))"
+          + " as vals (key, rolling_start_number, rolling_period, received_at, release_at, origin,"
+          + " share_with_federation_gateway, batch_tag)"
+          + " where not exists (select 1 from t_gaen_exposed stored where stored.key = vals.key)"
+          + " on conflict on constraint gaen_exposed_key do nothing";
+  private static final String HSQL_UPSERT_SQL =
+      "merge into t_gaen_exposed using (values(cast(? as varbinary(16)), cast(? as bigint),"
+          + " cast(? as bigint), cast(? as timestamp with time zone),"
+          + " cast(? as timestamp with time zone), cast(? as varchar(10)), cast(? as boolean),"
+          + " cast(? as varchar(50)))) as vals(key,"
+          + " rolling_start_number, rolling_period, received_at, release_at, origin,"
+          + " share_with_federation_gateway, batch_tag) on t_gaen_exposed.key = vals.key"
+          + " when not matched then insert (key, rolling_start_number, rolling_period,"
+          + " received_at, release_at, origin, share_with_federation_gateway, batch_tag)"
+          + " values (vals.key, vals.rolling_start_number, vals.rolling_period,"
+          + " vals.received_at, vals.release_at, vals.origin,"
+          + " vals.share_with_federation_gateway, vals.batch_tag)";
+
   private final String dbType;
   private final NamedParameterJdbcTemplate jt;
+  private final JdbcTemplate streamingJt;
+  private final String upsertSql;
+  private final String setBatchTagSql;
   private final Duration releaseBucketDuration;
   // Time skew means the duration for how long a key still is valid __after__ it has expired (e.g 2h
   // for now
@@ -45,25 +127,59 @@ public class JdbcGaenDataServiceImpl implements GaenDataService {
   // the origin country is also the default for returning keys.
   private final String originCountry;
 
+  // days for which this instance created or found a partition of t_gaen_exposed, pgsql only. This
+  // only saves a query per insert: if another instance dropped the partition meanwhile, keys go
+  // into the default partition.
+  private final Set<LocalDate> partitionedDays = ConcurrentHashMap.newKeySet();
+
+  // optional index of the release buckets with keys, null if disabled
+  private final KeyReleaseIndex releaseIndex;
+  private final Object releaseIndexLoadLock = new Object();
+
   public JdbcGaenDataServiceImpl(
       String dbType,
       DataSource dataSource,
       Duration releaseBucketDuration,
       Duration timeSkew,
       String originCountry) {
+    this(dbType, dataSource, releaseBucketDuration, timeSkew, originCountry, null);
+  }
+
+  public JdbcGaenDataServiceImpl(
+      String dbType,
+      DataSource dataSource,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
+      String originCountry,
+      KeyReleaseIndex releaseIndex) {
     this.dbType = dbType;
     this.jt = new NamedParameterJdbcTemplate(dataSource);
+    // Postgres only reads with a cursor inside a transaction and with a fetch size
+    this.streamingJt = new JdbcTemplate(dataSource);
+    this.streamingJt.setFetchSize(STREAMING_FETCH_SIZE);
+    this.upsertSql = dbType.equals(PGSQL) ? PGSQL_UPSERT_SQL : HSQL_UPSERT_SQL;
+    this.setBatchTagSql = dbType.equals(PGSQL) ? PGSQL_SET_BATCH_TAG_SQL : HSQL_SET_BATCH_TAG_SQL;
     this.releaseBucketDuration = releaseBucketDuration;
     this.timeSkew = timeSkew;
     this.originCountry = originCountry;
+    this.releaseIndex = releaseIndex;
   }
 
   @Override
   @Transactional(readOnly = false)
   public void upsertExposeeFromInterops(
       List<GaenKey> gaenKeys, UTCInstant now, String origin, String batchTag) {
-    for (GaenKey gaenKey : gaenKeys) {
-      internalUpsertKey(gaenKey, now, origin, batchTag, true);
+    internalUpsertKeys(gaenKeys, now, origin, batchTag, true);
+  }
+
+  @Override
+  @Transactional(readOnly = false)
+  public void upsertExposeesFromInterops(
+      List<GaenKeyForInterops> gaenKeys, UTCInstant now, String batchTag) {
+    if (dbType.equals(PGSQL)) {
+      copyUpsertKeys(gaenKeys, now, batchTag);
+    } else {
+      GaenDataService.super.upsertExposeesFromInterops(gaenKeys, now, batchTag);
     }
   }
 
@@ -74,6 +190,30 @@ public class JdbcGaenDataServiceImpl implements GaenDataService {
     upsertExposeesDelayed(gaenKeys, null, now, withFederationGateway);
   }
 
+  @Override
+  @Transactional(readOnly = false)
+  public void upsertExposees(List<ExposeeUpload> uploads) {
+    // the keys of all uploads stored with the same received_at and federation gateway flag are
+    // written with one batch statement, instead of one per upload
+    var groups = new TreeMap<Boolean, Map<Long, List<GaenKey>>>();
+    for (var upload : uploads) {
+      groups
+          .computeIfAbsent(upload.isWithFederationGateway(), flag -> new TreeMap<>())
+          .computeIfAbsent(receivedAt(upload.getNow()).getTimestamp(), time -> new ArrayList<>())
+          .addAll(upload.getKeys());
+    }
+    for (var byFederationGateway : groups.entrySet()) {
+      for (var byReceivedAt : byFederationGateway.getValue().entrySet()) {
+        internalUpsertKeys(
+            byReceivedAt.getValue(),
+            UTCInstant.ofEpochMillis(byReceivedAt.getKey()),
+            this.originCountry,
+            null,
+            byFederationGateway.getKey());
+      }
+    }
+  }
+
   @Override
   @Transactional(readOnly = false)
   public void upsertExposeesDelayed(
@@ -81,15 +221,14 @@ public class JdbcGaenDataServiceImpl implements GaenDataService {
       UTCInstant delayedReceivedAt,
       UTCInstant now,
       boolean withFederationGateway) {
-    // Calculate the `receivedAt` just at the end of the current releaseBucket.
-    var receivedAt =
-        delayedReceivedAt == null
-            ? now.roundToNextBucket(releaseBucketDuration).minus(Duration.ofMillis(1))
-            : delayedReceivedAt;
-
-    for (var gaenKey : gaenKeys) {
-      internalUpsertKey(gaenKey, receivedAt, this.originCountry, null, withFederationGateway);
-    }
+    var receivedAt = delayedReceivedAt == null ? receivedAt(now) : delayedReceivedAt;
+
+    internalUpsertKeys(gaenKeys, receivedAt, this.originCountry, null, withFederationGateway);
+  }
+
+  // Calculate the `receivedAt` just at the end of the current releaseBucket.
+  private UTCInstant receivedAt(UTCInstant now) {
+    return now.roundToNextBucket(releaseBucketDuration).minus(Duration.ofMillis(1));
   }
 
   @Override
@@ -117,222 +256,413 @@ public class JdbcGaenDataServiceImpl implements GaenDataService {
       UTCInstant keyDate,
       UTCInstant maxBucket,
       boolean withFederationGateway) {
-    MapSqlParameterSource params = new MapSqlParameterSource();
-    params.addValue("since", new Timestamp(keysSince.getTimestamp()));
-    params.addValue("maxBucket", new Timestamp(maxBucket.getTimestamp()));
-    params.addValue("timeSkewSeconds", timeSkew.toSeconds());
-
-    // Select keys since the given date. We need to make sure, only keys are returned
-    // that are allowed to be published.
-    // For this, we calculate the expiry for each key in a sub query. The expiry is then used for
-    // the where clause:
-    // - if expiry <= received_at: the key was ready to publish when we received it. Release this
-    // key, if received_at in [since, maxBucket)
-    // - if expiry > received_at: we have to wait until expiry till we can release this key. This
-    // means we only release the key if expiry in [since, maxBucket)
-    // This problem arises, because we only want key with received_at after since, but we need to
-    // ensure that we relase ALL keys meaning keys which were still valid when they were received
-
-    // we need to add the time skew to calculate the expiry timestamp of a key:
-    // TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 + :timeSkewSeconds
+    return jt.getJdbcTemplate()
+        .query(
+            getKeysSql(keyDate != null, withFederationGateway),
+            keysParameters(keysSince, keyDate, maxBucket, withFederationGateway),
+            new GaenKeyRowMapper());
+  }
 
+  // Select keys since the given date. We need to make sure, only keys are returned that are
+  // allowed to be published. A key may be published once we received it and it is expired. This
+  // time, max(received_at, expiry), is stored as release_at when the key is inserted, see
+  // internalUpsertKeys. We release the key if release_at in [since, maxBucket).
+  private static String buildKeysSql(boolean forKeyDate, boolean withFederationGateway) {
     String sql =
-        "select keys.pk_exposed_id, keys.key, keys.rolling_start_number,"
-            + " keys.rolling_period from (select pk_exposed_id, key, rolling_start_number,"
-            + " rolling_period, received_at, "
-            + getSQLExpressionForExpiry()
-            + " as expiry from t_gaen_exposed "
-            + getSQLExpressionForKeyDateFilterAndOrigin(keyDate, withFederationGateway, params)
-            + ") as keys where( (keys.expiry <= keys.received_at"
-            + " AND keys.received_at >= :since AND keys.received_at < :maxBucket) OR (keys.expiry"
-            + " > keys.received_at AND keys.expiry >= :since AND keys.expiry < :maxBucket) )";
-
-    sql += " order by keys.pk_exposed_id desc";
-
-    return jt.query(sql, params, new GaenKeyRowMapper());
+        "select "
+            + GaenKeyRowMapper.COLUMNS
+            + " from t_gaen_exposed where release_at >= ? and release_at < ?";
+    if (!withFederationGateway) {
+      sql += " and origin = ?";
+    }
+    if (forKeyDate) {
+      sql += " and rolling_start_number >= ? and rolling_start_number < ?";
+    }
+    return sql + " order by pk_exposed_id desc";
+  }
+
+  private static String getKeysSql(boolean forKeyDate, boolean withFederationGateway) {
+    return KEYS_SQL[(forKeyDate ? 2 : 0) + (withFederationGateway ? 1 : 0)];
+  }
+
+  // binds the parameters of the query of getKeysSql
+  private PreparedStatementSetter keysParameters(
+      UTCInstant keysSince,
+      UTCInstant keyDate,
+      UTCInstant maxBucket,
+      boolean withFederationGateway) {
+    return ps -> {
+      int i = 1;
+      ps.setTimestamp(i++, new Timestamp(keysSince.getTimestamp()));
+      ps.setTimestamp(i++, new Timestamp(maxBucket.getTimestamp()));
+      if (!withFederationGateway) {
+        ps.setString(i++, originCountry);
+      }
+      if (keyDate != null) {
+        ps.setLong(i++, keyDate.get10MinutesSince1970());
+        ps.setLong(i++, keyDate.plusDays(1).get10MinutesSince1970());
+      }
+    };
   }
 
   @Override
   @Transactional(readOnly = true)
-  public List<GaenKeyForInterops> getSortedExposedSinceForInteropsFromOrigin(
-      UTCInstant keysSince, UTCInstant now) {
-    MapSqlParameterSource params = new MapSqlParameterSource();
-    params.addValue("since", keysSince.getDate());
-    params.addValue("maxBucket", now.roundToBucketStart(releaseBucketDuration).getDate());
-    params.addValue("timeSkewSeconds", timeSkew.toSeconds());
-    params.addValue("origin", originCountry);
-
-    // Select keys since the given date. We need to make sure, only keys are returned
-    // that are allowed to be published and from our own origin country.
-    // For this, we calculate the expiry for each key in a sub query. The expiry is then used for
-    // the where clause:
-    // - if expiry <= received_at: the key was ready to publish when we received it. Release this
-    // key, if received_at in [since, maxBucket)
-    // - if expiry > received_at: we have to wait until expiry till we can release this key. This
-    // means we only release the key if expiry in [since, maxBucket)
-    // This problem arises, because we only want key with received_at after since, but we need to
-    // ensure that we relase ALL keys meaning keys which were still valid when they were received
-
-    // we need to add the time skew to calculate the expiry timestamp of a key:
-    // TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 + :timeSkewSeconds
+  public void streamExposedSince(
+      UTCInstant keysSince,
+      UTCInstant now,
+      boolean withFederationGateway,
+      ExposedKeyHandler handler) {
+    streamingJt.query(
+        getKeysSql(false, withFederationGateway),
+        keysParameters(
+            keysSince, null, now.roundToBucketStart(releaseBucketDuration), withFederationGateway),
+        (RowCallbackHandler) rs -> handler.handle(rs.getBytes(1), rs.getInt(2), rs.getInt(3)));
+  }
 
-    String sql =
-        "select keys.pk_exposed_id, keys.key, keys.rolling_start_number, keys.origin, "
-            + " keys.rolling_period, received_at, report_type, days_since_onset_of_symptoms "
-            + " from (select pk_exposed_id, key, rolling_start_number,"
-            + " rolling_period, received_at, origin, report_type, days_since_onset_of_symptoms,"
-            + getSQLExpressionForExpiry()
-            + " as expiry from t_gaen_exposed)"
-            + " as keys where keys.origin = :origin and ((keys.received_at >= :since AND"
-            + " keys.received_at < :maxBucket AND keys.expiry <= keys.received_at) OR (keys.expiry"
-            + " >= :since AND keys.expiry < :maxBucket AND keys.expiry > keys.received_at))";
-
-    sql += " order by keys.pk_exposed_id desc";
-
-    return jt.query(sql, params, new GaenKeyForInteropsRowMapper());
+  @Override
+  public boolean mayHaveExposed(
+      UTCInstant since,
+      UTCInstant maxBucket,
+      UTCInstant keyDate,
+      boolean withFederationGateway,
+      UTCInstant now) {
+    if (releaseIndex == null) {
+      return true;
+    }
+    // the index is only loaded by loadReleaseIndex, until then downloads query the database
+    return releaseIndex.mayHaveKeys(
+        since, maxBucket, keyDate, withFederationGateway ? null : originCountry);
   }
 
-  private String getSQLExpressionForKeyDateFilterAndOrigin(
-      UTCInstant keyDate, boolean withFederationGateway, MapSqlParameterSource params) {
-    List<String> conditions = new ArrayList<>();
-    if (!withFederationGateway) {
-      params.addValue("origin", originCountry);
-      conditions.add("origin = :origin");
+  @Override
+  public void loadReleaseIndex(UTCInstant now) {
+    if (releaseIndex == null) {
+      return;
     }
-    if (keyDate != null) {
-      params.addValue("rollingPeriodStartNumberStart", keyDate.get10MinutesSince1970());
-      params.addValue("rollingPeriodStartNumberEnd", keyDate.plusDays(1).get10MinutesSince1970());
-      conditions.add("rolling_start_number >= :rollingPeriodStartNumberStart");
-      conditions.add("rolling_start_number < :rollingPeriodStartNumberEnd");
+    synchronized (releaseIndexLoadLock) {
+      if (releaseIndex.needsLoad(now)) {
+        readReleaseIndex(now);
+      }
     }
-    return !conditions.isEmpty() ? ("where " + String.join(" and ", conditions)) : "";
+  }
+
+  private void readReleaseIndex(UTCInstant now) {
+    // only keys received since the last load, or committed after it, can be missing from the index.
+    // As only the presence of a bucket matters, reading some keys twice does not hurt.
+    var reloadSince = releaseIndex.getReloadSince();
+    MapSqlParameterSource params = new MapSqlParameterSource();
+    params.addValue("since", new Timestamp(reloadSince == null ? 0L : reloadSince.getTimestamp()));
+    String sql =
+        "select distinct rolling_start_number, release_at, origin"
+            + " from t_gaen_exposed where received_at >= :since";
+    jt.query(
+        sql,
+        params,
+        rs -> {
+          releaseIndex.add(
+              rs.getInt("rolling_start_number"),
+              UTCInstant.ofEpochMillis(rs.getTimestamp("release_at").getTime()),
+              rs.getString("origin"));
+        });
+    releaseIndex.markLoaded(now);
+    logger.info("Loaded key release index up to {}", releaseIndex.getLoadedUntil());
   }
 
   @Override
   @Transactional(readOnly = true)
-  public List<GaenKeyForInterops> getExposedForEfgsUpload() {
-    MapSqlParameterSource params = new MapSqlParameterSource();
-    params.addValue(
-        "maxBucket", UTCInstant.now().roundToBucketStart(releaseBucketDuration).getDate());
-    params.addValue("timeSkewSeconds", timeSkew.toSeconds());
-    params.addValue("origin", originCountry);
+  public List<GaenKeyForInterops> getSortedExposedSinceForInteropsFromOrigin(
+      UTCInstant keysSince, UTCInstant now) {
+    // Select keys since the given date. We need to make sure, only keys are returned
+    // that are allowed to be published and from our own origin country. As for the download of the
+    // keys, a key is released if release_at in [since, maxBucket).
+    var maxBucket = now.roundToBucketStart(releaseBucketDuration);
+    return jt.getJdbcTemplate()
+        .query(
+            INTEROPS_FROM_ORIGIN_SQL,
+            ps -> {
+              ps.setString(1, originCountry);
+              ps.setTimestamp(2, new Timestamp(keysSince.getTimestamp()));
+              ps.setTimestamp(3, new Timestamp(maxBucket.getTimestamp()));
+            },
+            new GaenKeyForInteropsRowMapper());
+  }
 
+  @Override
+  @Transactional(readOnly = true)
+  public List<GaenKeyForInterops> getExposedForEfgsUpload(
+      UTCInstant releasedSince, UTCInstant releasedUntil) {
     // Make sure, only keys are returned that are allowed to be published and from our own origin
-    // country.
-    // For this, we calculate the expiry for each key in a sub query. The expiry is then used for
-    // the where clause:
-    // expiry < maxBucket: the key is expired and therefore allowed to be published
-
-    // we need to add the time skew to calculate the expiry timestamp of a key:
-    // TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 + :timeSkewSeconds
-
-    String subqueryWithExpiry =
-        "select pk_exposed_id,"
-            + " key,"
-            + " rolling_start_number,"
-            + " origin, "
-            + " rolling_period,"
-            + " received_at, "
-            + " report_type,"
-            + " days_since_onset_of_symptoms,"
-            + " batch_tag,"
-            + " share_with_federation_gateway,"
-            + getSQLExpressionForExpiry()
-            + " as expiry from t_gaen_exposed";
-    String sql =
-        "select keys.pk_exposed_id,"
-            + " keys.key,"
-            + " keys.rolling_start_number,"
-            + " keys.origin, "
-            + " keys.received_at, "
-            + " keys.report_type,"
-            + " keys.days_since_onset_of_symptoms,"
-            + " keys.rolling_period from ("
-            + subqueryWithExpiry
-            + ") as keys"
-            + " where keys.origin = :origin"
-            + " and keys.expiry < :maxBucket"
-            + " and keys.batch_tag is null"
-            + " and keys.share_with_federation_gateway = true";
-
-    sql += " order by keys.pk_exposed_id desc";
-
-    return jt.query(sql, params, new GaenKeyForInteropsRowMapper());
+    // country. As for the download of the keys, a key is released if release_at < releasedUntil.
+    return jt.getJdbcTemplate()
+        .query(
+            EFGS_UPLOAD_SQL,
+            ps -> {
+              ps.setString(1, originCountry);
+              ps.setTimestamp(
+                  2, new Timestamp(releasedSince == null ? 0L : releasedSince.getTimestamp()));
+              ps.setTimestamp(3, new Timestamp(releasedUntil.getTimestamp()));
+            },
+            new GaenKeyForInteropsRowMapper());
   }
 
-  private String getSQLExpressionForExpiry() {
-    if (this.dbType.equals(PGSQL)) {
-      return "TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 +"
-          + " :timeSkewSeconds)";
-    } else {
-      return "TIMESTAMP_WITH_ZONE((rolling_start_number + rolling_period) * 10 * 60 +"
-          + " :timeSkewSeconds)";
+  @Override
+  @Transactional(readOnly = false)
+  public void setBatchTagForKeys(List<GaenKeyForInterops> uploadedKeys, String batchTag) {
+    if (uploadedKeys != null && !uploadedKeys.isEmpty()) {
+      setBatchTagsForKeys(Map.of(batchTag, uploadedKeys));
     }
   }
 
   @Override
-  public void setBatchTagForKeys(List<GaenKeyForInterops> uploadedKeys, String batchTag) {
-    if (uploadedKeys != null && !uploadedKeys.isEmpty()) {
-      String sql =
-          "update t_gaen_exposed"
-              + " set batch_tag = :batch_tag"
-              + " where pk_exposed_id in (:pk_exposed_id)";
-      MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("batch_tag", batchTag);
-      params.addValue(
-          "pk_exposed_id",
-          uploadedKeys.stream().map(GaenKeyForInterops::getId).collect(Collectors.toList()));
-      jt.update(sql, params);
+  @Transactional(readOnly = false)
+  public void setBatchTagsForKeys(Map<String, List<GaenKeyForInterops>> uploadedKeysByBatchTag) {
+    var batches =
+        uploadedKeysByBatchTag.entrySet().stream()
+            .filter(batch -> batch.getValue() != null && !batch.getValue().isEmpty())
+            .collect(Collectors.toList());
+    if (batches.isEmpty()) {
+      return;
     }
+    // one statement per batch, sent in a single round trip. The ids are passed as one array, so
+    // the statement is the same for any number of keys.
+    jt.getJdbcTemplate()
+        .batchUpdate(
+            setBatchTagSql,
+            new BatchPreparedStatementSetter() {
+              @Override
+              public void setValues(PreparedStatement ps, int i) throws SQLException {
+                var batch = batches.get(i);
+                Integer[] ids =
+                    batch.getValue().stream()
+                        .map(GaenKeyForInterops::getId)
+                        .toArray(Integer[]::new);
+                ps.setString(1, batch.getKey());
+                ps.setArray(2, ps.getConnection().createArrayOf("integer", ids));
+              }
+
+              @Override
+              public int getBatchSize() {
+                return batches.size();
+              }
+            });
   }
 
   @Override
   @Transactional(readOnly = false)
   public void cleanDB(Duration retentionPeriod) {
     var retentionTime = UTCInstant.now().minus(retentionPeriod);
+    if (dbType.equals(PGSQL)) {
+      // Keys are deleted by day of receipt: the keys received on a day are dropped with its
+      // partition once the retention time has passed for all of them. A key is therefore kept for
+      // at least the retention period after it was received, and at most one day longer.
+      var retentionDay = retentionTime.atStartOfDay();
+      logger.info("Cleanup DB entries received before: " + retentionDay);
+      partitionDefaultBefore(retentionDay);
+      dropPartitionsBefore(retentionDay);
+      createPartitions(retentionDay, UTCInstant.today().plusDays(PARTITION_DAYS_AHEAD));
+      if (releaseIndex != null) {
+        releaseIndex.removeBefore(retentionDay);
+      }
+      return;
+    }
     logger.info("Cleanup DB entries before: " + retentionTime);
     MapSqlParameterSource params =
         new MapSqlParameterSource("retention_time", retentionTime.getDate());
     String sqlExposed = "delete from t_gaen_exposed where received_at < :retention_time";
     jt.update(sqlExposed, params);
+    if (releaseIndex != null) {
+      releaseIndex.removeBefore(retentionTime);
+    }
+  }
+
+  // Moves the keys of the default partition received before the given day into the partitions of
+  // their days, such that they are dropped with them. The default partition only has keys received
+  // on a day for which no partition existed, so it is usually empty.
+  private void partitionDefaultBefore(UTCInstant day) {
+    var params = new MapSqlParameterSource("day", day.getDate());
+    var strayDays =
+        jt.queryForList(
+            "select distinct to_char(received_at at time zone 'UTC', 'YYYY-MM-DD')"
+                + " from t_gaen_exposed_default where received_at < :day",
+            params,
+            String.class);
+    for (var strayDay : strayDays) {
+      var strayDate = LocalDate.parse(strayDay);
+      // the partition may have been created while the keys were inserted, the function still
+      // moves them
+      partitionedDays.remove(strayDate);
+      ensurePartition(UTCInstant.parseDate(strayDay));
+    }
+  }
+
+  // Drops the partitions of t_gaen_exposed of all days before the given day
+  private void dropPartitionsBefore(UTCInstant day) {
+    String sql =
+        "select child.relname from pg_inherits"
+            + " join pg_class parent on pg_inherits.inhparent = parent.oid"
+            + " join pg_class child on pg_inherits.inhrelid = child.oid"
+            + " where parent.relname = 't_gaen_exposed'";
+    for (String partition : jt.getJdbcTemplate().queryForList(sql, String.class)) {
+      var matcher = PARTITION_NAME.matcher(partition);
+      if (!matcher.matches()) {
+        continue;
+      }
+      var receivedDay = LocalDate.parse(matcher.group(1), DateTimeFormatter.BASIC_ISO_DATE);
+      if (receivedDay.isBefore(day.getLocalDate())) {
+        logger.info("Drop partition " + partition + " of keys received on " + receivedDay);
+        jt.getJdbcTemplate().execute("alter table t_gaen_exposed detach partition " + partition);
+        jt.getJdbcTemplate().execute("drop table " + partition);
+        partitionedDays.remove(receivedDay);
+      }
+    }
+  }
+
+  // Creates the missing partitions of t_gaen_exposed for the days in [from, to]
+  private void createPartitions(UTCInstant from, UTCInstant to) {
+    for (var day = from; !to.isBeforeEpochMillisOf(day); day = day.plusDays(1)) {
+      ensurePartition(day);
+    }
+  }
+
+  // Streams the keys with COPY into a temporary staging table, and moves them from there into
+  // t_gaen_exposed with a single insert. Keys which are already stored are skipped, as with
+  // internalUpsertKeys.
+  private void copyUpsertKeys(List<GaenKeyForInterops> gaenKeys, UTCInstant now, String batchTag) {
+    if (gaenKeys.isEmpty()) {
+      return;
+    }
+    ensurePartition(now);
+
+    var jdbcTemplate = jt.getJdbcTemplate();
+    // dropped at the end of the transaction in any case
+    jdbcTemplate.execute(
+        "create temporary table t_gaen_exposed_staging (key text, rolling_start_number integer,"
+            + " rolling_period integer, release_at timestamp with time zone, origin varchar(10))"
+            + " on commit drop");
+    long copied =
+        jdbcTemplate.execute(
+            (ConnectionCallback<Long>)
+                con -> {
+                  var copyStream =
+                      new PGCopyOutputStream(
+                          con.unwrap(PGConnection.class),
+                          "copy t_gaen_exposed_staging (key, rolling_start_number, rolling_period,"
+                              + " release_at, origin) from stdin with (format csv)");
+                  var writer =
+                      new BufferedWriter(
+                          new OutputStreamWriter(copyStream, StandardCharsets.UTF_8));
+                  try {
+                    for (var gaenKey : gaenKeys) {
+                      writeCsvRow(writer, gaenKey, now);
+                    }
+                    writer.flush();
+                  } catch (IOException e) {
+                    copyStream.cancelCopy();
+                    throw new SQLException("Failed to copy keys", e);
+                  }
+                  return copyStream.endCopy();
+                });
+
+    MapSqlParameterSource params = new MapSqlParameterSource();
+    params.addValue("received_at", new Timestamp(now.getTimestamp()));
+    params.addValue("batch_tag", batchTag);
+    int inserted =
+        jt.update(
+            "insert into t_gaen_exposed (key, rolling_start_number, rolling_period, received_at,"
+                + " release_at, origin, share_with_federation_gateway, batch_tag)"
+                + " select decode(key, 'base64'), rolling_start_number, rolling_period,"
+                + " :received_at, release_at, origin, true, :batch_tag from t_gaen_exposed_staging"
+                + " where not exists (select 1 from t_gaen_exposed stored"
+                + " where stored.key = decode(t_gaen_exposed_staging.key, 'base64'))"
+                + " on conflict on constraint gaen_exposed_key do nothing",
+            params);
+    jdbcTemplate.execute("drop table t_gaen_exposed_staging");
+    logger.info("Copied {} keys, inserted {} new ones", copied, inserted);
   }
 
-  private void internalUpsertKey(
-      GaenKey gaenKey,
+  private void writeCsvRow(Writer writer, GaenKeyForInterops gaenKey, UTCInstant receivedAt)
+      throws IOException {
+    var releaseAt =
+        getReleaseTime(gaenKey.getRollingStartNumber(), gaenKey.getRollingPeriod(), receivedAt);
+    writer.write(gaenKey.getKeyData());
+    writer.write(',');
+    writer.write(Integer.toString(gaenKey.getRollingStartNumber()));
+    writer.write(',');
+    writer.write(Integer.toString(gaenKey.getRollingPeriod()));
+    writer.write(',');
+    writer.write(releaseAt.toString());
+    writer.write(',');
+    // an unquoted empty value is null
+    if (gaenKey.getOrigin() != null) {
+      writer.write('"');
+      writer.write(gaenKey.getOrigin().replace("\"", "\"\""));
+      writer.write('"');
+    }
+    writer.write('\n');
+  }
+
+  // Makes sure the partition of t_gaen_exposed for the keys received at the given time exists.
+  // Each partition is only created once per instance, all later calls are answered from memory.
+  private void ensurePartition(UTCInstant receivedAt) {
+    var day = receivedAt.getLocalDate();
+    if (partitionedDays.contains(day)) {
+      return;
+    }
+    var params = new MapSqlParameterSource("day", day.toString());
+    jt.queryForObject(
+        "select create_gaen_exposed_partition(cast(:day as date))", params, String.class);
+    partitionedDays.add(day);
+  }
+
+  // Inserts the keys in one batch, which the driver sends in a single round trip. Keys which are
+  // already stored are skipped, as are duplicates within the batch.
+  private void internalUpsertKeys(
+      List<GaenKey> gaenKeys,
       UTCInstant receivedAt,
       String origin,
       String batchTag,
       boolean withFederationGateway) {
-    String sqlKey = null;
+    if (gaenKeys.isEmpty()) {
+      return;
+    }
     if (dbType.equals(PGSQL)) {
-      sqlKey =
-          "insert into t_gaen_exposed (key, rolling_start_number, rolling_period, received_at,"
-              + " origin, share_with_federation_gateway, batch_tag)"
-              + " values (:key, :rolling_start_number, :rolling_period, :received_at,"
-              + " :origin, :share_with_federation_gateway, :batch_tag) on"
-              + " conflict on constraint gaen_exposed_key do nothing";
-    } else {
-      sqlKey =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
-              + " :rolling_start_number, :rolling_period, :received_at, cast(:origin as"
-              + " varchar(10)), :share_with_federation_gateway, cast(:batch_tag as varchar(50))))"
-              + " as vals(key, rolling_start_number, rolling_period, received_at, origin,"
-              + " share_with_federation_gateway, batch_tag) on t_gaen_exposed.key = vals.key when"
-              + " not matched then insert (key, rolling_start_number, rolling_period, received_at,"
-              + " origin, share_with_federation_gateway, batch_tag) values (vals.key,"
-              + " vals.rolling_start_number, vals.rolling_period, vals.received_at, vals.origin,"
-              + " vals.share_with_federation_gateway, vals.batch_tag)";
+      ensurePartition(receivedAt);
     }
 
-    MapSqlParameterSource params = new MapSqlParameterSource();
-    params.addValue("key", gaenKey.getKeyData());
-    params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
-    params.addValue("rolling_period", gaenKey.getRollingPeriod());
-    params.addValue("received_at", new Timestamp(receivedAt.getTimestamp()));
-    params.addValue("origin", origin);
-    params.addValue("share_with_federation_gateway", withFederationGateway);
-    params.addValue("batch_tag", batchTag);
-    KeyHolder keyHolder = new GeneratedKeyHolder();
-    jt.update(sqlKey, params, keyHolder);
+    var receivedAtTimestamp = new Timestamp(receivedAt.getTimestamp());
+    jt.getJdbcTemplate()
+        .batchUpdate(
+            upsertSql,
+            new BatchPreparedStatementSetter() {
+              @Override
+              public void setValues(PreparedStatement ps, int i) throws SQLException {
+                var gaenKey = gaenKeys.get(i);
+                var releaseAt =
+                    getReleaseTime(
+                        gaenKey.getRollingStartNumber(), gaenKey.getRollingPeriod(), receivedAt);
+                ps.setBytes(1, gaenKey.getKeyDataBytes());
+                ps.setInt(2, gaenKey.getRollingStartNumber());
+                ps.setInt(3, gaenKey.getRollingPeriod());
+                ps.setTimestamp(4, receivedAtTimestamp);
+                ps.setTimestamp(5, new Timestamp(releaseAt.getTimestamp()));
+                ps.setString(6, origin);
+                ps.setBoolean(7, withFederationGateway);
+                ps.setString(8, batchTag);
+              }
+
+              @Override
+              public int getBatchSize() {
+                return gaenKeys.size();
+              }
+            });
+  }
+
+  // A key may be published once we received it and it is expired. We need to add the time skew
+  // to calculate the expiry of a key.
+  private UTCInstant getReleaseTime(
+      int rollingStartNumber, int rollingPeriod, UTCInstant receivedAt) {
+    var expiry =
+        UTCInstant.of(rollingStartNumber + rollingPeriod, GaenUnit.TenMinutes).plus(timeSkew);
+    return expiry.isAfterEpochMillisOf(receivedAt) ? expiry : receivedAt;
   }
 }
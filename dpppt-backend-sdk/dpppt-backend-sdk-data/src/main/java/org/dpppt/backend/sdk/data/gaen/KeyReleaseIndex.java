@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Keeps track of the release buckets, origins and key dates for which keys are stored, such that
+ * downloads of empty ranges can be answered without a query.
+ *
+ * <p>A key is released in the bucket containing its release_at, max(received_at, expiry) as stored
+ * on insert, see {@link JdbcGaenDataServiceImpl#getSortedExposedSince(UTCInstant, UTCInstant,
+ * boolean)}. The index uses the stored release_at, such that it agrees with the downloads even if
+ * the time skew changes. Keys are always stored with a received_at at or after the start of the
+ * write, so once a bucket has started, only transactions which are still running can add keys to
+ * the buckets before it. The index is therefore loaded once per bucket, a short settle time after
+ * the bucket started (to let these transactions commit), and is then exact for all downloads up to
+ * that bucket, including keys written by other instances or the interops sync.
+ *
+ * <p>A key which commits later than the settle time is missed by the load of its bucket, like it is
+ * missed by downloads which already ran. To not miss it forever, each load reads the keys received
+ * since the previous load minus a late commit window, which must be at least the longest time a
+ * key can commit after its received_at, i.e. the transaction timeout of the writers. The index must
+ * stay disabled with writers which commit keys later than that, e.g. imports of keys with a
+ * received_at in the past.
+ *
+ * <p>The index is loaded by a single scheduled task, see {@link
+ * GaenDataService#loadReleaseIndex(UTCInstant)}. Downloads only read it without locking, it is
+ * keyed by release bucket such that a download only looks at the buckets it asks for.
+ *
+ * <p>The index errs on the side of caution: deleted keys may still be reported, and if the index
+ * is not loaded up to the requested bucket, it reports that there may be keys.
+ */
+public class KeyReleaseIndex {
+
+  private final Duration releaseBucketDuration;
+  private final Duration settleTime;
+  private final Duration lateCommitWindow;
+
+  // origins and key dates of the keys released in each bucket, by start of the bucket
+  private final ConcurrentSkipListMap<Long, Set<Entry>> buckets = new ConcurrentSkipListMap<>();
+  // all keys released before this bucket are in the index. Written after the keys were added.
+  private volatile UTCInstant loadedUntil;
+
+  /**
+   * @param releaseBucketDuration duration of a release bucket
+   * @param settleTime how long after the start of a bucket the index may be loaded for it
+   * @param lateCommitWindow how long after its received_at a key may still commit
+   */
+  public KeyReleaseIndex(
+      Duration releaseBucketDuration, Duration settleTime, Duration lateCommitWindow) {
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.settleTime = settleTime;
+    this.lateCommitWindow = lateCommitWindow;
+  }
+
+  /**
+   * Returns whether the index must be loaded before it can answer downloads at the given time.
+   *
+   * @param now time of the download
+   */
+  public boolean needsLoad(UTCInstant now) {
+    var bucket = now.roundToBucketStart(releaseBucketDuration);
+    return (loadedUntil == null || loadedUntil.isBeforeEpochMillisOf(bucket))
+        && !now.isBeforeEpochMillisOf(bucket.plus(settleTime));
+  }
+
+  /**
+   * Returns the bucket up to which the index is loaded. Keys received since then need to be added
+   * on the next load. Null if the index was never loaded.
+   */
+  public UTCInstant getLoadedUntil() {
+    return loadedUntil;
+  }
+
+  /**
+   * Returns the received_at from which keys need to be read on the next load: the keys received
+   * since the previous load, and those which were still uncommitted during it. Null if the index
+   * was never loaded, i.e. all keys need to be read.
+   */
+  public UTCInstant getReloadSince() {
+    return loadedUntil == null ? null : loadedUntil.minus(lateCommitWindow);
+  }
+
+  /**
+   * Adds stored keys to the index.
+   *
+   * @param rollingStartNumber of the keys
+   * @param releaseAt the stored release time of the keys
+   * @param origin of the keys
+   */
+  public void add(int rollingStartNumber, UTCInstant releaseAt, String origin) {
+    var keyDate = UTCInstant.of(rollingStartNumber, GaenUnit.TenMinutes).atStartOfDay();
+    buckets
+        .computeIfAbsent(
+            releaseAt.roundToBucketStart(releaseBucketDuration).getTimestamp(),
+            bucket -> ConcurrentHashMap.newKeySet())
+        .add(new Entry(origin, keyDate.getTimestamp()));
+  }
+
+  /**
+   * Marks the index as loaded with all keys read at the given time.
+   *
+   * @param now the time the stored keys were read. Must be at least the settle time after the start
+   *     of its bucket.
+   */
+  public void markLoaded(UTCInstant now) {
+    loadedUntil = now.minus(settleTime).roundToBucketStart(releaseBucketDuration);
+  }
+
+  /**
+   * Returns whether there may be keys released in [since, maxBucket). The answer is only negative
+   * if the index is loaded up to maxBucket and there are no such keys.
+   *
+   * @param since start of the range
+   * @param maxBucket end of the range, exclusive. Must be the start of a bucket.
+   * @param keyDate if not null, only consider keys of that day
+   * @param origin if not null, only consider keys of that origin
+   */
+  public boolean mayHaveKeys(
+      UTCInstant since, UTCInstant maxBucket, UTCInstant keyDate, String origin) {
+    var loaded = loadedUntil;
+    if (loaded == null || loaded.isBeforeEpochMillisOf(maxBucket)) {
+      return true;
+    }
+    // a bucket holds the keys released in [bucket, bucket + duration)
+    long from = since.roundToBucketStart(releaseBucketDuration).getTimestamp();
+    long until = maxBucket.getTimestamp();
+    if (from >= until) {
+      return false;
+    }
+    Long keyDay = keyDate == null ? null : keyDate.atStartOfDay().getTimestamp();
+    for (var entries : buckets.subMap(from, until).values()) {
+      for (var entry : entries) {
+        if ((keyDay == null || entry.keyDate == keyDay)
+            && (origin == null || origin.equals(entry.origin))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops all buckets which end at or before the given time, as their keys have been deleted.
+   *
+   * @param before the retention time of the deletion
+   */
+  public void removeBefore(UTCInstant before) {
+    buckets.headMap(before.getTimestamp() - releaseBucketDuration.toMillis(), true).clear();
+  }
+
+  private static class Entry {
+    private final String origin;
+    private final long keyDate;
+
+    private Entry(String origin, long keyDate) {
+      this.origin = origin;
+      this.keyDate = keyDate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Entry entry = (Entry) o;
+      return keyDate == entry.keyDate && Objects.equals(origin, entry.origin);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(origin, keyDate);
+    }
+  }
+}
@@ -1,10 +1,12 @@
 package org.dpppt.backend.sdk.data.interops;
 
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.model.interops.FederationSyncLogEntry;
 import org.dpppt.backend.sdk.model.interops.SyncAction;
 import org.dpppt.backend.sdk.model.interops.SyncState;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
@@ -51,6 +53,42 @@ public class JdbcSyncLogDataServiceImpl implements SyncLogDataService {
     logEntryInsert.execute(getParams(logEntry));
   }
 
+  @Override
+  public UTCInstant getUploadWatermark(String gateway) {
+    String sql =
+        "select released_until from t_federation_upload_watermark where gateway = :gateway";
+    try {
+      Timestamp releasedUntil =
+          jt.queryForObject(sql, new MapSqlParameterSource("gateway", gateway), Timestamp.class);
+      return UTCInstant.ofEpochMillis(releasedUntil.getTime());
+    } catch (EmptyResultDataAccessException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void setUploadWatermark(String gateway, UTCInstant releasedUntil) {
+    String sql;
+    if (dbType.equals(PGSQL)) {
+      sql =
+          "insert into t_federation_upload_watermark (gateway, released_until)"
+              + " values (:gateway, :released_until) on conflict (gateway)"
+              + " do update set released_until = excluded.released_until";
+    } else {
+      sql =
+          "merge into t_federation_upload_watermark using (values(cast(:gateway as varchar(50)),"
+              + " cast(:released_until as timestamp with time zone))) as vals(gateway,"
+              + " released_until) on t_federation_upload_watermark.gateway = vals.gateway"
+              + " when matched then update set released_until = vals.released_until"
+              + " when not matched then insert (gateway, released_until)"
+              + " values (vals.gateway, vals.released_until)";
+    }
+    MapSqlParameterSource params = new MapSqlParameterSource();
+    params.addValue("gateway", gateway);
+    params.addValue("released_until", new Timestamp(releasedUntil.getTimestamp()));
+    jt.update(sql, params);
+  }
+
   private SqlParameterSource getParams(FederationSyncLogEntry logEntry) {
     MapSqlParameterSource params = new MapSqlParameterSource();
     params.addValue("gateway", logEntry.getGateway());
@@ -12,6 +12,7 @@ package org.dpppt.backend.sdk.data.interops;
 
 import java.time.LocalDate;
 import org.dpppt.backend.sdk.model.interops.FederationSyncLogEntry;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 
 public interface SyncLogDataService {
 
@@ -30,4 +31,21 @@ public interface SyncLogDataService {
    * @param logEntry
    */
   void insertLogEntry(FederationSyncLogEntry logEntry);
+
+  /**
+   * returns the release time up to which all keys have been uploaded to the given gateway, or null
+   * if nothing has been uploaded yet
+   *
+   * @param gateway
+   * @return
+   */
+  UTCInstant getUploadWatermark(String gateway);
+
+  /**
+   * stores the release time up to which all keys have been uploaded to the given gateway
+   *
+   * @param gateway
+   * @param releasedUntil
+   */
+  void setUploadWatermark(String gateway, UTCInstant releasedUntil);
 }
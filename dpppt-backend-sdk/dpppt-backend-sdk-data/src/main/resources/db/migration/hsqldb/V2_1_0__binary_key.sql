@@ -0,0 +1,14 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Store the key as raw bytes instead of base64
+alter table t_gaen_exposed add column key_data varbinary(16);
+update t_gaen_exposed set key_data = from_base64(key);
+alter table t_gaen_exposed drop constraint gaen_exposed_key;
+alter table t_gaen_exposed drop column key;
+alter table t_gaen_exposed alter column key_data rename to key;
+alter table t_gaen_exposed alter column key set not null;
+alter table t_gaen_exposed add constraint gaen_exposed_key unique (key);
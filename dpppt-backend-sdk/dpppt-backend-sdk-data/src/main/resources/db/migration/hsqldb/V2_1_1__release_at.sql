@@ -0,0 +1,8 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- The time a key may be published, max(received_at, expiry)
+alter table t_gaen_exposed add column release_at timestamp with time zone;
@@ -0,0 +1,10 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+alter table t_gaen_exposed alter column release_at set not null;
+
+create index gaen_exposed_origin_release_at on t_gaen_exposed (origin, release_at);
+create index gaen_exposed_release_at on t_gaen_exposed (release_at);
@@ -0,0 +1,12 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- release time up to which all keys have been uploaded to a gateway
+create table t_federation_upload_watermark(
+ gateway varchar(50) not null,
+ released_until timestamp with time zone not null,
+ constraint pk_t_federation_upload_watermark primary key (gateway)
+);
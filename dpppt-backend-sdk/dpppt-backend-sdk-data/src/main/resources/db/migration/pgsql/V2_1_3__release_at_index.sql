@@ -0,0 +1,12 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+alter table t_gaen_exposed alter column release_at set not null;
+
+-- the downloads only read the included columns, which are then served from the index
+create index gaen_exposed_origin_release_at on t_gaen_exposed (origin, release_at)
+  include (pk_exposed_id, key, rolling_start_number, rolling_period);
+create index gaen_exposed_release_at on t_gaen_exposed (release_at);
@@ -0,0 +1,17 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- only contains the keys which still have to be uploaded to the federation gateway. A key leaves
+-- the index once its batch tag is set, so the upload never scans the uploaded keys.
+create index gaen_exposed_efgs_upload on t_gaen_exposed (origin, release_at)
+  where batch_tag is null and share_with_federation_gateway = true;
+
+-- release time up to which all keys have been uploaded to a gateway
+create table t_federation_upload_watermark(
+ gateway varchar(50) not null,
+ released_until timestamp with time zone not null,
+ constraint pk_t_federation_upload_watermark primary key (gateway)
+);
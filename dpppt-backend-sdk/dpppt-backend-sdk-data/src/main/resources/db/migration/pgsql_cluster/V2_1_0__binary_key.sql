@@ -0,0 +1,8 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Store the key as raw bytes instead of base64. The unique index is rebuilt with the new type.
+alter table t_gaen_exposed alter column key type bytea using decode(key, 'base64');
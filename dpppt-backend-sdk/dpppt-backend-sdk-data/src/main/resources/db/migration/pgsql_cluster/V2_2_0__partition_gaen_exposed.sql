@@ -0,0 +1,104 @@
+/*
+ * Created by Ubique Innovation AG
+ * https://www.ubique.ch
+ * Copyright (c) 2020. All rights reserved.
+ */
+
+-- Partition t_gaen_exposed by received_at, one partition per day (UTC). Expired keys are then
+-- removed by dropping the partitions of the days before the retention time, instead of deleting
+-- them row by row.
+--
+-- Unique constraints of a partitioned table must contain the partition key, so the constraint
+-- gaen_exposed_key only covers (key, received_at). Inserts skip keys which are already stored in
+-- any partition, the index of the constraint answers that lookup.
+--
+-- Keys received on a day without a partition go into the default partition, such that an insert
+-- never fails because of a missing partition. They are moved out of it when the partition of their
+-- day is created.
+
+-- Creates the partition of t_gaen_exposed for the keys received on the given day, if it does not
+-- exist yet, and returns its name. Keys of that day in the default partition are moved into it, as
+-- the partition cannot be created while the default partition has rows in its range.
+create or replace function create_gaen_exposed_partition(received_day date) returns text as $$
+declare
+  partition_name text := 't_gaen_exposed_' || to_char(received_day, 'YYYYMMDD');
+  day_start timestamp with time zone := received_day::timestamp at time zone 'UTC';
+  day_end timestamp with time zone := (received_day + 1)::timestamp at time zone 'UTC';
+begin
+  if to_regclass(partition_name) is not null then
+    -- keys left in the default partition by a concurrent creation
+    with moved as (
+      delete from t_gaen_exposed_default
+      where received_at >= day_start and received_at < day_end
+      returning *)
+    insert into t_gaen_exposed select * from moved;
+    return partition_name;
+  end if;
+  create temporary table t_gaen_exposed_moved (like t_gaen_exposed) on commit drop;
+  with moved as (
+    delete from t_gaen_exposed_default
+    where received_at >= day_start and received_at < day_end
+    returning *)
+  insert into t_gaen_exposed_moved select * from moved;
+  execute format(
+    'create table %I partition of t_gaen_exposed for values from (%L) to (%L)',
+    partition_name, day_start, day_end);
+  insert into t_gaen_exposed select * from t_gaen_exposed_moved;
+  drop table t_gaen_exposed_moved;
+  return partition_name;
+exception when duplicate_table or unique_violation then
+  -- created concurrently, keys left in the default partition are moved by a later call
+  return partition_name;
+end;
+$$ language plpgsql;
+
+alter table t_gaen_exposed rename to t_gaen_exposed_unpartitioned;
+alter table t_gaen_exposed_unpartitioned drop constraint gaen_exposed_key;
+alter table t_gaen_exposed_unpartitioned drop constraint pk_t_gaen_exposed;
+drop index gaen_exposed_origin_release_at;
+drop index gaen_exposed_release_at;
+alter sequence t_gaen_exposed_pk_exposed_id_seq owned by none;
+
+create table t_gaen_exposed(
+ pk_exposed_id integer default nextval('t_gaen_exposed_pk_exposed_id_seq') not null,
+ key bytea not null,
+ rolling_start_number bigint not null,
+ rolling_period bigint not null,
+ received_at timestamp with time zone default now() not null,
+ report_type varchar(30),
+ days_since_onset_of_symptoms integer,
+ origin varchar(10) not null,
+ batch_tag varchar(50),
+ share_with_federation_gateway boolean not null,
+ release_at timestamp with time zone not null
+) partition by range (received_at);
+
+alter sequence t_gaen_exposed_pk_exposed_id_seq owned by t_gaen_exposed.pk_exposed_id;
+
+alter table t_gaen_exposed add constraint pk_t_gaen_exposed
+  primary key (pk_exposed_id, received_at);
+alter table t_gaen_exposed add constraint gaen_exposed_key unique (key, received_at);
+create index gaen_exposed_origin_release_at on t_gaen_exposed (origin, release_at)
+  include (pk_exposed_id, key, rolling_start_number, rolling_period);
+create index gaen_exposed_release_at on t_gaen_exposed (release_at);
+create table t_gaen_exposed_default partition of t_gaen_exposed default;
+
+do $$
+declare
+  received_day date;
+begin
+  for received_day in
+    select distinct (received_at at time zone 'UTC')::date from t_gaen_exposed_unpartitioned
+  loop
+    perform create_gaen_exposed_partition(received_day);
+  end loop;
+end $$;
+
+insert into t_gaen_exposed (pk_exposed_id, key, rolling_start_number, rolling_period, received_at,
+  report_type, days_since_onset_of_symptoms, origin, batch_tag, share_with_federation_gateway,
+  release_at)
+select pk_exposed_id, key, rolling_start_number, rolling_period, received_at, report_type,
+  days_since_onset_of_symptoms, origin, batch_tag, share_with_federation_gateway, release_at
+from t_gaen_exposed_unpartitioned;
+
+drop table t_gaen_exposed_unpartitioned;
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.List;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class ReplicaRoutingDataSourceTest {
+
+  private static final Duration BUCKET = Duration.ofHours(2);
+  private static final Duration MAX_LAG = Duration.ofSeconds(5);
+  private static final String NAME_QUERY = "select name from t_database";
+
+  private final UTCInstant now = UTCInstant.today().plusHours(3);
+
+  private EmbeddedDatabase primary;
+  private EmbeddedDatabase replica;
+  private StubRoutingDataSource dataSource;
+
+  @Before
+  public void setUp() {
+    setNow(now);
+    primary = database("primary");
+    replica = database("replica");
+    dataSource = new StubRoutingDataSource(primary, replica);
+  }
+
+  @After
+  public void tearDown() {
+    UTCInstant.resetClock();
+    primary.shutdown();
+    replica.shutdown();
+  }
+
+  @Test
+  public void testReadOnlyTransactionsUseFreshReplica() {
+    // not checked yet
+    assertEquals("primary", query(true));
+
+    dataSource.replayedUntil = now.minusSeconds(1);
+    dataSource.checkReplicas();
+    assertEquals("replica", query(true));
+    assertEquals("primary", query(false));
+    assertEquals("primary", new JdbcTemplate(dataSource).queryForObject(NAME_QUERY, String.class));
+  }
+
+  @Test
+  public void testLaggingReplicaFallsBackToPrimary() {
+    dataSource.replayedUntil = now.minus(MAX_LAG).minusSeconds(1);
+    dataSource.checkReplicas();
+    assertEquals("primary", query(true));
+
+    // the replica is only used until it is maxLag behind the last check
+    dataSource.replayedUntil = now;
+    dataSource.checkReplicas();
+    assertEquals("replica", query(true));
+    setNow(now.plus(MAX_LAG).plusSeconds(1));
+    assertEquals("primary", query(true));
+  }
+
+  @Test
+  public void testReplicaMustHaveReplayedCurrentBucket() {
+    var bucketStart = now.roundToBucketStart(BUCKET);
+    setNow(bucketStart.plusSeconds(2));
+    dataSource.replayedUntil = bucketStart.minusSeconds(1);
+    dataSource.checkReplicas();
+    assertEquals("primary", query(true));
+
+    dataSource.replayedUntil = bucketStart;
+    dataSource.checkReplicas();
+    assertEquals("replica", query(true));
+  }
+
+  @Test
+  public void testFailedCheckFallsBackToPrimary() {
+    dataSource.replayedUntil = now;
+    dataSource.checkReplicas();
+    assertEquals("replica", query(true));
+
+    dataSource.failing = true;
+    dataSource.checkReplicas();
+    assertEquals("primary", query(true));
+  }
+
+  private String query(boolean readOnly) {
+    var template = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    template.setReadOnly(readOnly);
+    return template.execute(
+        status -> new JdbcTemplate(dataSource).queryForObject(NAME_QUERY, String.class));
+  }
+
+  private static void setNow(UTCInstant now) {
+    UTCInstant.resetClock();
+    UTCInstant.setClock(Clock.fixed(now.getInstant(), ZoneOffset.UTC));
+  }
+
+  private static EmbeddedDatabase database(String name) {
+    var database =
+        new EmbeddedDatabaseBuilder()
+            .generateUniqueName(true)
+            .setType(EmbeddedDatabaseType.HSQL)
+            .build();
+    var jt = new JdbcTemplate(database);
+    jt.execute("create table t_database (name varchar(20))");
+    jt.update("insert into t_database (name) values (?)", name);
+    return database;
+  }
+
+  /** Reports a fixed replay position instead of asking the replica. */
+  private static class StubRoutingDataSource extends ReplicaRoutingDataSource {
+    private UTCInstant replayedUntil;
+    private boolean failing;
+
+    private StubRoutingDataSource(DataSource primary, DataSource replica) {
+      super(primary, List.of(replica), MAX_LAG, BUCKET);
+    }
+
+    @Override
+    protected UTCInstant queryReplayedUntil(DataSource replica, UTCInstant now) {
+      if (failing) {
+        throw new IllegalStateException("replica unavailable");
+      }
+      return replayedUntil;
+    }
+  }
+}
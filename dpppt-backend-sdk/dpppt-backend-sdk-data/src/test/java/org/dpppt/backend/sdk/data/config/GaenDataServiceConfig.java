@@ -66,7 +66,7 @@ public class GaenDataServiceConfig {
 
   @Bean
   public RedeemDataService redeemDataService() {
-    return new JdbcRedeemDataServiceImpl(dataSource);
+    return new JdbcRedeemDataServiceImpl(dbType, dataSource);
   }
 
   @Bean
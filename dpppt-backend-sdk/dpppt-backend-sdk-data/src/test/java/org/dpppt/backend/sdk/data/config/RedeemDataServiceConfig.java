@@ -26,6 +26,6 @@ public class RedeemDataServiceConfig {
 
   @Bean
   public RedeemDataService redeemDataService() {
-    return new JdbcRedeemDataServiceImpl(dataSource);
+    return new JdbcRedeemDataServiceImpl(dbType, dataSource);
   }
 }
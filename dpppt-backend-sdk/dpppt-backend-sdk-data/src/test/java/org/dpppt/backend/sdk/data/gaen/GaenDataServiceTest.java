@@ -1,13 +1,20 @@
 package org.dpppt.backend.sdk.data.gaen;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.UnsupportedEncodingException;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.config.FlyWayConfig;
 import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
 import org.dpppt.backend.sdk.data.config.RedeemDataServiceConfig;
@@ -40,6 +47,9 @@ public class GaenDataServiceTest {
   private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
 
   @Autowired private GaenDataService gaenDataService;
+  @Autowired private RedeemDataService redeemDataService;
+  @Autowired private DataSource dataSource;
+  @Autowired private String dbType;
 
   @Test
   @Transactional
@@ -102,6 +112,47 @@ public class GaenDataServiceTest {
     assertEquals(keys.get(1).getKeyData(), returnedKeys.get(0).getKeyData());
   }
 
+  @Test
+  @Transactional
+  public void upsertAndStreamSince() throws Exception {
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < 3; i++) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber(
+          (int) UTCInstant.today().minus(Duration.ofDays(1 + i)).get10MinutesSince1970());
+      tmpKey.setKeyData(
+          Base64.getEncoder().encodeToString(("testKey32Bytes1" + i).getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(144);
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+      keys.add(tmpKey);
+    }
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposees(keys, now, false);
+
+    var sortedKeys =
+        gaenDataService.getSortedExposedSince(now.minusDays(10), now.plusDays(1), true);
+    var streamedKeys = new ArrayList<GaenKey>();
+    gaenDataService.streamExposedSince(
+        now.minusDays(10),
+        now.plusDays(1),
+        true,
+        (keyData, rollingStartNumber, rollingPeriod) -> {
+          var key = new GaenKey();
+          key.setKeyDataBytes(keyData);
+          key.setRollingStartNumber(rollingStartNumber);
+          key.setRollingPeriod(rollingPeriod);
+          streamedKeys.add(key);
+        });
+
+    assertEquals(keys.size(), streamedKeys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(sortedKeys.get(i).getKeyData(), streamedKeys.get(i).getKeyData());
+      assertEquals(
+          sortedKeys.get(i).getRollingStartNumber(), streamedKeys.get(i).getRollingStartNumber());
+    }
+  }
+
   @Test
   @Transactional
   public void testNoEarlyReleaseSince() throws Exception {
@@ -192,6 +243,164 @@ public class GaenDataServiceTest {
     }
   }
 
+  @Test
+  @Transactional
+  public void testReleaseIndex() throws Exception {
+    var releaseIndex =
+        new KeyReleaseIndex(BUCKET_LENGTH, Duration.ofSeconds(10), Duration.ofMinutes(10));
+    var indexedDataService =
+        new JdbcGaenDataServiceImpl(
+            dbType, dataSource, BUCKET_LENGTH, Duration.ofHours(2), "CH", releaseIndex);
+    var outerNow = UTCInstant.now();
+    Clock twoOClock =
+        Clock.fixed(outerNow.atStartOfDay().plusHours(2).getInstant(), ZoneOffset.UTC);
+    Clock twelve01Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(12).plusMinutes(1).getInstant(), ZoneOffset.UTC);
+    Clock fourteenOClock =
+        Clock.fixed(outerNow.atStartOfDay().plusHours(14).getInstant(), ZoneOffset.UTC);
+    Clock fourteen01Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(14).plusMinutes(1).getInstant(), ZoneOffset.UTC);
+
+    try (var now = UTCInstant.setClock(twoOClock)) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber((int) now.atStartOfDay().get10MinutesSince1970());
+      tmpKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes--".getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(
+          (int) Duration.ofHours(10).dividedBy(GaenUnit.TenMinutes.getDuration()));
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+
+      indexedDataService.upsertExposees(List.of(tmpKey), now, false);
+    }
+    // the key is released at 14:00, see testNoEarlyRelease
+
+    // 12:01 the index is loaded and knows there are no keys yet
+    try (var now = UTCInstant.setClock(twelve01Clock)) {
+      UTCInstant publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+      // downloads never load the index
+      assertTrue(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, null, true, now));
+      indexedDataService.loadReleaseIndex(now);
+      assertFalse(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, null, true, now));
+    }
+
+    // 14:00 the index is not loaded for the new bucket before the settle time passed
+    try (var now = UTCInstant.setClock(fourteenOClock)) {
+      UTCInstant publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+      indexedDataService.loadReleaseIndex(now);
+      assertTrue(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, null, true, now));
+    }
+
+    // 14:01 the key is released, but only for its key date and origin
+    try (var now = UTCInstant.setClock(fourteen01Clock)) {
+      UTCInstant publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+      indexedDataService.loadReleaseIndex(now);
+      assertTrue(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, null, false, now));
+      assertTrue(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, now.atStartOfDay(), false, now));
+      assertFalse(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), publishedUntil, now.minusDays(1), false, now));
+      assertFalse(
+          indexedDataService.mayHaveExposed(publishedUntil, publishedUntil, null, true, now));
+      var returnedKeys =
+          indexedDataService.getSortedExposedSince(UTCInstant.midnight1970(), now, false);
+      assertEquals(1, returnedKeys.size());
+    }
+  }
+
+  @Test
+  @Transactional
+  public void testReleaseIndexSeesLateCommits() throws Exception {
+    var releaseIndex =
+        new KeyReleaseIndex(BUCKET_LENGTH, Duration.ofSeconds(10), Duration.ofMinutes(10));
+    var indexedDataService =
+        new JdbcGaenDataServiceImpl(
+            dbType, dataSource, BUCKET_LENGTH, Duration.ofHours(2), "CH", releaseIndex);
+    var outerNow = UTCInstant.now();
+    Clock eleven59Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(11).plusMinutes(59).getInstant(), ZoneOffset.UTC);
+    Clock twelve01Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(12).plusMinutes(1).getInstant(), ZoneOffset.UTC);
+    Clock fourteen01Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(14).plusMinutes(1).getInstant(), ZoneOffset.UTC);
+
+    // 12:01 the index is loaded up to 12:00, while an upload of 11:59 has not committed yet
+    try (var now = UTCInstant.setClock(twelve01Clock)) {
+      indexedDataService.loadReleaseIndex(now);
+      assertFalse(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), now.roundToBucketStart(BUCKET_LENGTH), null, true, now));
+    }
+    try (var now = UTCInstant.setClock(eleven59Clock)) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber((int) now.atStartOfDay().minusDays(1).get10MinutesSince1970());
+      tmpKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes--".getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(144);
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+      // received at 11:59:59.999 and released in the bucket of 10:00
+      indexedDataService.upsertExposees(List.of(tmpKey), now, false);
+    }
+
+    // 14:01 the next load reads the late key, although it was received before the previous load
+    try (var now = UTCInstant.setClock(fourteen01Clock)) {
+      indexedDataService.loadReleaseIndex(now);
+      assertTrue(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), now.roundToBucketStart(BUCKET_LENGTH), null, true, now));
+    }
+  }
+
+  @Test
+  @Transactional
+  public void testReleaseIndexUsesStoredReleaseTime() throws Exception {
+    // the key is stored with a time skew of 2h, and the index is read after it changed to 0
+    var releaseIndex =
+        new KeyReleaseIndex(BUCKET_LENGTH, Duration.ofSeconds(10), Duration.ofMinutes(10));
+    var indexedDataService =
+        new JdbcGaenDataServiceImpl(
+            dbType, dataSource, BUCKET_LENGTH, Duration.ZERO, "CH", releaseIndex);
+    var outerNow = UTCInstant.now();
+    Clock twoOClock =
+        Clock.fixed(outerNow.atStartOfDay().plusHours(2).getInstant(), ZoneOffset.UTC);
+    Clock twelve01Clock =
+        Clock.fixed(
+            outerNow.atStartOfDay().plusHours(12).plusMinutes(1).getInstant(), ZoneOffset.UTC);
+
+    try (var now = UTCInstant.setClock(twoOClock)) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber((int) now.atStartOfDay().get10MinutesSince1970());
+      tmpKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes--".getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(
+          (int) Duration.ofHours(10).dividedBy(GaenUnit.TenMinutes.getDuration()));
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+      gaenDataService.upsertExposees(List.of(tmpKey), now, false);
+    }
+
+    // 12:01 the key is still stored to be released at 14:00
+    try (var now = UTCInstant.setClock(twelve01Clock)) {
+      indexedDataService.loadReleaseIndex(now);
+      assertFalse(
+          indexedDataService.mayHaveExposed(
+              UTCInstant.midnight1970(), now.roundToBucketStart(BUCKET_LENGTH), null, true, now));
+    }
+  }
+
   @Test
   @Transactional
   public void upsertMultipleTimes() throws Exception {
@@ -225,6 +434,80 @@ public class GaenDataServiceTest {
     assertEquals(keys.get(1).getKeyData(), returnedKeys.get(0).getKeyData());
   }
 
+  @Test
+  @Transactional
+  public void upsertAlreadyStoredKeys() throws Exception {
+    var tmpKey = new GaenKey();
+    tmpKey.setRollingStartNumber(
+        (int) UTCInstant.today().minus(Duration.ofDays(1)).get10MinutesSince1970());
+    tmpKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes06".getBytes("UTF-8")));
+    tmpKey.setRollingPeriod(144);
+    tmpKey.setFake(0);
+    tmpKey.setTransmissionRiskLevel(0);
+    var tmpKey2 = new GaenKey();
+    tmpKey2.setRollingStartNumber(
+        (int) UTCInstant.today().minus(Duration.ofDays(1)).get10MinutesSince1970());
+    tmpKey2.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes07".getBytes("UTF-8")));
+    tmpKey2.setRollingPeriod(144);
+    tmpKey2.setFake(0);
+    tmpKey2.setTransmissionRiskLevel(0);
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposees(List.of(tmpKey), now, false);
+    // the stored key is skipped, the new one is inserted in the same batch
+    gaenDataService.upsertExposees(List.of(tmpKey, tmpKey2), now, false);
+    gaenDataService.upsertExposees(List.of(), now, false);
+
+    UTCInstant publishedUntil = now.roundToNextBucket(BUCKET_LENGTH);
+
+    var returnedKeys =
+        gaenDataService.getSortedExposedForKeyDate(
+            UTCInstant.today().minusDays(1), UTCInstant.midnight1970(), publishedUntil, now, true);
+
+    assertEquals(2, returnedKeys.size());
+    assertEquals(tmpKey2.getKeyData(), returnedKeys.get(0).getKeyData());
+    assertEquals(tmpKey.getKeyData(), returnedKeys.get(1).getKeyData());
+  }
+
+  @Test
+  @Transactional
+  public void upsertFromInteropsWithDifferentOrigins() throws Exception {
+    var keyDate = UTCInstant.today().minusDays(3);
+    var keys = new ArrayList<GaenKeyForInterops>();
+    for (var origin : List.of("DE", "IT", "DE")) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber((int) keyDate.get10MinutesSince1970());
+      tmpKey.setKeyData(
+          Base64.getEncoder().encodeToString(("interopsKey32By" + keys.size()).getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(144);
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+      var interopsKey = new GaenKeyForInterops();
+      interopsKey.setGaenKey(tmpKey);
+      interopsKey.setOrigin(origin);
+      keys.add(interopsKey);
+    }
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposeesFromInterops(keys, now, "batchTag");
+    // already stored keys are skipped
+    gaenDataService.upsertExposeesFromInterops(keys.subList(0, 1), now, "batchTag");
+
+    UTCInstant publishedUntil = now.roundToNextBucket(BUCKET_LENGTH);
+    var returnedKeys =
+        gaenDataService.getSortedExposedForKeyDate(
+            keyDate, UTCInstant.midnight1970(), publishedUntil, now, true);
+
+    assertEquals(
+        keys.stream().map(GaenKeyForInterops::getKeyData).collect(Collectors.toSet()),
+        returnedKeys.stream().map(GaenKey::getKeyData).collect(Collectors.toSet()));
+    assertEquals(3, returnedKeys.size());
+    // keys of other origins are only returned with the keys of federation gateways
+    assertTrue(
+        gaenDataService
+            .getSortedExposedForKeyDate(
+                keyDate, UTCInstant.midnight1970(), publishedUntil, now, false)
+            .isEmpty());
+  }
+
   @Test
   @Transactional
   public void getKeysWithCountries() throws UnsupportedEncodingException {
@@ -256,4 +539,108 @@ public class GaenDataServiceTest {
       assertEquals("CH", k.getOrigin());
     }
   }
+
+  @Test
+  @Transactional
+  public void getKeysForEfgsUpload() throws UnsupportedEncodingException {
+    var twoDaysAgo = (int) UTCInstant.today().minusDays(2).get10MinutesSince1970();
+    var shared = new GaenKey();
+    shared.setRollingStartNumber(twoDaysAgo);
+    shared.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes01".getBytes("UTF-8")));
+    shared.setRollingPeriod(144);
+    var notShared = new GaenKey();
+    notShared.setRollingStartNumber(twoDaysAgo);
+    notShared.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes02".getBytes("UTF-8")));
+    notShared.setRollingPeriod(144);
+    // not expired yet
+    var current = new GaenKey();
+    current.setRollingStartNumber((int) UTCInstant.today().get10MinutesSince1970());
+    current.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes03".getBytes("UTF-8")));
+    current.setRollingPeriod(144);
+    var receivedAt = UTCInstant.today().minusDays(1);
+    gaenDataService.upsertExposeesDelayed(List.of(shared, current), receivedAt, receivedAt, true);
+    gaenDataService.upsertExposeesDelayed(List.of(notShared), receivedAt, receivedAt, false);
+
+    var today = UTCInstant.today();
+    var uploadKeys = gaenDataService.getExposedForEfgsUpload(null, today);
+    assertEquals(1, uploadKeys.size());
+    var uploadKey = uploadKeys.get(0);
+    assertEquals(shared.getKeyData(), uploadKey.getKeyData());
+    assertEquals(twoDaysAgo, uploadKey.getRollingStartNumber());
+    assertEquals(144, uploadKey.getRollingPeriod());
+    assertEquals("CH", uploadKey.getOrigin());
+    assertEquals(receivedAt.getTimestamp(), uploadKey.getReceivedAt().getTimestamp());
+
+    // released yesterday at 02:00, when the key expired
+    var releaseAt = receivedAt.plusHours(2);
+    assertEquals(1, gaenDataService.getExposedForEfgsUpload(releaseAt, today).size());
+    assertTrue(gaenDataService.getExposedForEfgsUpload(releaseAt.plusSeconds(1), today).isEmpty());
+    assertTrue(gaenDataService.getExposedForEfgsUpload(null, releaseAt).isEmpty());
+
+    gaenDataService.setBatchTagForKeys(uploadKeys, "batchTag");
+    assertTrue(gaenDataService.getExposedForEfgsUpload(null, today).isEmpty());
+  }
+
+  @Test
+  @Transactional
+  public void setBatchTagsForSeveralBatches() throws UnsupportedEncodingException {
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < 5; i++) {
+      var key = new GaenKey();
+      key.setRollingStartNumber((int) UTCInstant.today().minusDays(2).get10MinutesSince1970());
+      key.setKeyData(
+          Base64.getEncoder().encodeToString(("testKey32Bytes0" + i).getBytes("UTF-8")));
+      key.setRollingPeriod(144);
+      keys.add(key);
+    }
+    var receivedAt = UTCInstant.today().minusDays(1);
+    gaenDataService.upsertExposeesDelayed(keys, receivedAt, receivedAt, true);
+    var today = UTCInstant.today();
+    var uploadKeys = gaenDataService.getExposedForEfgsUpload(null, today);
+    assertEquals(5, uploadKeys.size());
+
+    gaenDataService.setBatchTagsForKeys(
+        Map.of("batch1", uploadKeys.subList(0, 2), "batch2", uploadKeys.subList(2, 4)));
+    var remaining = gaenDataService.getExposedForEfgsUpload(null, today);
+    assertEquals(1, remaining.size());
+    assertEquals(uploadKeys.get(4).getKeyData(), remaining.get(0).getKeyData());
+
+    gaenDataService.setBatchTagForKeys(remaining, "batch3");
+    assertTrue(gaenDataService.getExposedForEfgsUpload(null, today).isEmpty());
+  }
+
+  @Test
+  @Transactional
+  public void upsertSeveralUploads() throws Exception {
+    var uploads = new ArrayList<ExposeeUpload>();
+    var now = UTCInstant.now();
+    for (int i = 0; i < 4; i++) {
+      var key = new GaenKey();
+      key.setRollingStartNumber((int) UTCInstant.today().minusDays(1).get10MinutesSince1970());
+      key.setKeyData(
+          Base64.getEncoder().encodeToString(("testKey32Bytes0" + i).getBytes("UTF-8")));
+      key.setRollingPeriod(144);
+      // the last upload is received in the previous bucket, and stored with its own received_at
+      var uploadNow = i == 3 ? now.minus(BUCKET_LENGTH) : now;
+      uploads.add(new ExposeeUpload(List.of(key), uploadNow, i != 1));
+    }
+    gaenDataService.upsertExposees(uploads);
+
+    var since = now.minusDays(10);
+    var until = now.plusDays(1);
+    assertEquals(4, gaenDataService.getSortedExposedSince(since, until, true).size());
+    assertEquals(4, gaenDataService.getSortedExposedSince(since, until, false).size());
+    assertEquals(3, gaenDataService.getExposedForEfgsUpload(null, until).size());
+    var previousBucket = now.roundToBucketStart(BUCKET_LENGTH).plusMinutes(1);
+    assertEquals(1, gaenDataService.getSortedExposedSince(since, previousBucket, true).size());
+  }
+
+  @Test
+  @Transactional
+  public void redeemUUIDOnlyOnce() {
+    var uuid = "bc77d983-2359-48e8-835a-de673fe53ccb";
+    assertTrue(redeemDataService.checkAndInsertPublishUUID(uuid));
+    assertFalse(redeemDataService.checkAndInsertPublishUUID(uuid));
+    assertTrue(redeemDataService.checkAndInsertPublishUUID("2c35e6f6-4e0c-4b4e-8d35-4d5b3d8a4c01"));
+  }
 }
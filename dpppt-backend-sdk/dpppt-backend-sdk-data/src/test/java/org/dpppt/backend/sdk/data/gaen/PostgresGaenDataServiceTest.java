@@ -22,15 +22,18 @@ import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.config.FlyWayConfig;
 import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
 import org.dpppt.backend.sdk.data.config.PostgresDataConfig;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.junit.After;
@@ -69,6 +72,7 @@ public class PostgresGaenDataServiceTest {
   public void tearDown() throws SQLException {
     executeSQL("truncate table t_exposed");
     executeSQL("truncate table t_redeem_uuid");
+    executeSQL("truncate table t_gaen_exposed");
   }
 
   @Test
@@ -148,9 +152,10 @@ public class PostgresGaenDataServiceTest {
   @Test
   public void cleanup() throws SQLException {
     var now = UTCInstant.now();
-    var receivedAt = now.minusDays(21);
+    // keys are dropped by day of receipt, once the whole day is before the retention time
+    var receivedAt = now.minusDays(22);
     Connection connection = dataSource.getConnection();
-    String key = "someKey";
+    String key = "c29tZUtleXNvbWVLZXkxNg==";
     insertExposeeWithReceivedAtAndKeyDate(
         receivedAt.getInstant(), receivedAt.minusDays(1).getInstant(), key);
 
@@ -168,6 +173,82 @@ public class PostgresGaenDataServiceTest {
     assertTrue(sortedExposedForDay.isEmpty());
   }
 
+  @Test
+  public void cleanupKeepsKeysForRetentionPeriodAfterReceipt() throws SQLException {
+    var now = UTCInstant.now();
+    // a key with an old key date, which was received recently
+    var keyDate = UTCInstant.today().minusDays(25);
+    String key = "b2xkS2V5RGF0ZUtleTE2IQ==";
+    insertExposeeWithReceivedAtAndKeyDate(
+        now.minusDays(1).getInstant(), keyDate.getInstant(), key);
+
+    gaenDataService.cleanDB(Duration.ofDays(21));
+
+    var returnedKeys =
+        gaenDataService.getSortedExposedForKeyDate(
+            keyDate, UTCInstant.midnight1970(), now.plusDays(1), now, true);
+    assertEquals(1, returnedKeys.size());
+    assertEquals(key, returnedKeys.get(0).getKeyData());
+  }
+
+  @Test
+  public void keysAreUniqueAcrossPartitions() throws Exception {
+    var key = new GaenKey();
+    key.setRollingStartNumber((int) UTCInstant.today().minusDays(1).get10MinutesSince1970());
+    key.setKeyData(Base64.getEncoder().encodeToString("uniqueKey32Byte-".getBytes("UTF-8")));
+    key.setRollingPeriod(144);
+    key.setFake(0);
+    var sameKeyOtherDate = new GaenKey();
+    sameKeyOtherDate.setRollingStartNumber(
+        (int) UTCInstant.today().minusDays(2).get10MinutesSince1970());
+    sameKeyOtherDate.setKeyData(key.getKeyData());
+    sameKeyOtherDate.setRollingPeriod(144);
+    sameKeyOtherDate.setFake(0);
+
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposees(List.of(key), now, false);
+    // received on another day, i.e. in another partition
+    gaenDataService.upsertExposees(List.of(key, sameKeyOtherDate), now.plusDays(1), false);
+
+    var returnedKeys =
+        gaenDataService.getSortedExposedSince(UTCInstant.midnight1970(), now.plusDays(3), true);
+    assertEquals(1, returnedKeys.size());
+    assertEquals(key.getRollingStartNumber(), returnedKeys.get(0).getRollingStartNumber());
+  }
+
+  @Test
+  public void keysWithoutPartitionAreMovedIntoIt() throws Exception {
+    var now = UTCInstant.now();
+    var receivedAt = now.plusDays(10);
+    var keyDate = UTCInstant.today().minusDays(1);
+    String key = "bm9QYXJ0aXRpb25LZXkxNg==";
+    insertExposeeWithReceivedAtAndKeyDate(
+        receivedAt.getInstant(), keyDate.getInstant(), key, false);
+    assertEquals(1, count("t_gaen_exposed_default"));
+
+    executeSQL(
+        "select create_gaen_exposed_partition('" + receivedAt.getLocalDate().toString() + "')");
+    assertEquals(0, count("t_gaen_exposed_default"));
+    var partition =
+        "t_gaen_exposed_" + receivedAt.getLocalDate().format(DateTimeFormatter.BASIC_ISO_DATE);
+    assertEquals(1, count(partition));
+  }
+
+  @Test
+  public void cleanupDropsKeysOfDefaultPartition() throws Exception {
+    var receivedAt = UTCInstant.now().minusDays(25);
+    var keyDate = UTCInstant.today().minusDays(26);
+    insertExposeeWithReceivedAtAndKeyDate(
+        receivedAt.getInstant(), keyDate.getInstant(), "c3RyYXlEZWZhdWx0S2V5IQ==", false);
+    assertEquals(1, count("t_gaen_exposed_default"));
+
+    gaenDataService.cleanDB(Duration.ofDays(21));
+
+    // moved into the partition of its day, and dropped with it
+    assertEquals(0, count("t_gaen_exposed_default"));
+    assertEquals(0, count("t_gaen_exposed"));
+  }
+
   @Test
   public void upsert() throws Exception {
     var tmpKey = new GaenKey();
@@ -197,11 +278,50 @@ public class PostgresGaenDataServiceTest {
     assertEquals(keys.get(0).getKeyData(), returnedKeys.get(0).getKeyData());
   }
 
+  @Test
+  public void upsertFromInteropsWithDifferentOrigins() throws Exception {
+    var keyDate = UTCInstant.today().minusDays(3);
+    var keys = new ArrayList<GaenKeyForInterops>();
+    for (var origin : List.of("DE", "IT", "DE")) {
+      var tmpKey = new GaenKey();
+      tmpKey.setRollingStartNumber((int) keyDate.get10MinutesSince1970());
+      tmpKey.setKeyData(
+          Base64.getEncoder().encodeToString(("interopsKey32By" + keys.size()).getBytes("UTF-8")));
+      tmpKey.setRollingPeriod(144);
+      tmpKey.setFake(0);
+      tmpKey.setTransmissionRiskLevel(0);
+      var interopsKey = new GaenKeyForInterops();
+      interopsKey.setGaenKey(tmpKey);
+      interopsKey.setOrigin(origin);
+      keys.add(interopsKey);
+    }
+    var now = UTCInstant.now();
+    gaenDataService.upsertExposeesFromInterops(keys, now, "batchTag");
+    // already stored keys are skipped
+    gaenDataService.upsertExposeesFromInterops(keys.subList(0, 1), now, "batchTag");
+
+    UTCInstant publishedUntil = now.roundToNextBucket(BATCH_LENGTH);
+    var returnedKeys =
+        gaenDataService.getSortedExposedForKeyDate(
+            keyDate, UTCInstant.midnight1970(), publishedUntil, now, true);
+
+    assertEquals(
+        keys.stream().map(GaenKeyForInterops::getKeyData).collect(Collectors.toSet()),
+        returnedKeys.stream().map(GaenKey::getKeyData).collect(Collectors.toSet()));
+    assertEquals(3, returnedKeys.size());
+    // keys of other origins are only returned with the keys of federation gateways
+    assertTrue(
+        gaenDataService
+            .getSortedExposedForKeyDate(
+                keyDate, UTCInstant.midnight1970(), publishedUntil, now, false)
+            .isEmpty());
+  }
+
   @Test
   public void testBatchReleaseTime() throws SQLException {
     var receivedAt = UTCInstant.parseDateTime("2014-01-28T00:00:00");
     var now = UTCInstant.now();
-    String key = "key555";
+    String key = "a2V5NTU1a2V5NTU1a2V5NQ==";
     insertExposeeWithReceivedAtAndKeyDate(
         receivedAt.getInstant(), receivedAt.minus(Duration.ofDays(2)).getInstant(), key);
 
@@ -223,19 +343,47 @@ public class PostgresGaenDataServiceTest {
 
   private void insertExposeeWithReceivedAtAndKeyDate(
       Instant receivedAt, Instant keyDate, String key) throws SQLException {
+    insertExposeeWithReceivedAtAndKeyDate(receivedAt, keyDate, key, true);
+  }
+
+  private void insertExposeeWithReceivedAtAndKeyDate(
+      Instant receivedAt, Instant keyDate, String key, boolean createPartition)
+      throws SQLException {
     Connection connection = dataSource.getConnection();
+    int rollingStartNumber = (int) GaenUnit.TenMinutes.between(Instant.ofEpochMilli(0), keyDate);
+    if (createPartition) {
+      PreparedStatement createPartitionStatement =
+          connection.prepareStatement("select create_gaen_exposed_partition(cast(? as date))");
+      createPartitionStatement.setString(
+          1, UTCInstant.ofEpochMillis(receivedAt.toEpochMilli()).getLocalDate().toString());
+      createPartitionStatement.execute();
+    }
     String sql =
         "into t_gaen_exposed (pk_exposed_id, key, received_at, rolling_start_number,"
-            + " rolling_period, origin, share_with_federation_gateway) values (100, ?, ?, ?, 144,"
-            + " 'CH', 'true')";
+            + " rolling_period, origin, share_with_federation_gateway, release_at) values (100, ?,"
+            + " ?, ?, 144, 'CH', 'true', ?)";
     PreparedStatement preparedStatement = connection.prepareStatement("insert " + sql);
-    preparedStatement.setString(1, key);
+    preparedStatement.setBytes(1, Base64.getDecoder().decode(key));
     preparedStatement.setTimestamp(2, new Timestamp(receivedAt.toEpochMilli()));
-    preparedStatement.setInt(
-        3, (int) GaenUnit.TenMinutes.between(Instant.ofEpochMilli(0), keyDate));
+    preparedStatement.setInt(3, rollingStartNumber);
+    // max(received_at, expiry), with the default time skew of 2 hours
+    var expiry =
+        UTCInstant.of(rollingStartNumber + 144, GaenUnit.TenMinutes).plus(Duration.ofHours(2));
+    preparedStatement.setTimestamp(
+        4, new Timestamp(Math.max(receivedAt.toEpochMilli(), expiry.getTimestamp())));
     preparedStatement.execute();
   }
 
+  private int count(String table) throws SQLException {
+    try (final Connection connection = dataSource.getConnection();
+        final PreparedStatement preparedStatement =
+            connection.prepareStatement("select count(*) from " + table)) {
+      var resultSet = preparedStatement.executeQuery();
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
   protected void executeSQL(String sql) throws SQLException {
     try (final Connection connection = dataSource.getConnection();
         final PreparedStatement preparedStatement = connection.prepareStatement(sql); ) {
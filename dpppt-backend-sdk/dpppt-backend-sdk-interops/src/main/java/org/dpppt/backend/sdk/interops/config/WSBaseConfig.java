@@ -109,6 +109,7 @@ public abstract class WSBaseConfig implements WebMvcConfigurer {
     return new EfgsHubSyncer(
         efgsClient,
         Duration.ofDays(retentionDays),
+        Duration.ofMillis(releaseBucketDuration),
         gaenDataService,
         syncLogDataService,
         interopsInsertManager);
@@ -12,8 +12,6 @@ package org.dpppt.backend.sdk.interops.insertmanager;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
 import org.dpppt.backend.sdk.interops.insertmanager.insertionfilters.InteropsKeyInsertionFilter;
 import org.dpppt.backend.sdk.interops.insertmanager.insertionmodifier.InteropsKeyInsertionModifier;
@@ -64,18 +62,7 @@ public class InteropsInsertManager {
     }
     var internalKeys = modifyAndFilter(keys, now);
     if (!internalKeys.isEmpty()) {
-      for (Entry<String, List<GaenKeyForInterops>> keysForOrigin :
-          internalKeys.stream()
-              .collect(Collectors.groupingBy(GaenKeyForInterops::getOrigin))
-              .entrySet()) {
-        dataService.upsertExposeeFromInterops(
-            keysForOrigin.getValue().stream()
-                .map(GaenKeyForInterops::getGaenKey)
-                .collect(Collectors.toList()),
-            now,
-            keysForOrigin.getKey(),
-            batchTag);
-      }
+      dataService.upsertExposeesFromInterops(internalKeys, now, batchTag);
     }
   }
 
@@ -10,7 +10,6 @@
 
 package org.dpppt.backend.sdk.interops.insertmanager.insertionfilters;
 
-import java.util.Base64;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
@@ -28,17 +27,12 @@ public class AssertKeyFormat implements InteropsKeyInsertionFilter {
   @Override
   public List<GaenKeyForInterops> filter(UTCInstant now, List<GaenKeyForInterops> content) {
     return content.stream()
-        .filter(key -> isValidKeyFormat(key.getKeyData()))
+        .filter(key -> isValidKeyFormat(key.getKeyDataBytes()))
         .collect(Collectors.toList());
   }
 
-  private boolean isValidKeyFormat(String value) {
-    try {
-      byte[] key = Base64.getDecoder().decode(value);
-      return key.length == gaenKeySizeBytes;
-    } catch (Exception e) {
-      return false;
-    }
+  private boolean isValidKeyFormat(byte[] key) {
+    return key != null && key.length == gaenKeySizeBytes;
   }
 
   @Override
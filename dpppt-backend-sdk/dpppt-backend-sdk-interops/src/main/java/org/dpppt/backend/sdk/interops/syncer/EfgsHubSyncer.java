@@ -15,7 +15,10 @@ import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.apache.commons.codec.binary.Base64;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
 import org.dpppt.backend.sdk.data.interops.SyncLogDataService;
@@ -29,6 +32,8 @@ import org.dpppt.backend.sdk.model.interops.SyncState;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
 
 /**
  * Interops syncer for the EFGS HUB:
@@ -43,8 +48,13 @@ public class EfgsHubSyncer {
 
   private static int MAX_UPLOAD_BATCH_SIZE = 4000;
 
+  // responses to an upload which mean that the batch is invalid, and not that it failed
+  private static final Set<HttpStatus> REJECTED_BATCH_STATUSES =
+      EnumSet.of(HttpStatus.BAD_REQUEST, HttpStatus.UNPROCESSABLE_ENTITY);
+
   private final EfgsClient efgsClient;
   private final Duration retentionPeriod;
+  private final Duration releaseBucketDuration;
   private final GaenDataService gaenDataService;
   private final SyncLogDataService syncLogDataService;
   private final InteropsInsertManager insertManager;
@@ -52,11 +62,13 @@ public class EfgsHubSyncer {
   public EfgsHubSyncer(
       EfgsClient efgsClient,
       Duration retentionPeriod,
+      Duration releaseBucketDuration,
       GaenDataService gaenDataService,
       SyncLogDataService syncLogDataService,
       InteropsInsertManager interopsInsertManager) {
     this.efgsClient = efgsClient;
     this.retentionPeriod = retentionPeriod;
+    this.releaseBucketDuration = releaseBucketDuration;
     this.gaenDataService = gaenDataService;
     this.syncLogDataService = syncLogDataService;
     this.insertManager = interopsInsertManager;
@@ -84,12 +96,21 @@ public class EfgsHubSyncer {
   private void upload() {
     logger.info("Start upload");
 
-    List<GaenKeyForInterops> keysToUpload = gaenDataService.getExposedForEfgsUpload();
-    logger.info("Found " + keysToUpload.size() + " keys to upload");
+    // only the keys released since the last run in which no batch failed are looked at. A key may
+    // be committed a bit after its release time, so the last bucket before the watermark is looked
+    // at again.
+    String gatewayId = efgsClient.getGatewayId();
+    UTCInstant watermark = syncLogDataService.getUploadWatermark(gatewayId);
+    UTCInstant releasedSince = watermark == null ? null : watermark.minus(releaseBucketDuration);
+    UTCInstant releasedUntil = UTCInstant.now().roundToBucketStart(releaseBucketDuration);
+    List<GaenKeyForInterops> keysToUpload =
+        gaenDataService.getExposedForEfgsUpload(releasedSince, releasedUntil);
+    logger.info("Found " + keysToUpload.size() + " keys to upload since " + releasedSince);
 
     byte[] hash = new byte[4];
     SECURE_RANDOM.nextBytes(hash);
     int batchCounter = 0;
+    boolean batchFailed = false;
     for (List<GaenKeyForInterops> batchToUpload :
         Lists.partition(keysToUpload, MAX_UPLOAD_BATCH_SIZE)) {
       UTCInstant actionStart = UTCInstant.now();
@@ -100,17 +121,61 @@ public class EfgsHubSyncer {
         logger.info("uploading batch (size: {}) with batchTag: {}", batchToUpload.size(), batchTag);
         List<GaenKeyForInterops> uploadedKeys = efgsClient.upload(batchToUpload, batchTag);
         gaenDataService.setBatchTagForKeys(uploadedKeys, batchTag);
+        if (uploadedKeys.size() < batchToUpload.size()) {
+          logFailedKeys(batchToUpload, uploadedKeys, batchTag);
+          batchFailed = true;
+        }
+      } catch (HttpClientErrorException e) {
+        success = false;
+        if (REJECTED_BATCH_STATUSES.contains(e.getStatusCode())) {
+          // the gateway found the batch itself invalid, sending it again would not change that
+          logger.error(
+              "batchTag '{}': batch of {} key(s) rejected with {}, the keys are not retried",
+              batchTag,
+              batchToUpload.size(),
+              e.getStatusCode(),
+              e);
+        } else {
+          // e.g. authentication or rate limiting, which is fixed on our or the gateway's side
+          logger.error("batchTag '{}': upload failed with {}", batchTag, e.getStatusCode(), e);
+          batchFailed = true;
+        }
       } catch (Exception e) {
         logger.error("Exception uploading keys:", e);
         success = false;
+        batchFailed = true;
       } finally {
         logUpload(actionStart, batchTag, success);
       }
       batchCounter++;
     }
+    // Batches the gateway rejected as invalid are skipped, such that they cannot hold back the
+    // watermark. Keys which failed for any other reason are retried in the next run.
+    if (!batchFailed) {
+      syncLogDataService.setUploadWatermark(gatewayId, releasedUntil);
+    } else {
+      logger.warn("Not all batches uploaded, upload watermark stays at {}", watermark);
+    }
     logger.info("Upload done");
   }
 
+  private void logFailedKeys(
+      List<GaenKeyForInterops> batchToUpload,
+      List<GaenKeyForInterops> uploadedKeys,
+      String batchTag) {
+    Set<Integer> uploadedIds =
+        uploadedKeys.stream().map(GaenKeyForInterops::getId).collect(Collectors.toSet());
+    for (GaenKeyForInterops key : batchToUpload) {
+      if (!uploadedIds.contains(key.getId())) {
+        logger.warn(
+            "batchTag '{}': key with id {} (received at {}) failed, it is retried in the next run",
+            batchTag,
+            key.getId(),
+            key.getReceivedAt());
+      }
+    }
+  }
+
   public void download(LocalDate today) {
     LocalDate dateToDownload = today.atStartOfDay().minus(retentionPeriod).toLocalDate();
     logger.info("Start download: " + dateToDownload + " - " + today);
@@ -23,7 +23,6 @@ import java.security.cert.CertificateException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.bouncycastle.cms.CMSException;
@@ -228,7 +227,7 @@ public class EfgsClient {
 
   private DiagnosisKey mapToEfgsKey(GaenKeyForInterops gaenKey) {
     return EfgsProto.DiagnosisKey.newBuilder()
-        .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(gaenKey.getKeyData())))
+        .setKeyData(ByteString.copyFrom(gaenKey.getKeyDataBytes()))
         .setRollingStartIntervalNumber(gaenKey.getRollingStartNumber())
         .setRollingPeriod(gaenKey.getRollingPeriod())
         .setTransmissionRiskLevel(defaultTransmissionRiskLevel)
@@ -255,8 +254,7 @@ public class EfgsClient {
   private GaenKeyForInterops mapToGaenKeyForInterops(DiagnosisKey diagnosisKey) {
     GaenKeyForInterops keyForInterops = new GaenKeyForInterops();
     keyForInterops.setGaenKey(new GaenKey());
-    keyForInterops.setKeyData(
-        java.util.Base64.getEncoder().encodeToString(diagnosisKey.getKeyData().toByteArray()));
+    keyForInterops.setKeyDataBytes(diagnosisKey.getKeyData().toByteArray());
     keyForInterops.setRollingStartNumber(diagnosisKey.getRollingStartIntervalNumber());
     keyForInterops.setRollingPeriod(diagnosisKey.getRollingPeriod());
     keyForInterops.setTransmissionRiskLevel(diagnosisKey.getTransmissionRiskLevel());
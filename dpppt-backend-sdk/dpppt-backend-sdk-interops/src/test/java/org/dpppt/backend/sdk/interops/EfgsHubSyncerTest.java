@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.interops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.data.interops.SyncLogDataService;
+import org.dpppt.backend.sdk.interops.config.FlyWayConfig;
+import org.dpppt.backend.sdk.interops.config.GaenDataServiceConfig;
+import org.dpppt.backend.sdk.interops.config.InteropsInsertManagerConfig;
+import org.dpppt.backend.sdk.interops.config.StandaloneDataConfig;
+import org.dpppt.backend.sdk.interops.config.SyncLogDataServiceConfig;
+import org.dpppt.backend.sdk.interops.insertmanager.InteropsInsertManager;
+import org.dpppt.backend.sdk.interops.model.GaenKeyBatch;
+import org.dpppt.backend.sdk.interops.syncer.EfgsHubSyncer;
+import org.dpppt.backend.sdk.interops.syncer.efgs.EfgsClient;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.web.client.HttpClientErrorException;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {
+      StandaloneDataConfig.class,
+      FlyWayConfig.class,
+      GaenDataServiceConfig.class,
+      SyncLogDataServiceConfig.class,
+      InteropsInsertManagerConfig.class
+    })
+public class EfgsHubSyncerTest {
+
+  private static final Duration RELEASE_BUCKET_DURATION = Duration.ofHours(2);
+
+  private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+  @Autowired private GaenDataService gaenDataService;
+
+  @Autowired private SyncLogDataService syncLogDataService;
+
+  @Autowired private InteropsInsertManager interopsInsertManager;
+
+  @Test
+  public void testFailedKeysAreRetried() {
+    insertKeys(3);
+    EfgsClient efgsClient = mockEfgsClient("gateway-failed-keys");
+    // the gateway fails to store the first key
+    when(efgsClient.upload(anyList(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              List<GaenKeyForInterops> batch = invocation.getArgument(0);
+              return batch.subList(1, batch.size());
+            });
+
+    createSyncer(efgsClient).sync();
+
+    assertNull(syncLogDataService.getUploadWatermark("gateway-failed-keys"));
+  }
+
+  @Test
+  public void testRejectedBatchDoesNotHoldBackWatermark() {
+    insertKeys(3);
+    EfgsClient efgsClient = mockEfgsClient("gateway-rejected-batch");
+    when(efgsClient.upload(anyList(), anyString()))
+        .thenThrow(HttpClientErrorException.create(HttpStatus.BAD_REQUEST, "", null, null, null));
+
+    var releasedUntil = UTCInstant.now().roundToBucketStart(RELEASE_BUCKET_DURATION);
+    createSyncer(efgsClient).sync();
+
+    assertEquals(
+        releasedUntil.getTimestamp(),
+        syncLogDataService.getUploadWatermark("gateway-rejected-batch").getTimestamp());
+  }
+
+  @Test
+  public void testUnauthorizedBatchIsRetried() {
+    insertKeys(3);
+    EfgsClient efgsClient = mockEfgsClient("gateway-unauthorized-batch");
+    when(efgsClient.upload(anyList(), anyString()))
+        .thenThrow(HttpClientErrorException.create(HttpStatus.FORBIDDEN, "", null, null, null));
+
+    createSyncer(efgsClient).sync();
+
+    assertNull(syncLogDataService.getUploadWatermark("gateway-unauthorized-batch"));
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() {
+    insertKeys(3);
+    EfgsClient efgsClient = mockEfgsClient("gateway-failed-batch");
+    when(efgsClient.upload(anyList(), anyString()))
+        .thenThrow(new RuntimeException("connection reset"));
+
+    createSyncer(efgsClient).sync();
+
+    assertNull(syncLogDataService.getUploadWatermark("gateway-failed-batch"));
+  }
+
+  private EfgsHubSyncer createSyncer(EfgsClient efgsClient) {
+    return new EfgsHubSyncer(
+        efgsClient,
+        Duration.ofDays(14),
+        RELEASE_BUCKET_DURATION,
+        gaenDataService,
+        syncLogDataService,
+        interopsInsertManager);
+  }
+
+  private EfgsClient mockEfgsClient(String gatewayId) {
+    EfgsClient efgsClient = mock(EfgsClient.class);
+    when(efgsClient.getGatewayId()).thenReturn(gatewayId);
+    when(efgsClient.download(any(), any()))
+        .thenAnswer(invocation -> new GaenKeyBatch(invocation.getArgument(0)));
+    return efgsClient;
+  }
+
+  private void insertKeys(int numOfKeysToCreate) {
+    List<GaenKey> keys = new ArrayList<>();
+    for (int i = 0; i < numOfKeysToCreate; i++) {
+      byte[] bytes = new byte[16];
+      SECURE_RANDOM.nextBytes(bytes);
+      GaenKey key = new GaenKey();
+      key.setKeyData(Base64.getEncoder().encodeToString(bytes));
+      key.setRollingStartNumber((int) UTCInstant.today().minusDays(2).get10MinutesSince1970());
+      key.setRollingPeriod(144);
+      key.setTransmissionRiskLevel(0);
+      key.setFake(0);
+      keys.add(key);
+    }
+    gaenDataService.upsertExposees(keys, UTCInstant.now().minusDays(1), true);
+  }
+}
@@ -86,6 +86,7 @@ public class SyncTest {
         new EfgsHubSyncer(
             new EfgsClient(getEfgsGatewayConfig()),
             Duration.ofDays(14),
+            Duration.ofHours(2),
             gaenDataService,
             syncLogDataService,
             interopsInsertManager);
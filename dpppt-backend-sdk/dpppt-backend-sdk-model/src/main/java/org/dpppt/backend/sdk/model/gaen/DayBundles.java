@@ -0,0 +1,43 @@
+package org.dpppt.backend.sdk.model.gaen;
+
+import ch.ubique.openapi.docannotations.Documentation;
+import java.util.List;
+
+@Documentation(
+    description =
+        "DayBundles lists the key bundles of all closed days in the retention period.\n"
+            + "The bundles are stored as relative URLs to the base URL and never change, so they"
+            + " can be cached.\n"
+            + "Keys published after the last day are retrieved with lastKeyBundleTag, as usual.")
+public class DayBundles {
+
+  @Documentation(
+      description = "Relative URLs for the bundles of the closed days, oldest first",
+      example = "['/v2/gaen/exposed/days/2020-06-26', '/v2/gaen/exposed/days/2020-06-27']")
+  private List<String> relativeUrls;
+
+  @Documentation(
+      description =
+          "The key bundle tag to request the keys published after the last day with, in"
+              + " milliseconds since the Unix epoch (1970-01-01)",
+      example = "1593302400000")
+  private Long lastKeyBundleTag;
+
+  public List<String> getRelativeUrls() {
+    return relativeUrls;
+  }
+
+  public Long getLastKeyBundleTag() {
+    return lastKeyBundleTag;
+  }
+
+  public DayBundles setRelativeUrls(List<String> relativeUrls) {
+    this.relativeUrls = relativeUrls;
+    return this;
+  }
+
+  public DayBundles setLastKeyBundleTag(Long lastKeyBundleTag) {
+    this.lastKeyBundleTag = lastKeyBundleTag;
+    return this;
+  }
+}
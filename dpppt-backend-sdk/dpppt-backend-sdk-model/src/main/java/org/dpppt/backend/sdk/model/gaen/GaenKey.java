@@ -1,6 +1,8 @@
 package org.dpppt.backend.sdk.model.gaen;
 
 import ch.ubique.openapi.docannotations.Documentation;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.util.Base64;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -18,6 +20,10 @@ public class GaenKey {
   @Documentation(description = "Represents the 16-byte Temporary Exposure Key in base64")
   private String keyData;
 
+  // the decoded key data, as stored in the database. Either representation is derived from the
+  // other on first use, such that a key is decoded or encoded at most once.
+  @JsonIgnore private byte[] keyDataBytes;
+
   @NotNull
   @Documentation(
       description =
@@ -54,11 +60,38 @@ public class GaenKey {
   }
 
   public String getKeyData() {
+    if (this.keyData == null && this.keyDataBytes != null) {
+      this.keyData = Base64.getEncoder().encodeToString(this.keyDataBytes);
+    }
     return this.keyData;
   }
 
   public void setKeyData(String keyData) {
     this.keyData = keyData;
+    this.keyDataBytes = null;
+  }
+
+  /**
+   * Returns the raw Temporary Exposure Key.
+   *
+   * @return the decoded key data, or null if the key data is not set or not valid base64
+   */
+  @JsonIgnore
+  public byte[] getKeyDataBytes() {
+    if (this.keyDataBytes == null && this.keyData != null) {
+      try {
+        this.keyDataBytes = Base64.getDecoder().decode(this.keyData);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return this.keyDataBytes;
+  }
+
+  @JsonIgnore
+  public void setKeyDataBytes(byte[] keyDataBytes) {
+    this.keyDataBytes = keyDataBytes;
+    this.keyData = null;
   }
 
   public Integer getRollingStartNumber() {
@@ -1,6 +1,7 @@
 package org.dpppt.backend.sdk.model.gaen;
 
 import ch.ubique.openapi.docannotations.Documentation;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import javax.validation.constraints.NotNull;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 
@@ -85,6 +86,16 @@ public class GaenKeyForInterops {
     gaenKey.setKeyData(keyData);
   }
 
+  @JsonIgnore
+  public byte[] getKeyDataBytes() {
+    return gaenKey.getKeyDataBytes();
+  }
+
+  @JsonIgnore
+  public void setKeyDataBytes(byte[] keyDataBytes) {
+    gaenKey.setKeyDataBytes(keyDataBytes);
+  }
+
   public Integer getRollingStartNumber() {
     return gaenKey.getRollingStartNumber();
   }
@@ -226,7 +226,8 @@ public class UTCInstant implements Closeable {
   }
 
   public long get10MinutesSince1970() {
-    return getDuration(midnight1970()).dividedBy(GaenUnit.TenMinutes.getDuration());
+    // truncates towards zero like Duration.dividedBy, without its BigDecimal arithmetic
+    return timestamp / GaenUnit.TenMinutes.getDuration().toMillis();
   }
 
   public boolean hasSameDateAs(UTCInstant otherInstant) {
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.cache;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache.BundleKey;
+import org.dpppt.backend.sdk.ws.security.signature.CompactKeyList;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one signed key bundle per closed day of the retention period, for the initial sync of v2
+ * clients. Instead of one bundle with all keys of the retention period, such a client downloads
+ * the bundles of the closed days, which never change, and then only the keys published since the
+ * last closed day.
+ *
+ * <p>A day bundle contains all keys released in [day, day + 1). A day is closed one release bucket
+ * after it ended, to make sure all keys received in its last bucket are stored. Only full days
+ * after the start of the retention period are listed. The bundles are built on first request or by
+ * {@link #prebuild(UTCInstant)}, and kept until their day falls out of the retention period.
+ */
+public class DailyKeyBundleCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(DailyKeyBundleCache.class);
+
+  private final GaenDataService dataService;
+  private final ProtoSignature gaenSigner;
+  private final Duration releaseBucketDuration;
+  private final Duration retentionPeriod;
+
+  private final Map<BundleKey, Optional<ProtoSignatureWrapper>> bundles =
+      new ConcurrentHashMap<>();
+  private final Object buildLock = new Object();
+
+  public DailyKeyBundleCache(
+      GaenDataService dataService,
+      ProtoSignature gaenSigner,
+      Duration releaseBucketDuration,
+      Duration retentionPeriod) {
+    if (Duration.ofDays(1).toMillis() % releaseBucketDuration.toMillis() != 0) {
+      throw new IllegalArgumentException(
+          "Release bucket duration must divide a day: " + releaseBucketDuration);
+    }
+    this.dataService = dataService;
+    this.gaenSigner = gaenSigner;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.retentionPeriod = retentionPeriod;
+  }
+
+  /**
+   * Returns the closed days of the retention period, oldest first.
+   *
+   * @param now time of the request
+   */
+  public List<UTCInstant> getClosedDays(UTCInstant now) {
+    var days = new ArrayList<UTCInstant>();
+    var closedUntil = now.minus(releaseBucketDuration);
+    for (var day = getFirstDay(now);
+        !closedUntil.isBeforeEpochMillisOf(day.plusDays(1));
+        day = day.plusDays(1)) {
+      days.add(day);
+    }
+    return days;
+  }
+
+  /**
+   * Returns the key bundle tag of the keys published after the closed days.
+   *
+   * @param now time of the request
+   */
+  public UTCInstant getLastKeyBundleTag(UTCInstant now) {
+    var days = getClosedDays(now);
+    return days.isEmpty() ? getFirstDay(now) : days.get(days.size() - 1).plusDays(1);
+  }
+
+  /**
+   * Returns whether the given day is a closed day of the retention period.
+   *
+   * @param day must be midnight UTC
+   * @param now time of the request
+   */
+  public boolean isClosedDay(UTCInstant day, UTCInstant now) {
+    return !day.isBeforeEpochMillisOf(getFirstDay(now))
+        && !now.minus(releaseBucketDuration).isBeforeEpochMillisOf(day.plusDays(1));
+  }
+
+  /**
+   * Returns the bundle of the given closed day, building it if necessary.
+   *
+   * @param day must be a closed day, see {@link #isClosedDay(UTCInstant, UTCInstant)}
+   * @param withFederationGateway whether keys of federation gateways are included
+   * @return the bundle, or an empty {@link Optional} if no keys were released on that day
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public Optional<ProtoSignatureWrapper> get(UTCInstant day, boolean withFederationGateway)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var key = BundleKey.forDay(day, withFederationGateway);
+    var bundle = bundles.get(key);
+    if (bundle != null) {
+      return bundle;
+    }
+    // days are built one at a time, lookups of built days are not blocked
+    synchronized (buildLock) {
+      bundle = bundles.get(key);
+      if (bundle == null) {
+        bundle = build(key);
+        bundles.put(key, bundle);
+      }
+      return bundle;
+    }
+  }
+
+  private Optional<ProtoSignatureWrapper> build(BundleKey key)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var start = key.getPublishedAfter();
+    var end = key.getPublishedUntil();
+    if (!dataService.mayHaveExposed(
+        start, end, null, key.isWithFederationGateway(), UTCInstant.now())) {
+      return Optional.empty();
+    }
+    // with now at the end of the day, all keys released during the day are returned
+    var keys = new CompactKeyList();
+    dataService.streamExposedSince(start, end, key.isWithFederationGateway(), keys);
+    logger.info("Built bundle {} with {} keys", key, keys.size());
+    if (keys.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(gaenSigner.getPayloadV2(keys, key.toString()));
+  }
+
+  /**
+   * Builds the bundles of all closed days which are not built yet, and drops the bundles of days
+   * which are no longer in the retention period. Meant to run periodically, such that clients do
+   * not have to wait for a bundle when a day closes.
+   *
+   * @param now the current time
+   */
+  public void prebuild(UTCInstant now) {
+    var firstDay = getFirstDay(now);
+    bundles.keySet().removeIf(key -> key.getPublishedAfter().isBeforeEpochMillisOf(firstDay));
+    for (var day : getClosedDays(now)) {
+      for (var withFederationGateway : List.of(false, true)) {
+        try {
+          get(day, withFederationGateway);
+        } catch (Exception e) {
+          logger.error("Failed to build bundle of day {}", day, e);
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return bundles.size();
+  }
+
+  // the first full day after the start of the retention period
+  private UTCInstant getFirstDay(UTCInstant now) {
+    var retentionStart = now.minus(retentionPeriod);
+    var firstDay = retentionStart.atStartOfDay();
+    return firstDay.isBeforeEpochMillisOf(retentionStart) ? firstDay.plusDays(1) : firstDay;
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.cache;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches signed key bundles for the key download endpoints. The content of a bundle only depends
+ * on the requested range and the release bucket it was built in (keys received in the current
+ * bucket are never published before the bucket closes), so a bundle can be served from memory
+ * until the bucket rolls over. At that point all entries are dropped.
+ *
+ * <p>Empty results are cached as well (as an empty {@link Optional}), as most polls between two
+ * buckets do not return any keys. The cache is bounded and evicts the least recently used entry. A
+ * cache with a maximum size of 0 is disabled and does not keep any bundles.
+ *
+ * <p>Concurrent requests for the same bundle are coalesced, whether the cache is enabled or not:
+ * the first request builds the bundle, while the others wait for it and share the result (or the
+ * failure). This avoids a query and a signature per request when a bucket opens and all clients
+ * ask for the same bundle at once.
+ */
+public class ExposedKeyBundleCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExposedKeyBundleCache.class);
+
+  private final int maxEntries;
+  private final Duration waitTimeout;
+  private final Map<BundleKey, Optional<ProtoSignatureWrapper>> bundles;
+  // bundles currently being built, guarded by the lock on bundles
+  private final Map<BundleKey, CompletableFuture<Optional<ProtoSignatureWrapper>>> inFlight =
+      new HashMap<>();
+  private UTCInstant currentBucket;
+
+  /**
+   * @param maxEntries maximum number of bundles kept in memory. 0 disables the cache.
+   * @param waitTimeout how long a request waits for a bundle built by a concurrent request
+   */
+  public ExposedKeyBundleCache(int maxEntries, Duration waitTimeout) {
+    this.maxEntries = maxEntries;
+    this.waitTimeout = waitTimeout;
+    this.bundles =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<BundleKey, Optional<ProtoSignatureWrapper>> eldest) {
+            return size() > ExposedKeyBundleCache.this.maxEntries;
+          }
+        };
+  }
+
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Returns the cached bundle for the given key, or builds it with the given supplier. If the
+   * release bucket of the key is not the one of the cached entries, the cache is cleared first. If
+   * the bundle is already being built by a concurrent call, waits for its result instead.
+   *
+   * @param key the bundle to look up
+   * @param supplier builds the bundle if it is not cached. Returns an empty {@link Optional} if
+   *     there are no keys to release.
+   * @return the (possibly cached) bundle
+   * @throws IOException if the supplier fails, or if waiting for a concurrent call times out.
+   *     Failures are not cached.
+   * @throws InvalidKeyException if the supplier fails to sign the bundle
+   * @throws SignatureException if the supplier fails to sign the bundle
+   * @throws NoSuchAlgorithmException if the supplier fails to sign the bundle
+   */
+  public Optional<ProtoSignatureWrapper> get(BundleKey key, BundleSupplier supplier)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    CompletableFuture<Optional<ProtoSignatureWrapper>> flight;
+    boolean building = false;
+    synchronized (bundles) {
+      if (isEnabled()) {
+        if (currentBucket == null || !currentBucket.equals(key.publishedUntil)) {
+          if (!bundles.isEmpty()) {
+            logger.info("Release bucket rolled over to {}, clearing cache", key.publishedUntil);
+          }
+          bundles.clear();
+          currentBucket = key.publishedUntil;
+        }
+        var cached = bundles.get(key);
+        if (cached != null) {
+          return cached;
+        }
+      }
+      flight = inFlight.get(key);
+      if (flight == null) {
+        flight = new CompletableFuture<>();
+        inFlight.put(key, flight);
+        building = true;
+      }
+    }
+    if (!building) {
+      return await(key, flight);
+    }
+
+    Optional<ProtoSignatureWrapper> bundle;
+    try {
+      bundle = supplier.get();
+    } catch (Throwable e) {
+      synchronized (bundles) {
+        inFlight.remove(key);
+      }
+      flight.completeExceptionally(e);
+      throw e;
+    }
+    synchronized (bundles) {
+      inFlight.remove(key);
+      // don't store bundles of a bucket which rolled over while we were building it
+      if (isEnabled() && currentBucket.equals(key.publishedUntil)) {
+        bundles.put(key, bundle);
+      }
+    }
+    flight.complete(bundle);
+    return bundle;
+  }
+
+  private Optional<ProtoSignatureWrapper> await(
+      BundleKey key, CompletableFuture<Optional<ProtoSignatureWrapper>> flight)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    try {
+      return flight.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for bundle " + key, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for bundle " + key, e);
+    } catch (ExecutionException e) {
+      // rethrow the failure of the concurrent call as if we had built the bundle ourselves
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  public int size() {
+    synchronized (bundles) {
+      return bundles.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (bundles) {
+      bundles.clear();
+    }
+  }
+
+  /** Builds a signed bundle, or returns an empty {@link Optional} if there are no keys. */
+  @FunctionalInterface
+  public interface BundleSupplier {
+    Optional<ProtoSignatureWrapper> get()
+        throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException;
+  }
+
+  /** Identifies a bundle by its endpoint, the requested range and the release bucket. */
+  public static class BundleKey {
+    private final String endpoint;
+    private final UTCInstant keyDate;
+    private final UTCInstant publishedAfter;
+    private final UTCInstant publishedUntil;
+    private final boolean withFederationGateway;
+    private final boolean batched;
+
+    private BundleKey(
+        String endpoint,
+        UTCInstant keyDate,
+        UTCInstant publishedAfter,
+        UTCInstant publishedUntil,
+        boolean withFederationGateway,
+        boolean batched) {
+      this.endpoint = endpoint;
+      this.keyDate = keyDate;
+      this.publishedAfter = publishedAfter;
+      this.publishedUntil = publishedUntil;
+      this.withFederationGateway = withFederationGateway;
+      this.batched = batched;
+    }
+
+    /** Key for the v1 download of all keys of a given key date. */
+    public static BundleKey forKeyDate(
+        UTCInstant keyDate, UTCInstant publishedAfter, UTCInstant publishedUntil) {
+      return new BundleKey("v1", keyDate, publishedAfter, publishedUntil, false, false);
+    }
+
+    /** Key for the v2 download of all keys published since a given key bundle tag. */
+    public static BundleKey since(
+        UTCInstant keysSince, UTCInstant publishedUntil, boolean withFederationGateway) {
+      return since(keysSince, publishedUntil, withFederationGateway, false);
+    }
+
+    /**
+     * Key for the v2 download of all keys published since a given key bundle tag, split into
+     * batches if the client asked for them, see ProtoSignature#getPayloadV2(CompactKeyList, String,
+     * boolean).
+     */
+    public static BundleKey since(
+        UTCInstant keysSince,
+        UTCInstant publishedUntil,
+        boolean withFederationGateway,
+        boolean batched) {
+      return new BundleKey("v2", null, keysSince, publishedUntil, withFederationGateway, batched);
+    }
+
+    /** Key for the v2 download of all keys published during a closed day. */
+    public static BundleKey forDay(UTCInstant day, boolean withFederationGateway) {
+      return new BundleKey("v2-day", null, day, day.plusDays(1), withFederationGateway, false);
+    }
+
+    public UTCInstant getKeyDate() {
+      return keyDate;
+    }
+
+    public UTCInstant getPublishedAfter() {
+      return publishedAfter;
+    }
+
+    public UTCInstant getPublishedUntil() {
+      return publishedUntil;
+    }
+
+    public boolean isWithFederationGateway() {
+      return withFederationGateway;
+    }
+
+    public boolean isBatched() {
+      return batched;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      BundleKey that = (BundleKey) o;
+      return withFederationGateway == that.withFederationGateway
+          && batched == that.batched
+          && endpoint.equals(that.endpoint)
+          && Objects.equals(timestampOf(keyDate), timestampOf(that.keyDate))
+          && Objects.equals(timestampOf(publishedAfter), timestampOf(that.publishedAfter))
+          && Objects.equals(timestampOf(publishedUntil), timestampOf(that.publishedUntil));
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          endpoint,
+          timestampOf(keyDate),
+          timestampOf(publishedAfter),
+          timestampOf(publishedUntil),
+          withFederationGateway,
+          batched);
+    }
+
+    @Override
+    public String toString() {
+      return endpoint
+          + "["
+          + (keyDate != null ? "keyDate=" + keyDate + ", " : "")
+          + "publishedAfter="
+          + publishedAfter
+          + ", publishedUntil="
+          + publishedUntil
+          + ", withFederationGateway="
+          + withFederationGateway
+          // unbatched bundles keep their tag, which seeds the shuffle and the ETag
+          + (batched ? ", batched=true" : "")
+          + "]";
+    }
+
+    private static Long timestampOf(UTCInstant instant) {
+      return instant == null ? null : instant.getTimestamp();
+    }
+  }
+}
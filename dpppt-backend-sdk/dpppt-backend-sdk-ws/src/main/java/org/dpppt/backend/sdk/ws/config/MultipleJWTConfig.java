@@ -58,6 +58,10 @@ public class MultipleJWTConfig {
     @Value("${ws.retentiondays: 14}")
     int retentionDays;
 
+    // redeemed jtis kept in memory to reject replays without a query, 0 to disable
+    @Value("${ws.app.jwt.redeemedCacheSize: 10000}")
+    int redeemedCacheSize;
+
     @Autowired @Lazy RedeemDataService redeemDataService;
 
     protected String loadPublicKey() throws IOException {
@@ -111,7 +115,7 @@ public class MultipleJWTConfig {
 
     @Bean
     public JWTValidator jwtValidatorGaen() {
-      return new JWTValidator(redeemDataService, Duration.ofDays(3));
+      return new JWTValidator(redeemDataService, Duration.ofDays(3), redeemedCacheSize);
     }
 
     @Bean
@@ -160,7 +164,8 @@ public class MultipleJWTConfig {
 
     @Bean
     public JWTValidator jwtValidator() {
-      return new JWTValidator(redeemDataService, Duration.ofMinutes(maxValidityMinutes));
+      return new JWTValidator(
+          redeemDataService, Duration.ofMinutes(maxValidityMinutes), redeemedCacheSize);
     }
 
     @Bean
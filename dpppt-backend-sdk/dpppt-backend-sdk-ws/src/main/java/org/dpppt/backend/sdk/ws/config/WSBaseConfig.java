@@ -17,9 +17,14 @@ import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.hubspot.jackson.datatype.protobuf.ProtobufModule;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.KeyPair;
 import java.time.Duration;
 import java.time.ZoneOffset;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -29,10 +34,16 @@ import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
 import org.dpppt.backend.sdk.data.gaen.JdbcGaenDataServiceImpl;
+import org.dpppt.backend.sdk.data.gaen.KeyReleaseIndex;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.cache.DailyKeyBundleCache;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache;
 import org.dpppt.backend.sdk.ws.controller.GaenController;
 import org.dpppt.backend.sdk.ws.controller.GaenV2Controller;
 import org.dpppt.backend.sdk.ws.filter.ResponseWrapperFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.GroupCommitKeyWriter;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
+import org.dpppt.backend.sdk.ws.insertmanager.WriteAheadKeyLog;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceMatchingJWTClaimsForExposed;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceMatchingJWTClaimsForExposedNextDay;
@@ -47,6 +58,7 @@ import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.NoValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.RequestTimePadding;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
@@ -114,6 +126,68 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
   @Value("${ws.exposedlist.requestTime: 1500}")
   long requestTime;
 
+  @Value("${ws.insertmanager.groupcommit.enabled: false}")
+  boolean groupCommitEnabled;
+
+  @Value("${ws.insertmanager.groupcommit.maxBatchSize: 1000}")
+  int groupCommitMaxBatchSize;
+
+  @Value("${ws.insertmanager.groupcommit.maxDelay: PT0.005S}")
+  Duration groupCommitMaxDelay;
+
+  @Value("${ws.insertmanager.groupcommit.writeTimeout: PT10S}")
+  Duration groupCommitWriteTimeout;
+
+  @Value("${ws.insertmanager.writeaheadlog.enabled: false}")
+  boolean writeAheadLogEnabled;
+
+  // must be an absolute path on persistent storage if the write-ahead log is enabled
+  @Value("${ws.insertmanager.writeaheadlog.directory:}")
+  String writeAheadLogDirectory;
+
+  @Value("${ws.insertmanager.writeaheadlog.drainInterval: PT1S}")
+  Duration writeAheadLogDrainInterval;
+
+  @Value("${ws.exposedlist.bundlecache.enabled: false}")
+  boolean bundleCacheEnabled;
+
+  @Value("${ws.exposedlist.bundlecache.maxEntries: 512}")
+  int bundleCacheMaxEntries;
+
+  @Value("${ws.exposedlist.bundlecache.waitTimeout: PT10S}")
+  Duration bundleWaitTimeout;
+
+  @Value("${ws.exposedlist.zip.stored: false}")
+  boolean storeZipEntries;
+
+  // 0 puts all keys of a bundle into one export. Only v2 downloads with batched=true are split.
+  @Value("${ws.exposedlist.batch.maxKeys: 0}")
+  int maxKeysPerFile;
+
+  // exports waiting for a signing thread, further exports are signed by the request thread
+  @Value("${ws.exposedlist.batch.signingQueueSize: 64}")
+  int batchSigningQueueSize;
+
+  @Value("${ws.exposedlist.dailybundles.enabled: false}")
+  boolean dailyBundlesEnabled;
+
+  @Value("${ws.exposedlist.releaseindex.enabled: false}")
+  boolean releaseIndexEnabled;
+
+  @Value("${ws.exposedlist.releaseindex.settleTime: PT10S}")
+  Duration releaseIndexSettleTime;
+
+  // how often the index checks whether a new bucket needs to be loaded
+  @Value("${ws.exposedlist.releaseindex.loadInterval: PT5S}")
+  Duration releaseIndexLoadInterval;
+
+  // must be at least the transaction timeout of all writers of keys, see KeyReleaseIndex
+  @Value("${ws.exposedlist.releaseindex.lateCommitWindow: PT10M}")
+  Duration releaseIndexLateCommitWindow;
+
+  @Value("${ws.exposedlist.shuffle.secret:}")
+  String shuffleSecret;
+
   @Value("${ws.app.source}")
   String appSource;
 
@@ -159,6 +233,9 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
   @Autowired(required = false)
   ValidateRequest gaenRequestValidator;
 
+  @Autowired(required = false)
+  MeterRegistry meterRegistry;
+
   @Autowired @Lazy KeyVault keyVault;
 
   final SignatureAlgorithm algorithm = SignatureAlgorithm.ES256;
@@ -222,7 +299,11 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
           getKeyVersion(),
           getKeyIdentifier(),
           gaenRegion,
-          Duration.ofMillis(releaseBucketDuration));
+          Duration.ofMillis(releaseBucketDuration),
+          shuffleSecret.isEmpty() ? null : Base64.getDecoder().decode(shuffleSecret),
+          storeZipEntries,
+          maxKeysPerFile,
+          batchSigningExecutor());
     } catch (Exception ex) {
       throw new RuntimeException("Cannot initialize signer for protobuf");
     }
@@ -237,6 +318,8 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     manager.addFilter(new EnforceRetentionPeriod(gaenValidationUtils()));
     manager.addFilter(new RemoveFakeKeys());
     manager.addFilter(new EnforceValidRollingPeriod());
+    configureKeyWriter(manager);
+    registerFilterMetrics(manager, "exposed");
     return manager;
   }
 
@@ -249,9 +332,66 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     manager.addFilter(new EnforceRetentionPeriod(gaenValidationUtils()));
     manager.addFilter(new RemoveFakeKeys());
     manager.addFilter(new EnforceValidRollingPeriod());
+    configureKeyWriter(manager);
+    registerFilterMetrics(manager, "exposedNextDay");
     return manager;
   }
 
+  private void registerFilterMetrics(InsertManager manager, String name) {
+    if (meterRegistry != null) {
+      manager.registerMetrics(meterRegistry, name);
+    }
+  }
+
+  private void configureKeyWriter(InsertManager manager) {
+    if (writeAheadLogEnabled) {
+      manager.setKeyWriter(writeAheadKeyLog());
+    } else if (groupCommitEnabled) {
+      manager.setKeyWriter(groupCommitKeyWriter());
+    }
+  }
+
+  /**
+   * If enabled, uploads are acknowledged once their keys are in a local log, which is written to
+   * the database in the background, see {@link WriteAheadKeyLog}. Only created if enabled.
+   */
+  @Bean
+  @Lazy
+  public WriteAheadKeyLog writeAheadKeyLog() {
+    // a relative directory depends on the working directory, which may change between restarts
+    // and would leave the keys of a crashed run behind
+    if (writeAheadLogDirectory.isBlank() || !Path.of(writeAheadLogDirectory).isAbsolute()) {
+      throw new IllegalStateException(
+          "ws.insertmanager.writeaheadlog.directory must be an absolute path, but is '"
+              + writeAheadLogDirectory
+              + "'");
+    }
+    try {
+      return new WriteAheadKeyLog(
+          Path.of(writeAheadLogDirectory),
+          gaenDataService(),
+          Duration.ofMillis(releaseBucketDuration),
+          meterRegistry != null ? meterRegistry : new SimpleMeterRegistry());
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot open write-ahead log in " + writeAheadLogDirectory, e);
+    }
+  }
+
+  /**
+   * If enabled, the keys of concurrent uploads are committed together, see {@link
+   * GroupCommitKeyWriter}. Only created if enabled.
+   */
+  @Bean
+  @Lazy
+  public GroupCommitKeyWriter groupCommitKeyWriter() {
+    return new GroupCommitKeyWriter(
+        gaenDataService(),
+        groupCommitMaxBatchSize,
+        groupCommitMaxDelay,
+        groupCommitWriteTimeout,
+        meterRegistry != null ? meterRegistry : new SimpleMeterRegistry());
+  }
+
   /**
    * Even though there are probably no android devices left that send TEKs with rollingPeriod of 0,
    * this modifier will not hurt. Every TEK with rollingPeriod of 0 will be reported.
@@ -289,6 +429,12 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
         gaenKeySizeBytes, Duration.ofDays(retentionDays), releaseBucketDuration);
   }
 
+  /** Pads uploads to the request time, completing the responses from a single timer thread. */
+  @Bean
+  public RequestTimePadding requestTimePadding() {
+    return new RequestTimePadding(Duration.ofMillis(requestTime));
+  }
+
   @Bean
   public GaenController gaenController() {
     ValidateRequest theValidator = gaenRequestValidator;
@@ -304,10 +450,11 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
         gaenSigner(),
         gaenValidationUtils(),
         Duration.ofMillis(releaseBucketDuration),
-        Duration.ofMillis(requestTime),
+        requestTimePadding(),
         Duration.ofMillis(exposedListCacheControl),
         keyVault.get("nextDayJWT").getPrivate(),
-        Duration.ofDays(retentionDays));
+        Duration.ofDays(retentionDays),
+        exposedKeyBundleCache());
   }
 
   @Bean
@@ -323,26 +470,61 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
         gaenSigner(),
         gaenDataService(),
         Duration.ofMillis(releaseBucketDuration),
-        Duration.ofMillis(requestTime),
+        requestTimePadding(),
         Duration.ofMillis(exposedListCacheControl),
         Duration.ofDays(retentionDays),
         withFederationGatewayDownloadDefaultValue,
-        withFederationGatewayUploadDefaultValue);
+        withFederationGatewayUploadDefaultValue,
+        exposedKeyBundleCache(),
+        dailyBundlesEnabled ? dailyKeyBundleCache() : null);
+  }
+
+  /**
+   * If enabled, v2 clients can do their initial sync with one bundle per closed day, which never
+   * changes, instead of a bundle with all keys of the retention period. Only created if enabled.
+   */
+  @Bean
+  @Lazy
+  public DailyKeyBundleCache dailyKeyBundleCache() {
+    return new DailyKeyBundleCache(
+        gaenDataService(),
+        gaenSigner(),
+        Duration.ofMillis(releaseBucketDuration),
+        Duration.ofDays(retentionDays));
+  }
+
+  /**
+   * Signed bundles of the key download endpoints only change when the release bucket rolls over.
+   * If enabled, they are built once per bucket and then served from memory. Concurrent requests for
+   * the same bundle are coalesced in any case.
+   */
+  @Bean
+  public ExposedKeyBundleCache exposedKeyBundleCache() {
+    return new ExposedKeyBundleCache(
+        bundleCacheEnabled ? bundleCacheMaxEntries : 0, bundleWaitTimeout);
   }
 
   @Bean
   public GaenDataService gaenDataService() {
+    var releaseIndex =
+        releaseIndexEnabled
+            ? new KeyReleaseIndex(
+                Duration.ofMillis(releaseBucketDuration),
+                releaseIndexSettleTime,
+                releaseIndexLateCommitWindow)
+            : null;
     return new JdbcGaenDataServiceImpl(
         getDbType(),
         dataSource(),
         Duration.ofMillis(releaseBucketDuration),
         timeSkew,
-        originCountry);
+        originCountry,
+        releaseIndex);
   }
 
   @Bean
   public RedeemDataService redeemDataService() {
-    return new JdbcRedeemDataServiceImpl(dataSource());
+    return new JdbcRedeemDataServiceImpl(getDbType(), dataSource());
   }
 
   @Bean
@@ -391,6 +573,19 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
     configurer.setDefaultTimeout(5_000);
   }
 
+  @Bean
+  public ThreadPoolTaskExecutor batchSigningExecutor() {
+    // signing is CPU bound, more threads than cores would only compete with the request threads.
+    // Shut down with the context, exports which were not signed yet are cancelled.
+    int cores = Runtime.getRuntime().availableProcessors();
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setThreadNamePrefix("batch-signing-");
+    taskExecutor.setCorePoolSize(cores);
+    taskExecutor.setMaxPoolSize(cores);
+    taskExecutor.setQueueCapacity(batchSigningQueueSize);
+    return taskExecutor;
+  }
+
   @Bean
   public ThreadPoolTaskExecutor mvcTaskExecutor() {
     ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
@@ -411,6 +606,27 @@ public abstract class WSBaseConfig implements SchedulingConfigurer, WebMvcConfig
             },
             60 * 60 * 1000L));
 
+    if (dailyBundlesEnabled) {
+      // build the bundle of a day as soon as it is closed
+      taskRegistrar.addFixedRateTask(
+          new IntervalTask(
+              () -> dailyKeyBundleCache().prebuild(UTCInstant.now()), 10 * 60 * 1000L));
+    }
+
+    if (releaseIndexEnabled) {
+      // loaded on startup, and then once per release bucket. Downloads never load it.
+      taskRegistrar.addFixedDelayTask(
+          new IntervalTask(
+              () -> gaenDataService().loadReleaseIndex(UTCInstant.now()),
+              releaseIndexLoadInterval.toMillis()));
+    }
+
+    if (writeAheadLogEnabled) {
+      taskRegistrar.addFixedDelayTask(
+          new IntervalTask(
+              () -> writeAheadKeyLog().drain(), writeAheadLogDrainInterval.toMillis()));
+    }
+
     var trigger = new CronTrigger("0 0 2 * * *", TimeZone.getTimeZone(ZoneOffset.UTC));
     taskRegistrar.addCronTask(new CronTask(() -> fakeKeyService().updateFakeKeys(), trigger));
   }
@@ -13,10 +13,13 @@ package org.dpppt.backend.sdk.ws.config;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Properties;
 import javax.sql.DataSource;
+import org.dpppt.backend.sdk.data.ReplicaRoutingDataSource;
 import org.dpppt.backend.sdk.data.gaen.DebugGaenDataService;
 import org.dpppt.backend.sdk.data.gaen.DebugJdbcGaenDataServiceImpl;
 import org.dpppt.backend.sdk.ws.controller.DebugController;
@@ -39,6 +42,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.scheduling.config.IntervalTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 @Configuration
 @Profile("prod")
@@ -71,6 +76,20 @@ public class WSProdConfig extends WSBaseConfig {
   @Value("${datasource.connectionTimeout}")
   String dataSourceConnectionTimeout;
 
+  // number of executions after which pgjdbc switches to a server-side prepared statement, the
+  // driver default if empty
+  @Value("${datasource.prepareThreshold:}")
+  String dataSourcePrepareThreshold;
+
+  @Value("${datasource.replica.urls:}")
+  List<String> replicaUrls;
+
+  @Value("${datasource.replica.maxLag: PT5S}")
+  Duration replicaMaxLag;
+
+  @Value("${datasource.replica.lagCheckInterval: PT1S}")
+  Duration replicaLagCheckInterval;
+
   @Value("${ws.ecdsa.credentials.privateKey:}")
   private String privateKey;
 
@@ -79,11 +98,30 @@ public class WSProdConfig extends WSBaseConfig {
 
   @Bean(destroyMethod = "close")
   public DataSource dataSource() {
+    if (replicaUrls.isEmpty()) {
+      return createDataSource(dataSourceUrl);
+    }
+    // read-only transactions go to the replicas, as long as they keep up with the primary
+    var replicas = new ArrayList<DataSource>();
+    for (var replicaUrl : replicaUrls) {
+      replicas.add(createDataSource(replicaUrl));
+    }
+    return new ReplicaRoutingDataSource(
+        createDataSource(dataSourceUrl),
+        replicas,
+        replicaMaxLag,
+        Duration.ofMillis(releaseBucketDuration));
+  }
+
+  private HikariDataSource createDataSource(String url) {
     HikariConfig config = new HikariConfig();
     Properties props = new Properties();
-    props.put("url", dataSourceUrl);
+    props.put("url", url);
     props.put("user", dataSourceUser);
     props.put("password", dataSourcePassword);
+    if (!dataSourcePrepareThreshold.isEmpty()) {
+      props.put("prepareThreshold", dataSourcePrepareThreshold);
+    }
     config.setDataSourceProperties(props);
     config.setDataSourceClassName(dataSourceDriver);
     config.setMaximumPoolSize(Integer.parseInt(dataSourceMaximumPoolSize));
@@ -105,6 +143,16 @@ public class WSProdConfig extends WSBaseConfig {
     return flyWay;
   }
 
+  @Override
+  public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+    super.configureTasks(taskRegistrar);
+    if (dataSource() instanceof ReplicaRoutingDataSource) {
+      var routingDataSource = (ReplicaRoutingDataSource) dataSource();
+      taskRegistrar.addFixedRateTask(
+          new IntervalTask(routingDataSource::checkReplicas, replicaLagCheckInterval.toMillis()));
+    }
+  }
+
   @Override
   public String getDbType() {
     return "pgsql";
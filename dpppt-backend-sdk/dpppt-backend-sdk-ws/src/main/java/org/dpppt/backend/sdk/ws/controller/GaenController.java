@@ -21,17 +21,19 @@ import java.time.Duration;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import javax.validation.Valid;
 import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
 import org.dpppt.backend.sdk.model.gaen.DayBuckets;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenRequest;
 import org.dpppt.backend.sdk.model.gaen.GaenSecondDay;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
-import org.dpppt.backend.sdk.utils.DurationExpiredException;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache.BundleKey;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
@@ -41,6 +43,8 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.dpppt.backend.sdk.ws.util.ETags;
+import org.dpppt.backend.sdk.ws.util.RequestTimePadding;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateClaimIsMissing;
@@ -64,6 +68,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 
 @Controller
 @RequestMapping("/v1/gaen")
@@ -82,7 +87,7 @@ public class GaenController {
   // are published.
   private final Duration releaseBucketDuration;
 
-  private final Duration requestTime;
+  private final RequestTimePadding requestTimePadding;
   private final Duration retentionPeriod;
 
   private final ValidateRequest validateRequest;
@@ -94,6 +99,7 @@ public class GaenController {
   private final Duration exposedListCacheControl;
   private final PrivateKey secondDayKey;
   private final ProtoSignature gaenSigner;
+  private final ExposedKeyBundleCache bundleCache;
 
   public GaenController(
       InsertManager insertManagerExposed,
@@ -104,22 +110,24 @@ public class GaenController {
       ProtoSignature gaenSigner,
       ValidationUtils validationUtils,
       Duration releaseBucketDuration,
-      Duration requestTime,
+      RequestTimePadding requestTimePadding,
       Duration exposedListCacheControl,
       PrivateKey secondDayKey,
-      Duration retentionPeriod) {
+      Duration retentionPeriod,
+      ExposedKeyBundleCache bundleCache) {
     this.insertManagerExposed = insertManagerExposed;
     this.insertManagerExposedNextDay = insertManagerExposedNextDay;
     this.dataService = dataService;
     this.fakeKeyService = fakeKeyService;
     this.releaseBucketDuration = releaseBucketDuration;
     this.validateRequest = validateRequest;
-    this.requestTime = requestTime;
+    this.requestTimePadding = requestTimePadding;
     this.validationUtils = validationUtils;
     this.exposedListCacheControl = exposedListCacheControl;
     this.secondDayKey = secondDayKey;
     this.gaenSigner = gaenSigner;
     this.retentionPeriod = retentionPeriod;
+    this.bundleCache = bundleCache;
   }
 
   @GetMapping(value = "")
@@ -140,7 +148,7 @@ public class GaenController {
         "400=>Invalid base64 encoding in GaenRequest",
         "403=>Authentication failed"
       })
-  public @ResponseBody Callable<ResponseEntity<String>> addExposed(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposed(
       @Valid
           @RequestBody
           @Documentation(
@@ -190,16 +198,7 @@ public class GaenController {
       String jwt = jwtBuilder.signWith(secondDayKey).compact();
       responseBuilder.header("Authorization", "Bearer " + jwt);
     }
-    Callable<ResponseEntity<String>> cb =
-        () -> {
-          try {
-            now.normalizeDuration(requestTime);
-          } catch (DurationExpiredException e) {
-            logger.error("Total time spent in endpoint is longer than requestTime");
-          }
-          return responseBuilder.body("OK");
-        };
-    return cb;
+    return requestTimePadding.pad(now, responseBuilder.body("OK"));
   }
 
   @PostMapping(value = "/exposednextday")
@@ -214,7 +213,7 @@ public class GaenController {
             + "- TEK-date does not match delayedKeyDAte claim in Jwt",
         "403=>No delayedKeyDate claim in authentication"
       })
-  public @ResponseBody Callable<ResponseEntity<String>> addExposedSecond(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposedSecond(
       @Valid @RequestBody @Documentation(description = "The last exposed key of the user")
           GaenSecondDay gaenSecondDay,
       @Documentation(
@@ -242,14 +241,7 @@ public class GaenController {
     insertManagerExposedNextDay.insertIntoDatabase(
         List.of(gaenSecondDay.getDelayedKey()), userAgent, principal, now, false);
 
-    return () -> {
-      try {
-        now.normalizeDuration(requestTime);
-      } catch (DurationExpiredException e) {
-        logger.error("Total time spent in endpoint is longer than requestTime");
-      }
-      return ResponseEntity.ok().body("OK");
-    };
+    return requestTimePadding.pad(now, ResponseEntity.ok().body("OK"));
   }
 
   @GetMapping(value = "/exposed/{keyDate}", produces = "application/zip")
@@ -257,6 +249,7 @@ public class GaenController {
       description = "Request the exposed key from a given date",
       responses = {
         "200=>zipped export.bin and export.sig of all keys in that interval",
+        "304=>the bundle matches the ETag given in If-None-Match",
         "404=>"
             + "- invalid starting key date, doesn't point to midnight UTC"
             + "- _publishedAfter_ is not at the beginning of a batch release time, currently 2h",
@@ -276,7 +269,10 @@ public class GaenController {
                   "Restrict returned Exposed Keys to dates after this parameter. Given in"
                       + " milliseconds since Unix epoch (1970-01-01).",
               example = "1593043200000")
-          Long publishedafter)
+          Long publishedafter,
+      @Documentation(description = "ETag of a bundle received before, to revalidate it")
+          @RequestHeader(value = "If-None-Match", required = false)
+          String ifNoneMatch)
       throws BadBatchReleaseTimeException, IOException, InvalidKeyException, SignatureException,
           NoSuchAlgorithmException {
     var now = UTCInstant.now();
@@ -301,24 +297,61 @@ public class GaenController {
     // calculate exposed until bucket
     UTCInstant publishedUntil = now.roundToBucketStart(releaseBucketDuration);
 
-    var exposedKeys =
-        dataService.getSortedExposedForKeyDate(
-            keyDateInstant, publishedAfterInstant, publishedUntil, now, false);
-    exposedKeys =
-        fakeKeyService.fillUpKeys(exposedKeys, publishedAfterInstant, keyDateInstant, now);
-    if (exposedKeys.isEmpty()) {
-      return ResponseEntity.noContent()
+    var bundleKey = BundleKey.forKeyDate(keyDateInstant, publishedAfterInstant, publishedUntil);
+    // the ETag only depends on the request, such that a revalidation needs no database query
+    String etag = gaenSigner.getETag(bundleKey.toString());
+    if (ETags.matches(ifNoneMatch, etag)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
           .cacheControl(CacheControl.maxAge(exposedListCacheControl))
           .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+          .eTag(etag)
           .build();
     }
 
-    ProtoSignatureWrapper payload = gaenSigner.getPayload(exposedKeys);
-
+    var payload = bundleCache.get(bundleKey, () -> buildBundle(bundleKey, now));
+    if (payload.isEmpty()) {
+      return ResponseEntity.noContent()
+          .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+          .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+          .build();
+    }
     return ResponseEntity.ok()
         .cacheControl(CacheControl.maxAge(exposedListCacheControl))
         .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
-        .body(payload.getZip());
+        .eTag(etag)
+        .body(payload.get().getZip());
+  }
+
+  private List<GaenKey> loadKeys(BundleKey bundleKey, UTCInstant now) {
+    List<GaenKey> exposedKeys;
+    if (dataService.mayHaveExposed(
+        bundleKey.getPublishedAfter(),
+        bundleKey.getPublishedUntil(),
+        bundleKey.getKeyDate(),
+        false,
+        now)) {
+      exposedKeys =
+          dataService.getSortedExposedForKeyDate(
+              bundleKey.getKeyDate(),
+              bundleKey.getPublishedAfter(),
+              bundleKey.getPublishedUntil(),
+              now,
+              false);
+    } else {
+      // fake keys are still added below
+      exposedKeys = new ArrayList<>();
+    }
+    return fakeKeyService.fillUpKeys(
+        exposedKeys, bundleKey.getPublishedAfter(), bundleKey.getKeyDate(), now);
+  }
+
+  private Optional<ProtoSignatureWrapper> buildBundle(BundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    List<GaenKey> exposedKeys = loadKeys(bundleKey, now);
+    if (exposedKeys.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(gaenSigner.getPayload(exposedKeys, bundleKey.toString()));
   }
 
   @GetMapping(value = "/buckets/{dayDateStr}")
@@ -8,14 +8,16 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.time.Duration;
 import java.time.format.DateTimeParseException;
-import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Optional;
 import javax.validation.Valid;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
-import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.DayBundles;
 import org.dpppt.backend.sdk.model.gaen.GaenV2UploadKeysRequest;
-import org.dpppt.backend.sdk.utils.DurationExpiredException;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.cache.DailyKeyBundleCache;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache.BundleKey;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
@@ -23,8 +25,11 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.ClaimIsBeforeOnsetException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
+import org.dpppt.backend.sdk.ws.security.signature.CompactKeyList;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.dpppt.backend.sdk.ws.util.ETags;
+import org.dpppt.backend.sdk.ws.util.RequestTimePadding;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.slf4j.Logger;
@@ -37,6 +42,7 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -44,6 +50,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /** This is a new controller to simplify the sending and receiving of keys using ENv1.5/ENv2. */
 @Controller
@@ -61,11 +68,13 @@ public class GaenV2Controller {
   private final ProtoSignature gaenSigner;
   private final GaenDataService dataService;
   private final Duration releaseBucketDuration;
-  private final Duration requestTime;
+  private final RequestTimePadding requestTimePadding;
   private final Duration exposedListCacheControl;
   private final Duration retentionPeriod;
   private final boolean withFederationGatewayDownloadDefaultValue;
   private final boolean withFederationGatewayUploadDefaultValue;
+  private final ExposedKeyBundleCache bundleCache;
+  private final DailyKeyBundleCache dailyBundles;
 
   private static final String HEADER_X_KEY_BUNDLE_TAG = "x-key-bundle-tag";
 
@@ -76,22 +85,26 @@ public class GaenV2Controller {
       ProtoSignature gaenSigner,
       GaenDataService dataService,
       Duration releaseBucketDuration,
-      Duration requestTime,
+      RequestTimePadding requestTimePadding,
       Duration exposedListCacheControl,
       Duration retentionPeriod,
       boolean withFederationGatewayDownloadDefaultValue,
-      boolean withFederationGatewayUploadDefaultValue) {
+      boolean withFederationGatewayUploadDefaultValue,
+      ExposedKeyBundleCache bundleCache,
+      DailyKeyBundleCache dailyBundles) {
     this.insertManager = insertManager;
     this.validateRequest = validateRequest;
     this.validationUtils = validationUtils;
     this.gaenSigner = gaenSigner;
     this.dataService = dataService;
     this.releaseBucketDuration = releaseBucketDuration;
-    this.requestTime = requestTime;
+    this.requestTimePadding = requestTimePadding;
     this.exposedListCacheControl = exposedListCacheControl;
     this.retentionPeriod = retentionPeriod;
     this.withFederationGatewayDownloadDefaultValue = withFederationGatewayDownloadDefaultValue;
     this.withFederationGatewayUploadDefaultValue = withFederationGatewayUploadDefaultValue;
+    this.bundleCache = bundleCache;
+    this.dailyBundles = dailyBundles;
   }
 
   @GetMapping(value = "")
@@ -113,7 +126,7 @@ public class GaenV2Controller {
             + "- fake claim with non-fake keys",
         "403=>Authentication failed"
       })
-  public @ResponseBody Callable<ResponseEntity<String>> addExposed(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposed(
       @Documentation(description = "JSON Object containing all keys.") @Valid @RequestBody
           GaenV2UploadKeysRequest gaenV2Request,
       @RequestHeader(value = "User-Agent")
@@ -144,17 +157,7 @@ public class GaenV2Controller {
         principal,
         now,
         gaenV2Request.getWithFederationGateway());
-    var responseBuilder = ResponseEntity.ok();
-    Callable<ResponseEntity<String>> cb =
-        () -> {
-          try {
-            now.normalizeDuration(requestTime);
-          } catch (DurationExpiredException e) {
-            logger.error("Total time spent in endpoint is longer than requestTime");
-          }
-          return responseBuilder.body("OK");
-        };
-    return cb;
+    return requestTimePadding.pad(now, ResponseEntity.ok().body("OK"));
   }
 
   // GET for Key Download
@@ -165,6 +168,7 @@ public class GaenV2Controller {
               + " international keys if includeAllInternationalKeys is set to true.",
       responses = {
         "200 => zipped export.bin and export.sig of all keys in that interval",
+        "304 => the bundle matches the ETag given in If-None-Match",
         "404 => Invalid _lastKeyBundleTag_"
       })
   public @ResponseBody ResponseEntity<byte[]> getExposedKeys(
@@ -176,7 +180,19 @@ public class GaenV2Controller {
               example = "1593043200000")
           @RequestParam(required = false)
           Long lastKeyBundleTag,
-      @RequestParam(required = false) Boolean withFederationGateway)
+      @RequestParam(required = false) Boolean withFederationGateway,
+      @Documentation(
+              description =
+                  "If true, a bundle with more keys than the configured maximum per export is"
+                      + " returned as a zip of signed exports named export_1.zip, export_2.zip and"
+                      + " so on, with batch_num and batch_size set. Optional, defaults to false,"
+                      + " i.e. a single export.bin and export.sig.",
+              example = "false")
+          @RequestParam(required = false, defaultValue = "false")
+          boolean batched,
+      @Documentation(description = "ETag of a bundle received before, to revalidate it")
+          @RequestHeader(value = "If-None-Match", required = false)
+          String ifNoneMatch)
       throws BadBatchReleaseTimeException, InvalidKeyException, SignatureException,
           NoSuchAlgorithmException, IOException {
     var now = UTCInstant.now();
@@ -198,21 +214,154 @@ public class GaenV2Controller {
     }
     UTCInstant keyBundleTag = now.roundToBucketStart(releaseBucketDuration);
 
-    List<GaenKey> exposedKeys =
-        dataService.getSortedExposedSince(keysSince, now, withFederationGateway);
+    var bundleKey = BundleKey.since(keysSince, keyBundleTag, withFederationGateway, batched);
+    // the ETag only depends on the request, such that a revalidation needs no database query
+    String etag = gaenSigner.getETag(bundleKey.toString());
+    if (ETags.matches(ifNoneMatch, etag)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+          .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
+          .eTag(etag)
+          .build();
+    }
 
-    if (exposedKeys.isEmpty()) {
+    var payload = bundleCache.get(bundleKey, () -> buildBundle(bundleKey, now));
+    if (payload.isEmpty()) {
       return ResponseEntity.noContent()
           .cacheControl(CacheControl.maxAge(exposedListCacheControl))
           .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
           .build();
     }
-    ProtoSignatureWrapper payload = gaenSigner.getPayloadV2(exposedKeys);
+    return ResponseEntity.ok()
+        .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
+        .eTag(etag)
+        .body(payload.get().getZip());
+  }
 
+  @GetMapping(value = "/exposed/days")
+  @Documentation(
+      description =
+          "Lists the key bundles of the closed days in the retention period, to be used instead of"
+              + " a request without lastKeyBundleTag. Keys published after the last day are"
+              + " requested with the returned lastKeyBundleTag.",
+      responses = {
+        "200 => the relative URLs of the day bundles",
+        "404 => daily bundles are not enabled"
+      })
+  public @ResponseBody ResponseEntity<DayBundles> getDayBundles(
+      @RequestParam(required = false) Boolean withFederationGateway) {
+    if (dailyBundles == null) {
+      return ResponseEntity.notFound().build();
+    }
+    var now = UTCInstant.now();
+    if (withFederationGateway == null) {
+      withFederationGateway = withFederationGatewayDownloadDefaultValue;
+    }
+
+    String controllerMapping = this.getClass().getAnnotation(RequestMapping.class).value()[0];
+    var relativeUrls = new ArrayList<String>();
+    for (var day : dailyBundles.getClosedDays(now)) {
+      relativeUrls.add(
+          controllerMapping
+              + "/exposed/days/"
+              + day.getLocalDate()
+              + "?withFederationGateway="
+              + withFederationGateway);
+    }
+    var dayBundles =
+        new DayBundles()
+            .setRelativeUrls(relativeUrls)
+            .setLastKeyBundleTag(dailyBundles.getLastKeyBundleTag(now).getTimestamp());
+    // the list changes when a day closes, which happens at the end of a release bucket
     return ResponseEntity.ok()
         .cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .body(dayBundles);
+  }
+
+  @GetMapping(value = "/exposed/days/{dayDateStr}")
+  @Documentation(
+      description =
+          "Requests the keys published during a closed day. The response never changes and can be"
+              + " cached for the retention period.",
+      responses = {
+        "200 => zipped export.bin and export.sig of all keys published during that day",
+        "204 => no keys were published during that day",
+        "304 => the bundle matches the ETag given in If-None-Match",
+        "404 => the day is not closed, outside of the retention period, or daily bundles are"
+            + " not enabled"
+      })
+  public @ResponseBody ResponseEntity<byte[]> getDayBundle(
+      @PathVariable
+          @Documentation(description = "The day, as ISO-8601 format", example = "2020-06-27")
+          String dayDateStr,
+      @RequestParam(required = false) Boolean withFederationGateway,
+      @Documentation(description = "ETag of a bundle received before, to revalidate it")
+          @RequestHeader(value = "If-None-Match", required = false)
+          String ifNoneMatch)
+      throws InvalidKeyException, SignatureException, NoSuchAlgorithmException, IOException {
+    if (dailyBundles == null) {
+      return ResponseEntity.notFound().build();
+    }
+    var now = UTCInstant.now();
+    if (withFederationGateway == null) {
+      withFederationGateway = withFederationGatewayDownloadDefaultValue;
+    }
+    var day = UTCInstant.parseDate(dayDateStr);
+    if (!dailyBundles.isClosedDay(day, now)) {
+      return ResponseEntity.notFound().build();
+    }
+
+    var keyBundleTag = day.plusDays(1);
+    var cacheControl = CacheControl.maxAge(retentionPeriod);
+    String etag = gaenSigner.getETag(BundleKey.forDay(day, withFederationGateway).toString());
+    if (ETags.matches(ifNoneMatch, etag)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .cacheControl(cacheControl)
+          .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
+          .eTag(etag)
+          .build();
+    }
+
+    var payload = dailyBundles.get(day, withFederationGateway);
+    if (payload.isEmpty()) {
+      return ResponseEntity.noContent()
+          .cacheControl(cacheControl)
+          .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
+          .build();
+    }
+    return ResponseEntity.ok()
+        .cacheControl(cacheControl)
         .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
-        .body(payload.getZip());
+        .eTag(etag)
+        .body(payload.get().getZip());
+  }
+
+  // the keys are read with a cursor straight into a compact list, without a GaenKey per key. The
+  // list still holds all keys of the bundle.
+  private CompactKeyList loadKeys(BundleKey bundleKey, UTCInstant now) {
+    var keys = new CompactKeyList();
+    if (!dataService.mayHaveExposed(
+        bundleKey.getPublishedAfter(),
+        bundleKey.getPublishedUntil(),
+        null,
+        bundleKey.isWithFederationGateway(),
+        now)) {
+      return keys;
+    }
+    dataService.streamExposedSince(
+        bundleKey.getPublishedAfter(), now, bundleKey.isWithFederationGateway(), keys);
+    return keys;
+  }
+
+  private Optional<ProtoSignatureWrapper> buildBundle(BundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    CompactKeyList exposedKeys = loadKeys(bundleKey, now);
+    if (exposedKeys.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        gaenSigner.getPayloadV2(exposedKeys, bundleKey.toString(), bundleKey.isBatched()));
   }
 
   @ExceptionHandler({
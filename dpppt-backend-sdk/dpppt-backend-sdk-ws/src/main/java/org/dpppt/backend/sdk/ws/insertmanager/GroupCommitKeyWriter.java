@@ -0,0 +1,207 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.dpppt.backend.sdk.data.gaen.ExposeeUpload;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Writes the keys of concurrent uploads in one transaction, such that a burst of uploads costs one
+ * commit instead of one per upload.
+ *
+ * <p>A single writer thread collects uploads until it holds maxBatchSize keys or maxDelay has
+ * passed since the first upload of the batch, and then writes them with {@link
+ * GaenDataService#upsertExposees(List)}. Each caller waits until its keys are committed. If the
+ * batch fails, its uploads are written one by one, such that a single failing upload does not fail
+ * the others. A caller which waits longer than the write timeout fails, even though its keys may
+ * still be committed with the batch. A retry of the upload then does not store them twice, as
+ * existing keys are ignored.
+ */
+public class GroupCommitKeyWriter implements KeyWriter, DisposableBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(GroupCommitKeyWriter.class);
+
+  private static final long POLL_MILLIS = 100;
+
+  private final GaenDataService dataService;
+  private final int maxBatchSize;
+  private final Duration maxDelay;
+  private final Duration writeTimeout;
+
+  private final DistributionSummary batchUploads;
+  private final DistributionSummary batchKeys;
+  private final Timer waitTime;
+
+  private final LinkedBlockingQueue<PendingUpload> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  /**
+   * @param dataService where the keys are written to
+   * @param maxBatchSize number of keys after which a batch is written without waiting further
+   * @param maxDelay how long the first upload of a batch waits for more uploads
+   * @param writeTimeout how long an upload waits for its keys to be committed
+   * @param meterRegistry where the batch fill and wait time are reported
+   */
+  public GroupCommitKeyWriter(
+      GaenDataService dataService,
+      int maxBatchSize,
+      Duration maxDelay,
+      Duration writeTimeout,
+      MeterRegistry meterRegistry) {
+    this.dataService = dataService;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = maxDelay;
+    this.writeTimeout = writeTimeout;
+    this.batchUploads =
+        DistributionSummary.builder("gaen.upload.groupcommit.batch.uploads")
+            .description("Uploads written per transaction")
+            .register(meterRegistry);
+    this.batchKeys =
+        DistributionSummary.builder("gaen.upload.groupcommit.batch.keys")
+            .description("Keys written per transaction")
+            .baseUnit("keys")
+            .register(meterRegistry);
+    this.waitTime =
+        Timer.builder("gaen.upload.groupcommit.wait")
+            .description("Time from queueing an upload until its keys are committed")
+            .register(meterRegistry);
+    this.writer = new Thread(this::run, "group-commit-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Queues the keys and waits until they are committed, see {@link
+   * GaenDataService#upsertExposees(List, UTCInstant, boolean)}.
+   *
+   * @throws RuntimeException the exception of the data service if the keys could not be written
+   * @throws IllegalStateException if the keys were not committed within the write timeout
+   */
+  @Override
+  public void upsertExposees(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway) {
+    if (!running) {
+      throw new IllegalStateException("Group commit writer is stopped");
+    }
+    var pending = new PendingUpload(new ExposeeUpload(keys, now, withFederationGateway));
+    queue.add(pending);
+    if (!running && queue.remove(pending)) {
+      // stopped concurrently, the writer may not take the upload anymore
+      throw new IllegalStateException("Group commit writer is stopped");
+    }
+    try {
+      pending.result.get(writeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // if the writer did not take the upload yet, it never writes it
+      queue.remove(pending);
+      throw new IllegalStateException("Timed out waiting for the keys to be written", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the keys to be written", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private void run() {
+    var batch = new ArrayList<PendingUpload>();
+    while (running || !queue.isEmpty()) {
+      try {
+        var first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        int keys = first.upload.getKeys().size();
+        long deadline = System.nanoTime() + maxDelay.toNanos();
+        while (keys < maxBatchSize) {
+          var next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          keys += next.upload.getKeys().size();
+        }
+        write(batch, keys);
+      } catch (InterruptedException e) {
+        break;
+      } catch (RuntimeException e) {
+        logger.error("Group commit writer failed", e);
+        batch.forEach(pending -> pending.result.completeExceptionally(e));
+      }
+      batch.clear();
+    }
+    var stopped = new IllegalStateException("Group commit writer is stopped");
+    batch.forEach(pending -> pending.result.completeExceptionally(stopped));
+    PendingUpload pending;
+    while ((pending = queue.poll()) != null) {
+      pending.result.completeExceptionally(stopped);
+    }
+  }
+
+  private void write(List<PendingUpload> batch, int keys) {
+    batchUploads.record(batch.size());
+    batchKeys.record(keys);
+    try {
+      var uploads = new ArrayList<ExposeeUpload>(batch.size());
+      batch.forEach(pending -> uploads.add(pending.upload));
+      dataService.upsertExposees(uploads);
+      batch.forEach(PendingUpload::complete);
+    } catch (RuntimeException e) {
+      if (batch.size() == 1) {
+        batch.get(0).result.completeExceptionally(e);
+        return;
+      }
+      logger.warn("Writing a batch of {} uploads failed, writing them one by one", batch.size(), e);
+      for (var pending : batch) {
+        try {
+          dataService.upsertExposees(List.of(pending.upload));
+          pending.complete();
+        } catch (RuntimeException uploadException) {
+          pending.result.completeExceptionally(uploadException);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    writer.join(TimeUnit.SECONDS.toMillis(10));
+    if (writer.isAlive()) {
+      writer.interrupt();
+    }
+  }
+
+  private class PendingUpload {
+    private final ExposeeUpload upload;
+    private final long queuedAt = System.nanoTime();
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private PendingUpload(ExposeeUpload upload) {
+      this.upload = upload;
+    }
+
+    private void complete() {
+      waitTime.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+      result.complete(null);
+    }
+  }
+}
@@ -1,13 +1,18 @@
 package org.dpppt.backend.sdk.ws.insertmanager;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import org.dpppt.backend.sdk.data.gaen.DebugGaenDataService;
 import org.dpppt.backend.sdk.data.gaen.GaenDataService;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyInsertionFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyPredicateFilter;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionmodifier.KeyInsertionModifier;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.slf4j.Logger;
@@ -20,16 +25,23 @@ import org.slf4j.LoggerFactory;
  * remaining keys are then inserted into the database. If any of the modifiers filters throws an
  * {@link InsertException} the process of insertions is aborted and the exception is propagated back
  * to the caller, which is responsible for handling the exception.
+ *
+ * <p>Consecutive {@link KeyPredicateFilter}s are applied in a single pass over the keys, a key is
+ * only passed to the next filter if all previous ones kept it, as if they were applied one after
+ * the other. The number of keys rejected by each filter is counted.
  */
 public class InsertManager {
 
   private final List<KeyInsertionFilter> filterList = new ArrayList<>();
+  // rejectedKeys.get(i) counts the keys rejected by filterList.get(i)
+  private final List<LongAdder> rejectedKeys = new ArrayList<>();
   private final List<KeyInsertionModifier> modifierList = new ArrayList<>();
 
   private final GaenDataService dataService;
   private final ValidationUtils validationUtils;
 
   private DebugGaenDataService debugDataService;
+  private KeyWriter keyWriter;
 
   private static final Logger logger = LoggerFactory.getLogger(InsertManager.class);
 
@@ -52,12 +64,51 @@ public class InsertManager {
 
   public void addFilter(KeyInsertionFilter filter) {
     this.filterList.add(filter);
+    this.rejectedKeys.add(new LongAdder());
   }
 
   public void addModifier(KeyInsertionModifier modifier) {
     this.modifierList.add(modifier);
   }
 
+  /**
+   * Writes the keys through the given writer instead of directly to the database, for example to
+   * commit the keys of concurrent uploads together, see {@link GroupCommitKeyWriter}.
+   */
+  public void setKeyWriter(KeyWriter keyWriter) {
+    this.keyWriter = keyWriter;
+  }
+
+  /**
+   * Returns the number of keys the given filter rejected so far.
+   *
+   * @param filter a filter added to this manager
+   * @return the number of rejected keys, summed up if the filter was added more than once
+   */
+  public long getRejectedKeys(KeyInsertionFilter filter) {
+    long rejected = 0;
+    for (int i = 0; i < filterList.size(); i++) {
+      if (filterList.get(i) == filter) {
+        rejected += rejectedKeys.get(i).sum();
+      }
+    }
+    return rejected;
+  }
+
+  /**
+   * Reports the number of keys rejected by each filter added so far as the counter
+   * gaen.upload.filter.rejected, tagged with the given name of this manager and the filter class.
+   */
+  public void registerMetrics(MeterRegistry meterRegistry, String name) {
+    for (int i = 0; i < filterList.size(); i++) {
+      FunctionCounter.builder("gaen.upload.filter.rejected", rejectedKeys.get(i), LongAdder::sum)
+          .description("Uploaded keys rejected by an insertion filter")
+          .tag("manager", name)
+          .tag("filter", filterList.get(i).getClass().getSimpleName())
+          .register(meterRegistry);
+    }
+  }
+
   /**
    * Inserts the keys into the database. The additional parameters are supplied to the configured
    * modifiers and filters.
@@ -85,7 +136,11 @@ public class InsertManager {
     // if no keys remain or this is a fake request, just return. Else, insert the
     // remaining keys.
     if (!internalKeys.isEmpty() && !validationUtils.jwtIsFake(principal)) {
-      dataService.upsertExposees(internalKeys, now, withFederationGateway);
+      if (keyWriter != null) {
+        keyWriter.upsertExposees(internalKeys, now, withFederationGateway);
+      } else {
+        dataService.upsertExposees(internalKeys, now, withFederationGateway);
+      }
     }
   }
 
@@ -127,12 +182,62 @@ public class InsertManager {
       internalKeys = modifier.modify(now, internalKeys, osType, osVersion, appVersion, principal);
     }
 
-    for (KeyInsertionFilter filter : filterList) {
-      internalKeys = filter.filter(now, internalKeys, osType, osVersion, appVersion, principal);
+    int i = 0;
+    while (i < filterList.size()) {
+      var filter = filterList.get(i);
+      if (!(filter instanceof KeyPredicateFilter)) {
+        int before = internalKeys.size();
+        internalKeys = filter.filter(now, internalKeys, osType, osVersion, appVersion, principal);
+        rejectedKeys.get(i).add(before - internalKeys.size());
+        i++;
+        continue;
+      }
+      // fuse all following predicate filters into one pass
+      var predicates = new ArrayList<Predicate<GaenKey>>();
+      int first = i;
+      while (i < filterList.size() && filterList.get(i) instanceof KeyPredicateFilter) {
+        var predicateFilter = (KeyPredicateFilter) filterList.get(i);
+        predicates.add(predicateFilter.keyPredicate(now, osType, osVersion, appVersion, principal));
+        i++;
+      }
+      internalKeys = applyPredicates(internalKeys, predicates, first);
     }
     return internalKeys;
   }
 
+  /**
+   * Keeps the keys accepted by all predicates, and counts for each predicate the keys it rejected.
+   * A key is not tested against the remaining predicates once one rejected it.
+   *
+   * @param firstFilter the index of the filter of the first predicate in the filter list
+   */
+  private List<GaenKey> applyPredicates(
+      List<GaenKey> keys, List<Predicate<GaenKey>> predicates, int firstFilter) {
+    var kept = new ArrayList<GaenKey>(keys.size());
+    var rejected = new int[predicates.size()];
+    for (var key : keys) {
+      int rejecting = firstRejecting(key, predicates);
+      if (rejecting < 0) {
+        kept.add(key);
+      } else {
+        rejected[rejecting]++;
+      }
+    }
+    for (int p = 0; p < rejected.length; p++) {
+      rejectedKeys.get(firstFilter + p).add(rejected[p]);
+    }
+    return kept;
+  }
+
+  private static int firstRejecting(GaenKey key, List<Predicate<GaenKey>> predicates) {
+    for (int p = 0; p < predicates.size(); p++) {
+      if (!predicates.get(p).test(key)) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Extracts the {@link OSType} from the osString that is given by the client request.
    *
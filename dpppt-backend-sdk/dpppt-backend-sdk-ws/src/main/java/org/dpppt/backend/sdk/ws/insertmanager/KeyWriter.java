@@ -0,0 +1,24 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import java.util.List;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Writes the keys which remain after the modifiers and filters, instead of the {@link
+ * InsertManager} writing them to the database itself. See {@link
+ * InsertManager#setKeyWriter(KeyWriter)}.
+ */
+public interface KeyWriter {
+
+  /**
+   * Writes the keys of an upload, see {@link
+   * org.dpppt.backend.sdk.data.gaen.GaenDataService#upsertExposees(List, UTCInstant, boolean)}.
+   * Returns once the keys are stored durably.
+   *
+   * @param keys the keys to write
+   * @param now time of the request
+   * @param withFederationGateway whether the keys may be shared with federation gateways
+   */
+  void upsertExposees(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway);
+}
@@ -0,0 +1,373 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.dpppt.backend.sdk.data.gaen.ExposeeUpload;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Acknowledges uploads as soon as their keys are in a local append-only log, and writes them to the
+ * database in the background. Uploads therefore neither wait for the database nor fail while it is
+ * briefly unavailable.
+ *
+ * <p>The keys of an upload are appended to the current segment file and forced to disk before
+ * {@link #upsertExposees(List, UTCInstant, boolean)} returns. {@link #drain()}, meant to run
+ * periodically, starts a new segment and writes the keys of all previous segments to the database,
+ * one transaction per segment. A segment is deleted once its keys are committed, and kept for the
+ * next drain if writing fails. Segments left over from a crash are drained the same way, keys which
+ * are already stored are ignored by the upsert. A record torn by a crash is detected by its
+ * checksum, and the rest of its segment is skipped.
+ *
+ * <p>If a segment cannot be written in one transaction, its uploads are written one by one. An
+ * upload which fails while other uploads are written is rejected: it is moved to a file with the
+ * suffix .rejected next to the segments, in the same format, and counted by the metric
+ * gaen.upload.writeaheadlog.rejected. A segment of which no upload could be written is kept, as the
+ * database is probably unavailable, and the drain goes on with the next segment. Once an upload of
+ * a later segment is written, such a segment is written once more, and its uploads which fail again
+ * are rejected as well.
+ *
+ * <p>Each record keeps the time of its upload, and keys drained within the release bucket of their
+ * upload are stored as received at that time. Keys drained after that bucket was published are
+ * stored as received at the start of the bucket of the drain instead, i.e. in the bucket which is
+ * still open, such that they are released with the next bucket instead of being missed by clients.
+ * If the log cannot be written, the keys are written to the database directly.
+ */
+public class WriteAheadKeyLog implements KeyWriter, DisposableBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(WriteAheadKeyLog.class);
+
+  private static final String SEGMENT_PREFIX = "uploads-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String REJECTED_SUFFIX = ".rejected";
+
+  // each record starts with the length and the checksum of its payload, which holds the upload
+  // time, the federation gateway flag and the keys
+  private static final int HEADER_BYTES = 8;
+
+  private final Path directory;
+  private final GaenDataService dataService;
+  private final Duration releaseBucketDuration;
+  private final LongAdder rejectedUploads = new LongAdder();
+
+  private final Object appendLock = new Object();
+  // sequence number of the segment keys are appended to
+  private long segment;
+  private FileChannel current;
+  private long currentSize;
+
+  /**
+   * Opens the log, continuing after the segments of a previous run, which are written to the
+   * database by the next {@link #drain()}.
+   *
+   * @param directory where the segments are stored, created if necessary
+   * @param dataService where the keys are written to
+   * @param releaseBucketDuration duration of a release bucket
+   * @param meterRegistry where the rejected uploads are reported
+   * @throws IOException if the directory or the first segment cannot be created
+   */
+  public WriteAheadKeyLog(
+      Path directory,
+      GaenDataService dataService,
+      Duration releaseBucketDuration,
+      MeterRegistry meterRegistry)
+      throws IOException {
+    this.directory = directory;
+    this.dataService = dataService;
+    this.releaseBucketDuration = releaseBucketDuration;
+    FunctionCounter.builder("gaen.upload.writeaheadlog.rejected", rejectedUploads, LongAdder::sum)
+        .description("Uploads of the write-ahead log which could not be written to the database")
+        .register(meterRegistry);
+    Files.createDirectories(directory);
+    var segments = listSegments();
+    if (!segments.isEmpty()) {
+      logger.warn("Found {} segments of a previous run in {}", segments.size(), directory);
+      segment = segments.get(segments.size() - 1) + 1;
+    }
+    openSegment();
+  }
+
+  @Override
+  public void upsertExposees(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway) {
+    var record = encode(keys, now, withFederationGateway);
+    synchronized (appendLock) {
+      try {
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+          current.write(record);
+        }
+        current.force(false);
+        currentSize += length;
+        return;
+      } catch (IOException e) {
+        logger.error("Could not append to segment {}, writing the keys directly", segment, e);
+        // later records must not follow a partly written one
+        try {
+          rollSegment();
+        } catch (IOException rollException) {
+          logger.error("Could not start a new segment", rollException);
+        }
+      }
+    }
+    dataService.upsertExposees(keys, now, withFederationGateway);
+  }
+
+  /**
+   * Starts a new segment, and writes the keys of all previous segments to the database. Segments
+   * which cannot be written are retried by the next drain, or rejected, see {@link
+   * WriteAheadKeyLog}.
+   */
+  public synchronized void drain() {
+    long drainBefore;
+    synchronized (appendLock) {
+      try {
+        if (currentSize > 0) {
+          rollSegment();
+        }
+      } catch (IOException e) {
+        logger.error("Could not start a new segment", e);
+      }
+      drainBefore = segment;
+    }
+    List<Long> segments;
+    try {
+      segments = listSegments();
+    } catch (IOException e) {
+      logger.error("Could not list the segments of the write-ahead log", e);
+      return;
+    }
+    // segments of which no upload could be written, in case the database is unavailable
+    var failedSegments = new ArrayList<Long>();
+    for (var closed : segments) {
+      if (closed >= drainBefore) {
+        break;
+      }
+      var path = segmentPath(closed);
+      boolean written;
+      try {
+        var uploads = read(path, UTCInstant.now());
+        var failed = write(uploads, closed);
+        written = failed.size() < uploads.size();
+        if (!failed.isEmpty() && !written) {
+          failedSegments.add(closed);
+          continue;
+        }
+        if (!failed.isEmpty()) {
+          reject(closed, failed);
+        }
+        Files.delete(path);
+      } catch (IOException e) {
+        logger.error("Could not drain segment {}, retrying with the next drain", closed, e);
+        continue;
+      }
+      if (written) {
+        // the database is available, so the earlier segments failed because of their uploads
+        rejectFailedSegments(failedSegments);
+      }
+    }
+    if (!failedSegments.isEmpty()) {
+      logger.error(
+          "Could not write {} segments of the write-ahead log, retrying with the next drain",
+          failedSegments.size());
+    }
+  }
+
+  // Writes the uploads in one transaction, or one by one if that fails, and returns the uploads
+  // which could not be written
+  private List<ExposeeUpload> write(List<ExposeeUpload> uploads, long segment) {
+    if (uploads.isEmpty()) {
+      return List.of();
+    }
+    try {
+      dataService.upsertExposees(uploads);
+      logger.info("Wrote {} uploads of segment {}", uploads.size(), segment);
+      return List.of();
+    } catch (RuntimeException e) {
+      if (uploads.size() == 1) {
+        logger.warn("Writing the upload of segment {} failed", segment, e);
+        return uploads;
+      }
+      logger.warn(
+          "Writing segment {} failed, writing its {} uploads one by one",
+          segment,
+          uploads.size(),
+          e);
+    }
+    var failed = new ArrayList<ExposeeUpload>();
+    for (var upload : uploads) {
+      try {
+        dataService.upsertExposees(List.of(upload));
+      } catch (RuntimeException uploadException) {
+        logger.warn("Writing an upload of segment {} failed", segment, uploadException);
+        failed.add(upload);
+      }
+    }
+    return failed;
+  }
+
+  // Writes the segments once more, now that the database is available, and rejects the uploads
+  // which fail again
+  private void rejectFailedSegments(List<Long> failedSegments) {
+    for (var iterator = failedSegments.iterator(); iterator.hasNext(); ) {
+      var failed = iterator.next();
+      var path = segmentPath(failed);
+      try {
+        var failedUploads = write(read(path, UTCInstant.now()), failed);
+        if (!failedUploads.isEmpty()) {
+          reject(failed, failedUploads);
+        }
+        Files.delete(path);
+        iterator.remove();
+      } catch (IOException e) {
+        logger.error("Could not reject segment {}, retrying with the next drain", failed, e);
+      }
+    }
+  }
+
+  // Appends the uploads to the rejected file of the segment, which is kept for manual inspection.
+  // Renaming it to a segment name writes it again with the next drain.
+  private void reject(long segment, List<ExposeeUpload> uploads) throws IOException {
+    var path = directory.resolve(segmentPath(segment).getFileName() + REJECTED_SUFFIX);
+    try (var rejected =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      for (var upload : uploads) {
+        var record = encode(upload.getKeys(), upload.getNow(), upload.isWithFederationGateway());
+        while (record.hasRemaining()) {
+          rejected.write(record);
+        }
+      }
+      rejected.force(false);
+    }
+    rejectedUploads.add(uploads.size());
+    logger.error(
+        "Rejected {} uploads of segment {}, moved them to {}", uploads.size(), segment, path);
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    drain();
+    synchronized (appendLock) {
+      current.close();
+      if (currentSize == 0) {
+        Files.deleteIfExists(segmentPath(segment));
+      }
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    current.close();
+    segment++;
+    openSegment();
+  }
+
+  private void openSegment() throws IOException {
+    current =
+        FileChannel.open(
+            segmentPath(segment),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    currentSize = 0;
+  }
+
+  private Path segmentPath(long segment) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+  }
+
+  private List<Long> listSegments() throws IOException {
+    try (var files = Files.list(directory)) {
+      return files
+          .map(path -> path.getFileName().toString())
+          .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+          .map(
+              name ->
+                  Long.parseLong(
+                      name.substring(
+                          SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static ByteBuffer encode(
+      List<GaenKey> keys, UTCInstant now, boolean withFederationGateway) {
+    var keyData = new ArrayList<byte[]>(keys.size());
+    int length = 8 + 1 + 4;
+    for (var key : keys) {
+      var data = key.getKeyDataBytes();
+      keyData.add(data);
+      length += 1 + data.length + 4 + 4;
+    }
+    var record = ByteBuffer.allocate(HEADER_BYTES + length);
+    record.putInt(length).putInt(0);
+    record.putLong(now.getTimestamp());
+    record.put((byte) (withFederationGateway ? 1 : 0)).putInt(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      var data = keyData.get(i);
+      record.put((byte) data.length).put(data);
+      record.putInt(keys.get(i).getRollingStartNumber()).putInt(keys.get(i).getRollingPeriod());
+    }
+    var checksum = new CRC32();
+    checksum.update(record.array(), HEADER_BYTES, length);
+    record.putInt(4, (int) checksum.getValue());
+    return record.flip();
+  }
+
+  // Reads the uploads of a segment, with their upload time clamped to the open bucket at drainTime
+  private List<ExposeeUpload> read(Path path, UTCInstant drainTime) throws IOException {
+    var openBucket = drainTime.roundToBucketStart(releaseBucketDuration);
+    var data = ByteBuffer.wrap(Files.readAllBytes(path));
+    var uploads = new ArrayList<ExposeeUpload>();
+    boolean torn = false;
+    while (data.remaining() >= HEADER_BYTES) {
+      int length = data.getInt();
+      int expectedChecksum = data.getInt();
+      if (length < 0 || length > data.remaining()) {
+        torn = true;
+        break;
+      }
+      var checksum = new CRC32();
+      checksum.update(data.array(), data.position(), length);
+      if ((int) checksum.getValue() != expectedChecksum) {
+        torn = true;
+        break;
+      }
+      var uploadTime = UTCInstant.ofEpochMillis(data.getLong());
+      var now = uploadTime.isBeforeEpochMillisOf(openBucket) ? openBucket : uploadTime;
+      boolean withFederationGateway = data.get() == 1;
+      int count = data.getInt();
+      var keys = new ArrayList<GaenKey>(count);
+      for (int i = 0; i < count; i++) {
+        var key = new GaenKey();
+        var keyData = new byte[data.get() & 0xff];
+        data.get(keyData);
+        key.setKeyDataBytes(keyData);
+        key.setRollingStartNumber(data.getInt());
+        key.setRollingPeriod(data.getInt());
+        keys.add(key);
+      }
+      uploads.add(new ExposeeUpload(keys, now, withFederationGateway));
+    }
+    if (torn || data.hasRemaining()) {
+      logger.warn("Skipping a torn record at the end of {}", path);
+    }
+    return uploads;
+  }
+}
@@ -31,7 +31,8 @@ public class AssertKeyFormat implements KeyInsertionFilter {
       throws InsertException {
 
     var hasInvalidKeys =
-        content.stream().anyMatch(key -> !validationUtils.isValidKeyFormat(key.getKeyData()));
+        content.stream()
+            .anyMatch(key -> !validationUtils.isValidKeyFormat(key.getKeyDataBytes()));
 
     if (hasInvalidKeys) {
       throw new KeyFormatException();
@@ -1,7 +1,6 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -15,7 +14,7 @@ import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
  * token: the key dates must be >= the onset date, which was set by the health authority and is
  * available as a claim in the JWT
  */
-public class EnforceMatchingJWTClaimsForExposed implements KeyInsertionFilter {
+public class EnforceMatchingJWTClaimsForExposed implements KeyPredicateFilter {
 
   private final ValidateRequest validateRequest;
 
@@ -24,16 +23,9 @@ public class EnforceMatchingJWTClaimsForExposed implements KeyInsertionFilter {
   }
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(key -> isValidKeyDate(key, principal, now))
-        .collect(Collectors.toList());
+  public Predicate<GaenKey> keyPredicate(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    return key -> isValidKeyDate(key, principal, now);
   }
 
   private boolean isValidKeyDate(GaenKey key, Object principal, UTCInstant now) {
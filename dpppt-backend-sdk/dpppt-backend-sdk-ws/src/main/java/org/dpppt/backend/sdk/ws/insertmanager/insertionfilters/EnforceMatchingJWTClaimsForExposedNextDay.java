@@ -1,9 +1,7 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
-import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.OSType;
@@ -16,7 +14,7 @@ import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateIsInvalid;
  * in the JWT token: the supplied key must match `delayedKeyDate`, which has been set as a claim by
  * a previous call to `exposed`
  */
-public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyInsertionFilter {
+public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyPredicateFilter {
 
   private final ValidationUtils validationUtils;
 
@@ -25,29 +23,21 @@ public class EnforceMatchingJWTClaimsForExposedNextDay implements KeyInsertionFi
   }
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(
-            key -> {
-              try {
-                // getDelayedKeyDateClaim throws an exception if there is no delayedKeyDate claim
-                // available.
-                var delayedKeyDateClaim = validationUtils.getDelayedKeyDateClaim(principal);
-                var delayedKeyDate =
-                    UTCInstant.of(key.getRollingStartNumber(), GaenUnit.TenMinutes);
-                return delayedKeyDateClaim.equals(delayedKeyDate)
-                    && isValidDelayedKeyDate(now, delayedKeyDate);
-              } catch (DelayedKeyDateClaimIsMissing ex) {
-                return false;
-              }
-            })
-        .collect(Collectors.toList());
+  public Predicate<GaenKey> keyPredicate(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    UTCInstant delayedKeyDateClaim;
+    try {
+      // getDelayedKeyDateClaim throws an exception if there is no delayedKeyDate claim available.
+      delayedKeyDateClaim = validationUtils.getDelayedKeyDateClaim(principal);
+    } catch (DelayedKeyDateClaimIsMissing ex) {
+      return key -> false;
+    }
+    // only a key of the claimed date is kept, so it is enough to check the claimed date
+    if (!isValidDelayedKeyDate(now, delayedKeyDateClaim)) {
+      return key -> false;
+    }
+    long delayedKeyDate = delayedKeyDateClaim.get10MinutesSince1970();
+    return key -> key.getRollingStartNumber() == delayedKeyDate;
   }
 
   private boolean isValidDelayedKeyDate(UTCInstant now, UTCInstant delayedKeyDate) {
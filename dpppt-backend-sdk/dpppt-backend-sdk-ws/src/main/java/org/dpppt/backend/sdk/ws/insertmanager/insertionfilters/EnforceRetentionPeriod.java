@@ -1,9 +1,7 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
-import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.OSType;
@@ -13,7 +11,7 @@ import org.dpppt.backend.sdk.ws.util.ValidationUtils;
  * Checks if a key is in the configured retention period. If a key is before the retention period it
  * is filtered out, as it will not be relevant for the system anymore.
  */
-public class EnforceRetentionPeriod implements KeyInsertionFilter {
+public class EnforceRetentionPeriod implements KeyPredicateFilter {
 
   private final ValidationUtils validationUtils;
 
@@ -22,19 +20,9 @@ public class EnforceRetentionPeriod implements KeyInsertionFilter {
   }
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(
-            key -> {
-              var timestamp = UTCInstant.of(key.getRollingStartNumber(), GaenUnit.TenMinutes);
-              return !validationUtils.isBeforeRetention(timestamp, now);
-            })
-        .collect(Collectors.toList());
+  public Predicate<GaenKey> keyPredicate(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    long retentionStart = validationUtils.getRetentionStart(now).get10MinutesSince1970();
+    return key -> key.getRollingStartNumber() >= retentionStart;
   }
 }
@@ -0,0 +1,45 @@
+package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
+
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.semver.Version;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
+import org.dpppt.backend.sdk.ws.insertmanager.OSType;
+
+/**
+ * A {@link KeyInsertionFilter} which decides for every key on its own whether it is kept. The
+ * {@link InsertManager} applies consecutive predicate filters in a single pass over the keys,
+ * instead of building a new list for every filter.
+ */
+public interface KeyPredicateFilter extends KeyInsertionFilter {
+
+  /**
+   * Returns the predicate deciding which keys of an upload are kept. It is called once per upload,
+   * such that values which only depend on the upload, like bounds derived from now, are not
+   * computed again for every key.
+   *
+   * @param now current timestamp
+   * @param osType the os type of the client which uploaded the keys
+   * @param osVersion the os version of the client which uploaded the keys
+   * @param appVersion the app version of the client which uploaded the keys
+   * @param principal the authorization context which belongs to the uploaded keys
+   * @return a predicate which is true for the keys to keep
+   */
+  public Predicate<GaenKey> keyPredicate(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal);
+
+  @Override
+  default List<GaenKey> filter(
+      UTCInstant now,
+      List<GaenKey> content,
+      OSType osType,
+      Version osVersion,
+      Version appVersion,
+      Object principal) {
+    var predicate = keyPredicate(now, osType, osVersion, appVersion, principal);
+    return content.stream().filter(predicate).collect(Collectors.toList());
+  }
+}
@@ -1,9 +1,7 @@
 package org.dpppt.backend.sdk.ws.insertmanager.insertionfilters;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
-import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.OSType;
@@ -11,23 +9,13 @@ import org.dpppt.backend.sdk.ws.insertmanager.OSType;
 /**
  * Reject keys that are too far in the future. The `rollingStart` must not be later than tomorrow.
  */
-public class RemoveKeysFromFuture implements KeyInsertionFilter {
+public class RemoveKeysFromFuture implements KeyPredicateFilter {
 
   @Override
-  public List<GaenKey> filter(
-      UTCInstant now,
-      List<GaenKey> content,
-      OSType osType,
-      Version osVersion,
-      Version appVersion,
-      Object principal) {
-    return content.stream()
-        .filter(
-            key -> {
-              var rollingStartNumberInstant =
-                  UTCInstant.of(key.getRollingStartNumber(), GaenUnit.TenMinutes);
-              return rollingStartNumberInstant.isBeforeDateOf(now.plusDays(2));
-            })
-        .collect(Collectors.toList());
+  public Predicate<GaenKey> keyPredicate(
+      UTCInstant now, OSType osType, Version osVersion, Version appVersion, Object principal) {
+    // the rolling start number counts ten minute intervals, and days start at a multiple of them
+    long dayAfterTomorrow = now.plusDays(2).atStartOfDay().get10MinutesSince1970();
+    return key -> key.getRollingStartNumber() < dayAfterTomorrow;
   }
 }
@@ -11,7 +11,10 @@
 package org.dpppt.backend.sdk.ws.security;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
 import org.dpppt.backend.sdk.data.RedeemDataService;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.security.oauth2.core.OAuth2Error;
 import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
 import org.springframework.security.oauth2.core.OAuth2TokenValidator;
@@ -25,9 +28,27 @@ public class JWTValidator implements OAuth2TokenValidator<Jwt> {
   private RedeemDataService dataService;
   private Duration maxJwtValidity;
 
+  // recently redeemed uuids, in insertion order, with the time until which they are kept. As all
+  // entries are kept for maxJwtValidity, the eldest entry is also the first to expire. The
+  // database stays the authority, so evicting an entry early only costs a query.
+  private final int redeemedCacheSize;
+  private final LinkedHashMap<String, Instant> redeemedUuids = new LinkedHashMap<>();
+
   public JWTValidator(RedeemDataService dataService, Duration maxJwtValidity) {
+    this(dataService, maxJwtValidity, 0);
+  }
+
+  /**
+   * @param dataService where redeemed uuids are stored
+   * @param maxJwtValidity how long a token may be valid at most
+   * @param redeemedCacheSize how many redeemed uuids are kept in memory, such that replays are
+   *     rejected without a query. 0 disables the cache.
+   */
+  public JWTValidator(
+      RedeemDataService dataService, Duration maxJwtValidity, int redeemedCacheSize) {
     this.dataService = dataService;
     this.maxJwtValidity = maxJwtValidity;
+    this.redeemedCacheSize = redeemedCacheSize;
   }
 
   @Override
@@ -41,10 +62,36 @@ public class JWTValidator implements OAuth2TokenValidator<Jwt> {
         || token.getIssuedAt().plus(maxJwtValidity).isBefore(token.getExpiresAt())) {
       return OAuth2TokenValidatorResult.failure(new OAuth2Error(OAuth2ErrorCodes.INVALID_REQUEST));
     }
-    if (token.containsClaim(UUID_CLAIM)
-        && this.dataService.checkAndInsertPublishUUID(token.getClaim(UUID_CLAIM))) {
+    if (token.containsClaim(UUID_CLAIM) && redeem(token.getClaimAsString(UUID_CLAIM))) {
       return OAuth2TokenValidatorResult.success();
     }
     return OAuth2TokenValidatorResult.failure(new OAuth2Error(OAuth2ErrorCodes.INVALID_SCOPE));
   }
+
+  private boolean redeem(String uuid) {
+    if (redeemedCacheSize <= 0) {
+      return dataService.checkAndInsertPublishUUID(uuid);
+    }
+    var now = UTCInstant.now().getInstant();
+    synchronized (redeemedUuids) {
+      var it = redeemedUuids.values().iterator();
+      while (it.hasNext() && !it.next().isAfter(now)) {
+        it.remove();
+      }
+      if (redeemedUuids.containsKey(uuid)) {
+        return false;
+      }
+    }
+    // either way the uuid is redeemed now
+    boolean inserted = dataService.checkAndInsertPublishUUID(uuid);
+    synchronized (redeemedUuids) {
+      redeemedUuids.put(uuid, now.plus(maxJwtValidity));
+      if (redeemedUuids.size() > redeemedCacheSize) {
+        var it = redeemedUuids.keySet().iterator();
+        it.next();
+        it.remove();
+      }
+    }
+    return inserted;
+  }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import javax.crypto.Mac;
+import org.dpppt.backend.sdk.data.gaen.ExposedKeyHandler;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+
+/**
+ * The keys of an export, stored in flat arrays instead of one object per key. Keys can be added
+ * directly as they are read from the database, see {@link ExposedKeyHandler}.
+ *
+ * <p>The order of the keys is kept in a separate index, so shuffling and sorting only move ints
+ * around. The accessors take the position of a key in that order.
+ *
+ * <p>The list still holds all keys of an export, about 36 bytes per key: the shuffle and the
+ * signature need all of them before the first byte of the export is written.
+ */
+public class CompactKeyList implements ExposedKeyHandler {
+
+  private static final int INITIAL_CAPACITY = 64;
+  // key data is almost always 16 bytes long
+  private static final int KEY_LENGTH = 16;
+
+  private byte[] keyData = new byte[INITIAL_CAPACITY * KEY_LENGTH];
+  private int keyDataSize = 0;
+  // keyDataEnds[i] is the end of the key data of the key with index i, its start the end of i - 1
+  private int[] keyDataEnds = new int[INITIAL_CAPACITY];
+  private int[] rollingStartNumbers = new int[INITIAL_CAPACITY];
+  private int[] rollingPeriods = new int[INITIAL_CAPACITY];
+  private int[] transmissionRiskLevels = new int[INITIAL_CAPACITY];
+  // order[i] is the index of the key at position i
+  private int[] order = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /** Copies the given keys, in the same order. */
+  public static CompactKeyList of(List<GaenKey> keys) {
+    var list = new CompactKeyList();
+    for (var key : keys) {
+      var transmissionRiskLevel = key.getTransmissionRiskLevel();
+      list.add(
+          key.getKeyDataBytes(),
+          key.getRollingStartNumber(),
+          key.getRollingPeriod(),
+          transmissionRiskLevel == null ? 0 : transmissionRiskLevel);
+    }
+    return list;
+  }
+
+  @Override
+  public void handle(byte[] keyData, int rollingStartNumber, int rollingPeriod) {
+    add(keyData, rollingStartNumber, rollingPeriod, 0);
+  }
+
+  /**
+   * Adds a key at the end of the list.
+   *
+   * @throws IllegalArgumentException if the key data is missing
+   */
+  public void add(
+      byte[] keyData, int rollingStartNumber, int rollingPeriod, int transmissionRiskLevel) {
+    if (keyData == null) {
+      throw new IllegalArgumentException("Invalid key data");
+    }
+    int keyDataEnd = keyDataSize + keyData.length;
+    if (keyDataEnd > this.keyData.length) {
+      this.keyData = Arrays.copyOf(this.keyData, Math.max(2 * this.keyData.length, keyDataEnd));
+    }
+    if (size == order.length) {
+      int capacity = size * 2;
+      keyDataEnds = Arrays.copyOf(keyDataEnds, capacity);
+      rollingStartNumbers = Arrays.copyOf(rollingStartNumbers, capacity);
+      rollingPeriods = Arrays.copyOf(rollingPeriods, capacity);
+      transmissionRiskLevels = Arrays.copyOf(transmissionRiskLevels, capacity);
+      order = Arrays.copyOf(order, capacity);
+    }
+    System.arraycopy(keyData, 0, this.keyData, keyDataSize, keyData.length);
+    keyDataSize = keyDataEnd;
+    keyDataEnds[size] = keyDataEnd;
+    rollingStartNumbers[size] = rollingStartNumber;
+    rollingPeriods[size] = rollingPeriod;
+    transmissionRiskLevels[size] = transmissionRiskLevel;
+    order[size] = size;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** The index of the key at the given position, i.e. the order in which it was added. */
+  int getIndex(int position) {
+    return order[position];
+  }
+
+  int getRollingStartNumber(int position) {
+    return rollingStartNumbers[order[position]];
+  }
+
+  int getRollingPeriod(int position) {
+    return rollingPeriods[order[position]];
+  }
+
+  int getTransmissionRiskLevel(int position) {
+    return transmissionRiskLevels[order[position]];
+  }
+
+  /** The array holding the key data of all keys, see {@link #getKeyDataOffset(int)}. */
+  byte[] getKeyDataArray() {
+    return keyData;
+  }
+
+  /** Offset of the key data of the key at the given position in {@link #getKeyDataArray()}. */
+  int getKeyDataOffset(int position) {
+    return start(order[position]);
+  }
+
+  int getKeyDataLength(int position) {
+    int index = order[position];
+    return keyDataEnds[index] - start(index);
+  }
+
+  /** Updates the given mac with the key data of all keys, in their current order. */
+  void updateMac(Mac mac) {
+    for (int i = 0; i < size; i++) {
+      mac.update(keyData, getKeyDataOffset(i), getKeyDataLength(i));
+    }
+  }
+
+  private int start(int index) {
+    return index == 0 ? 0 : keyDataEnds[index - 1];
+  }
+
+  /**
+   * Shuffles the keys with the given random. The permutation is the same as the one of {@link
+   * java.util.Collections#shuffle(List, Random)} on a list of the same size.
+   */
+  void shuffle(Random random) {
+    shuffle(random::nextInt);
+  }
+
+  /**
+   * Shuffles the keys with Fisher-Yates, in the same steps as {@link #shuffle(Random)}.
+   *
+   * @param nextIndex returns a uniformly distributed index in [0, bound) for the given bound
+   */
+  void shuffle(IntUnaryOperator nextIndex) {
+    for (int i = size; i > 1; i--) {
+      int j = nextIndex.applyAsInt(i);
+      int tmp = order[i - 1];
+      order[i - 1] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  /** Sorts the keys by their key data, as unsigned bytes. The sort is stable. */
+  void sortByKeyData() {
+    // merge sort, as the JDK only sorts primitives by their own value
+    var buffer = new int[size];
+    for (int width = 1; width < size; width *= 2) {
+      for (int from = 0; from < size - width; from += 2 * width) {
+        merge(from, from + width, Math.min(from + 2 * width, size), buffer);
+      }
+    }
+  }
+
+  private void merge(int from, int mid, int to, int[] buffer) {
+    System.arraycopy(order, from, buffer, from, to - from);
+    int left = from;
+    int right = mid;
+    for (int i = from; i < to; i++) {
+      if (right >= to || (left < mid && compareKeyData(buffer[left], buffer[right]) <= 0)) {
+        order[i] = buffer[left++];
+      } else {
+        order[i] = buffer[right++];
+      }
+    }
+  }
+
+  private int compareKeyData(int a, int b) {
+    return Arrays.compareUnsigned(
+        keyData, start(a), keyDataEnds[a], keyData, start(b), keyDataEnds[b]);
+  }
+}
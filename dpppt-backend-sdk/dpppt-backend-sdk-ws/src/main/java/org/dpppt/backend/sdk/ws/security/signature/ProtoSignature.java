@@ -11,7 +11,12 @@ package org.dpppt.backend.sdk.ws.security.signature;
 
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
@@ -20,21 +25,31 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat.SignatureInfo;
 import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.springframework.util.StreamUtils;
 
 public class ProtoSignature {
 
@@ -50,6 +65,25 @@ public class ProtoSignature {
   private final String keyVerificationId;
   private final String gaenRegion;
   private final Duration releaseBucketDuration;
+  // if set, keys are shuffled deterministically per bundle, see shuffle(CompactKeyList, String)
+  private final byte[] shuffleSecret;
+  private final boolean storeZipEntries;
+  private final int maxKeysPerFile;
+  private final Executor batchExecutor;
+  // digest of everything which determines the zip of a bundle besides its keys, see getETag
+  private final byte[] configDigest;
+  private final Map<String, byte[]> signatureCache;
+  private final SignatureInfo signatureInfo;
+  private final TemporaryExposureKeyFormatV2.SignatureInfo signatureInfoV2;
+  private final TemporaryExposureKeyExportEncoder exportEncoder;
+  private final TemporaryExposureKeyExportEncoder exportEncoderV2;
+
+  // ECDSA signatures are randomized, so the signature of an export is cached to get byte-identical
+  // zips for identical exports.
+  private static final int SIGNATURE_CACHE_SIZE = 1024;
+  // Fixed modification time of the zip entries, such that identical exports give identical zips.
+  private static final LocalDateTime DETERMINISTIC_ZIP_ENTRY_TIME =
+      LocalDateTime.of(2020, 1, 1, 0, 0);
 
   public Map<String, String> oidToJavaSignature = Map.of("1.2.840.10045.4.3.2", "SHA256withECDSA");
 
@@ -62,6 +96,74 @@ public class ProtoSignature {
       String keyVerificationId,
       String gaenRegion,
       Duration releaseBucketDuration) {
+    this(
+        algorithm,
+        keyPair,
+        appBundleId,
+        apkPackage,
+        keyVersion,
+        keyVerificationId,
+        gaenRegion,
+        releaseBucketDuration,
+        null,
+        false);
+  }
+
+  public ProtoSignature(
+      String algorithm,
+      KeyPair keyPair,
+      String appBundleId,
+      String apkPackage,
+      String keyVersion,
+      String keyVerificationId,
+      String gaenRegion,
+      Duration releaseBucketDuration,
+      byte[] shuffleSecret,
+      boolean storeZipEntries) {
+    this(
+        algorithm,
+        keyPair,
+        appBundleId,
+        apkPackage,
+        keyVersion,
+        keyVerificationId,
+        gaenRegion,
+        releaseBucketDuration,
+        shuffleSecret,
+        storeZipEntries,
+        0,
+        null);
+  }
+
+  /**
+   * @param shuffleSecret if not null, the keys of a bundle are shuffled with a seed derived from
+   *     this secret and the bundle tag, and signatures are cached. Identical requests then return
+   *     byte-identical zips, which can be cached by HTTP caches and CDNs.
+   * @param storeZipEntries if true, export.bin and export.sig are stored uncompressed. The key data
+   *     is random, so compressing it costs CPU time for almost no gain in size.
+   * @param maxKeysPerFile if greater than 0, batched payloads with more keys are split into a batch
+   *     of exports with at most this many keys each, see {@link #getPayloadV2(CompactKeyList,
+   *     String, boolean)}
+   * @param batchExecutor encodes and signs the exports of a batch in parallel, except the first one
+   *     which is signed by the calling thread. Exports it rejects are signed by the calling thread
+   *     as well. Must be set if maxKeysPerFile is greater than 0.
+   */
+  public ProtoSignature(
+      String algorithm,
+      KeyPair keyPair,
+      String appBundleId,
+      String apkPackage,
+      String keyVersion,
+      String keyVerificationId,
+      String gaenRegion,
+      Duration releaseBucketDuration,
+      byte[] shuffleSecret,
+      boolean storeZipEntries,
+      int maxKeysPerFile,
+      Executor batchExecutor) {
+    if (maxKeysPerFile > 0 && batchExecutor == null) {
+      throw new IllegalArgumentException("Batching keys needs an executor");
+    }
     this.keyPair = keyPair;
     this.algorithm = algorithm.trim();
     this.appBundleId = appBundleId;
@@ -70,6 +172,86 @@ public class ProtoSignature {
     this.keyVersion = keyVersion;
     this.gaenRegion = gaenRegion;
     this.releaseBucketDuration = releaseBucketDuration;
+    this.shuffleSecret = shuffleSecret;
+    this.storeZipEntries = storeZipEntries;
+    this.maxKeysPerFile = maxKeysPerFile;
+    this.batchExecutor = batchExecutor;
+    this.configDigest = configDigest();
+    this.signatureCache =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > SIGNATURE_CACHE_SIZE;
+          }
+        };
+    this.signatureInfo = tekSignature();
+    this.signatureInfoV2 = tekSignatureV2();
+    this.exportEncoder =
+        TemporaryExposureKeyExportEncoder.v1(signatureInfo, gaenRegion, releaseBucketDuration);
+    this.exportEncoderV2 =
+        TemporaryExposureKeyExportEncoder.v2(signatureInfoV2, gaenRegion, releaseBucketDuration);
+  }
+
+  public boolean isDeterministic() {
+    return shuffleSecret != null;
+  }
+
+  /**
+   * Returns the ETag of a bundle. It is derived from the bundle tag and the configuration of this
+   * signer instead of the zip, such that a request can be revalidated before any key is loaded or
+   * signed. The bundle tag must therefore identify the keys of the bundle, i.e. contain the
+   * requested range and the release bucket, see {@link
+   * org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache.BundleKey}. Keys which are committed for
+   * a release bucket after it closed are not covered by the ETag.
+   *
+   * <p>If the signer is deterministic, a bundle is always the same zip and the ETag is strong.
+   * Otherwise the keys are shuffled randomly and the ETag is weak: the zips contain the same keys,
+   * but not the same bytes.
+   *
+   * @param bundleTag identifies the keys of the bundle
+   * @return a quoted ETag, weak if the signer is not deterministic
+   */
+  public String getETag(String bundleTag) {
+    MessageDigest digest = sha256();
+    digest.update(configDigest);
+    digest.update(bundleTag.getBytes(StandardCharsets.UTF_8));
+    String etag =
+        "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest()) + "\"";
+    return isDeterministic() ? etag : "W/" + etag;
+  }
+
+  private byte[] configDigest() {
+    MessageDigest digest = sha256();
+    digest.update(keyPair.getPublic().getEncoded());
+    for (String value :
+        List.of(
+            algorithm,
+            String.valueOf(appBundleId),
+            String.valueOf(apkPackage),
+            String.valueOf(keyVersion),
+            String.valueOf(keyVerificationId),
+            String.valueOf(gaenRegion),
+            String.valueOf(releaseBucketDuration),
+            String.valueOf(storeZipEntries),
+            String.valueOf(maxKeysPerFile))) {
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    if (shuffleSecret != null) {
+      digest.update(shuffleSecret);
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
   }
 
   /**
@@ -84,46 +266,64 @@ public class ProtoSignature {
    */
   public ProtoSignatureWrapper getPayload(List<GaenKey> keys)
       throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    if (keys.isEmpty()) {
-      throw new IOException("Keys should not be empty");
-    }
+    return getPayload(keys, null);
+  }
 
-    // Shuffle the keys so that the clients don't know the order of arrival of the keys.
-    Collections.shuffle(keys);
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature. If the signer is
+   * deterministic, identical keys and bundle tags result in identical zips.
+   *
+   * @param keys
+   * @param bundleTag identifies the bundle (e.g. the requested range and release bucket), used to
+   *     seed the shuffling of the keys. If null, the keys are shuffled randomly.
+   * @return
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public ProtoSignatureWrapper getPayload(List<GaenKey> keys, String bundleTag)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var compactKeys = CompactKeyList.of(keys);
+    var payload = getPayload(compactKeys, bundleTag);
+    applyOrder(compactKeys, keys);
+    return payload;
+  }
 
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature, see {@link
+   * #getPayload(List, String)}. The order of the given keys is changed.
+   *
+   * @param keys
+   * @param bundleTag
+   * @return
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public ProtoSignatureWrapper getPayload(CompactKeyList keys, String bundleTag)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
     ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    ZipOutputStream zip = new ZipOutputStream(byteOut);
-    ByteArrayOutputStream hashOut = new ByteArrayOutputStream();
-    var digest = MessageDigest.getInstance("SHA256");
-    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-    var protoFile = getProtoKey(keys, keyDate);
-
-    zip.putNextEntry(new ZipEntry("export.bin"));
-    byte[] protoFileBytes = protoFile.toByteArray();
-    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-    zip.write(exportBin);
-    zip.closeEntry();
-
-    var signatureList = getSignatureObject(exportBin);
-    digest.update(exportBin);
-    digest.update(keyPair.getPublic().getEncoded());
-    hashOut.write(digest.digest());
+    byte[] hash = writePayload(keys, bundleTag, byteOut);
+    return new ProtoSignatureWrapper(hash, byteOut.toByteArray());
+  }
 
-    byte[] exportSig = signatureList.toByteArray();
-    zip.putNextEntry(new ZipEntry("export.sig"));
-    zip.write(exportSig);
-    zip.closeEntry();
+  /**
+   * Writes the ZIP file of {@link #getPayload(CompactKeyList, String)} to the given stream. The
+   * export is encoded, signed and hashed in one pass with bounded buffers.
+   */
+  private byte[] writePayload(CompactKeyList keys, String bundleTag, OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (keys.isEmpty()) {
+      throw new IOException("Keys should not be empty");
+    }
 
-    zip.flush();
-    zip.close();
-    byteOut.flush();
-    byteOut.close();
-    hashOut.flush();
-    hashOut.close();
+    // Shuffle the keys so that the clients don't know the order of arrival of the keys.
+    shuffle(keys, bundleTag);
 
-    return new ProtoSignatureWrapper(hashOut.toByteArray(), byteOut.toByteArray());
+    var keyDate = Duration.of(keys.getRollingStartNumber(0), GaenUnit.TenMinutes);
+    return writeBatches(exportEncoder, keys, keyDate, false, false, out);
   }
 
   /**
@@ -139,47 +339,268 @@ public class ProtoSignature {
    */
   public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys)
       throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayloadV2(keys, null);
+  }
+
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature. The keys are
+   * returned in the new v2 protobuf format. If the signer is deterministic, identical keys and
+   * bundle tags result in identical zips.
+   *
+   * @param keys
+   * @param bundleTag identifies the bundle (e.g. the requested range and release bucket), used to
+   *     seed the shuffling of the keys. If null, the keys are shuffled randomly.
+   * @return
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys, String bundleTag)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var compactKeys = CompactKeyList.of(keys);
+    var payload = getPayloadV2(compactKeys, bundleTag);
+    applyOrder(compactKeys, keys);
+    return payload;
+  }
+
+  /**
+   * Creates a ZIP file containing the given keys in the v2 protobuf format and the corresponding
+   * signature, see {@link #getPayloadV2(List, String)}. The order of the given keys is changed.
+   *
+   * @param keys
+   * @param bundleTag
+   * @return
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public ProtoSignatureWrapper getPayloadV2(CompactKeyList keys, String bundleTag)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayloadV2(keys, bundleTag, false);
+  }
+
+  /**
+   * Creates a ZIP file containing the given keys in the v2 protobuf format and the corresponding
+   * signature, see {@link #getPayloadV2(List, String)}. The order of the given keys is changed.
+   *
+   * <p>If batched and there are more keys than the maximum per file, the keys are split into a
+   * batch of exports, which are encoded and signed in parallel. Each export is a ZIP file as above,
+   * with its batch number and the batch size set in export.bin and export.sig. The returned ZIP
+   * file then contains these exports as export_1.zip, export_2.zip, and so on. Clients which expect
+   * a single export cannot read this format, so it must only be returned if the client asked for
+   * it. The hash of a batch is the SHA-256 digest of the concatenated hashes of its exports, in the
+   * order of their batch numbers.
+   *
+   * @param keys
+   * @param bundleTag
+   * @param batched whether the client accepts a batch of exports
+   * @return
+   * @throws IOException
+   * @throws InvalidKeyException
+   * @throws SignatureException
+   * @throws NoSuchAlgorithmException
+   */
+  public ProtoSignatureWrapper getPayloadV2(CompactKeyList keys, String bundleTag, boolean batched)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    byte[] hash = writePayloadV2(keys, bundleTag, batched, byteOut);
+    return new ProtoSignatureWrapper(hash, byteOut.toByteArray());
+  }
+
+  /**
+   * Writes the ZIP file of {@link #getPayloadV2(CompactKeyList, String, boolean)} to the given
+   * stream. Single exports are encoded, signed and hashed in one pass with bounded buffers.
+   */
+  private byte[] writePayloadV2(
+      CompactKeyList keys, String bundleTag, boolean batched, OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
     if (keys.isEmpty()) {
       throw new IOException("Keys should not be empty");
     }
     // Apple likes to have keys shuffled. See
     // https://developer.apple.com/documentation/exposurenotification/setting_up_a_key_server
     // This prevents the clients to know the order of arrival of the keys.
-    Collections.shuffle(keys);
+    shuffle(keys, bundleTag);
 
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    ZipOutputStream zip = new ZipOutputStream(byteOut);
-    ByteArrayOutputStream hashOut = new ByteArrayOutputStream();
+    var keyDate = Duration.of(keys.getRollingStartNumber(0), GaenUnit.TenMinutes);
+    return writeBatches(exportEncoderV2, keys, keyDate, true, batched, out);
+  }
+
+  private byte[] writeBatches(
+      TemporaryExposureKeyExportEncoder encoder,
+      CompactKeyList keys,
+      Duration keyDate,
+      boolean v2,
+      boolean batched,
+      OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (!batched || maxKeysPerFile <= 0 || keys.size() <= maxKeysPerFile) {
+      return writeZip(encoder, keys, 0, keys.size(), keyDate, 1, 1, v2, out);
+    }
+
+    int batchSize = (keys.size() + maxKeysPerFile - 1) / maxKeysPerFile;
+    var batches = new ArrayList<FutureTask<ProtoSignatureWrapper>>();
+    for (int i = 0; i < batchSize; i++) {
+      int batchNum = i + 1;
+      int from = i * maxKeysPerFile;
+      int to = Math.min(keys.size(), batchNum * maxKeysPerFile);
+      var batch =
+          new FutureTask<>(
+              () -> {
+                var batchOut = new ByteArrayOutputStream();
+                byte[] hash =
+                    writeZip(encoder, keys, from, to, keyDate, batchNum, batchSize, v2, batchOut);
+                return new ProtoSignatureWrapper(hash, batchOut.toByteArray());
+              });
+      batches.add(batch);
+    }
+    for (int i = 1; i < batchSize; i++) {
+      try {
+        batchExecutor.execute(batches.get(i));
+      } catch (RejectedExecutionException e) {
+        // all signing threads are busy and their queue is full
+        batches.get(i).run();
+      }
+    }
+    // the calling thread would only wait for the batches, so it signs the first one itself
+    batches.get(0).run();
+
+    // the hash of the batch covers the hashes of all its exports
     var digest = MessageDigest.getInstance("SHA256");
-    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-    var protoFile = getProtoKeyV2(keys, keyDate);
-
-    zip.putNextEntry(new ZipEntry("export.bin"));
-    byte[] protoFileBytes = protoFile.toByteArray();
-    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-    zip.write(exportBin);
+    ZipOutputStream zip = new ZipOutputStream(StreamUtils.nonClosing(out));
+    try {
+      for (int i = 0; i < batchSize; i++) {
+        var batch = awaitBatch(batches.get(i));
+        digest.update(batch.getHash());
+        var entry = newZipEntry("export_" + (i + 1) + ".zip");
+        if (storeZipEntries) {
+          var checksum = new ChecksumOutputStream();
+          checksum.write(batch.getZip());
+          checksum.applyTo(entry);
+        }
+        zip.putNextEntry(entry);
+        zip.write(batch.getZip());
+        zip.closeEntry();
+      }
+    } finally {
+      for (var batch : batches) {
+        batch.cancel(true);
+      }
+    }
+    zip.close();
+    return digest.digest();
+  }
+
+  private ProtoSignatureWrapper awaitBatch(FutureTask<ProtoSignatureWrapper> batch)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    try {
+      return batch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while signing a batch", e);
+    } catch (ExecutionException e) {
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private byte[] writeZip(
+      TemporaryExposureKeyExportEncoder encoder,
+      CompactKeyList keys,
+      int from,
+      int to,
+      Duration keyDate,
+      int batchNum,
+      int batchSize,
+      boolean v2,
+      OutputStream out)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var digest = MessageDigest.getInstance("SHA256");
+    Signature signature = Signature.getInstance(oidToJavaSignature.get(algorithm));
+    signature.initSign(keyPair.getPrivate());
+
+    ZipOutputStream zip = new ZipOutputStream(StreamUtils.nonClosing(out));
+    var exportBinEntry = newZipEntry("export.bin");
+    if (storeZipEntries) {
+      // A stored entry needs its size and CRC in the local header, before the data. The export is
+      // encoded once to compute them along with the digest and the signature, and then a second
+      // time into the zip entry. Encoding is cheap compared to keeping the export in memory.
+      var checksum = new ChecksumOutputStream();
+      writeExportBin(
+          encoder,
+          keys,
+          from,
+          to,
+          keyDate,
+          batchNum,
+          batchSize,
+          new SigningOutputStream(new DigestOutputStream(checksum, digest), signature));
+      checksum.applyTo(exportBinEntry);
+      zip.putNextEntry(exportBinEntry);
+      writeExportBin(encoder, keys, from, to, keyDate, batchNum, batchSize, zip);
+    } else {
+      zip.putNextEntry(exportBinEntry);
+      // export.bin is never materialized: it is written directly into the zip entry, while the
+      // digest and the signature are updated on the fly.
+      writeExportBin(
+          encoder,
+          keys,
+          from,
+          to,
+          keyDate,
+          batchNum,
+          batchSize,
+          new SigningOutputStream(new DigestOutputStream(zip, digest), signature));
+    }
     zip.closeEntry();
 
-    var signatureList = getSignatureObjectV2(exportBin);
-    digest.update(exportBin);
     digest.update(keyPair.getPublic().getEncoded());
-    hashOut.write(digest.digest());
-
-    byte[] exportSig = signatureList.toByteArray();
-    zip.putNextEntry(new ZipEntry("export.sig"));
+    byte[] hash = digest.digest();
+    byte[] exportSignature = sign(signature, hash);
+    byte[] exportSig =
+        v2
+            ? getSignatureObjectV2(exportSignature, batchNum, batchSize).toByteArray()
+            : getSignatureObject(exportSignature, batchNum, batchSize).toByteArray();
+    var exportSigEntry = newZipEntry("export.sig");
+    if (storeZipEntries) {
+      var checksum = new ChecksumOutputStream();
+      checksum.write(exportSig);
+      checksum.applyTo(exportSigEntry);
+    }
+    zip.putNextEntry(exportSigEntry);
     zip.write(exportSig);
     zip.closeEntry();
-
-    zip.flush();
     zip.close();
-    byteOut.flush();
-    byteOut.close();
-    hashOut.flush();
-    hashOut.close();
+    return hash;
+  }
 
-    return new ProtoSignatureWrapper(hashOut.toByteArray(), byteOut.toByteArray());
+  private void writeExportBin(
+      TemporaryExposureKeyExportEncoder encoder,
+      CompactKeyList keys,
+      int from,
+      int to,
+      Duration keyDate,
+      int batchNum,
+      int batchSize,
+      OutputStream out)
+      throws IOException {
+    out.write(EXPORT_MAGIC);
+    encoder.writeTo(keys, from, to, keyDate, batchNum, batchSize, out);
   }
 
   private byte[] sign(byte[] data)
@@ -190,17 +611,75 @@ public class ProtoSignature {
     return signature.sign();
   }
 
+  /**
+   * Finishes the given signature of an export. If the signer is deterministic, the signature is
+   * cached by the hash of the export, such that identical exports get identical signatures.
+   */
+  private byte[] sign(Signature signature, byte[] hash) throws SignatureException {
+    if (!isDeterministic()) {
+      return signature.sign();
+    }
+    var cacheKey = Base64.getEncoder().encodeToString(hash);
+    synchronized (signatureCache) {
+      var cached = signatureCache.get(cacheKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    var exportSignature = signature.sign();
+    synchronized (signatureCache) {
+      signatureCache.putIfAbsent(cacheKey, exportSignature);
+      return signatureCache.get(cacheKey);
+    }
+  }
+
+  /**
+   * Shuffles the keys so that the clients don't know the order of arrival of the keys. If the
+   * signer is deterministic and a bundle tag is given, the keys are first brought into a canonical
+   * order and then shuffled with a seed derived from the secret, the bundle tag and the keys. The
+   * order still does not reveal the order of arrival, but is the same for identical requests. The
+   * indices of the shuffle are drawn from HMAC-SHA256 in counter mode, such that the order cannot
+   * be predicted without the secret, see {@link HmacIndexStream}.
+   */
+  private void shuffle(CompactKeyList keys, String bundleTag)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    if (!isDeterministic() || bundleTag == null) {
+      keys.shuffle(ThreadLocalRandom.current());
+      return;
+    }
+    keys.sortByKeyData();
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(shuffleSecret, "HmacSHA256"));
+    mac.update(bundleTag.getBytes(StandardCharsets.UTF_8));
+    keys.updateMac(mac);
+    keys.shuffle(new HmacIndexStream(mac.doFinal())::nextInt);
+  }
+
+  // puts the given keys into the order in which they were exported
+  private static void applyOrder(CompactKeyList compactKeys, List<GaenKey> keys) {
+    var exported = new ArrayList<>(keys);
+    for (int i = 0; i < keys.size(); i++) {
+      keys.set(i, exported.get(compactKeys.getIndex(i)));
+    }
+  }
+
+  private ZipEntry newZipEntry(String name) {
+    var entry = new ZipEntry(name);
+    if (isDeterministic()) {
+      entry.setTimeLocal(DETERMINISTIC_ZIP_ENTRY_TIME);
+    }
+    return entry;
+  }
+
   private org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TEKSignatureList
-      getSignatureObjectV2(byte[] keyExport)
-          throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    byte[] exportSignature = sign(keyExport);
+      getSignatureObjectV2(byte[] exportSignature, int batchNum, int batchSize) {
     var signatureList = TemporaryExposureKeyFormatV2.TEKSignatureList.newBuilder();
     var theSignature = TemporaryExposureKeyFormatV2.TEKSignature.newBuilder();
     theSignature
-        .setSignatureInfo(tekSignatureV2())
+        .setSignatureInfo(signatureInfoV2)
         .setSignature(ByteString.copyFrom(exportSignature))
-        .setBatchNum(1)
-        .setBatchSize(1);
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize);
     signatureList.addSignatures(theSignature);
     return signatureList.build();
   }
@@ -215,16 +694,15 @@ public class ProtoSignature {
     return tekSignature.build();
   }
 
-  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(byte[] keyExport)
-      throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    byte[] exportSignature = sign(keyExport);
+  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(
+      byte[] exportSignature, int batchNum, int batchSize) {
     var signatureList = TemporaryExposureKeyFormat.TEKSignatureList.newBuilder();
     var theSignature = TemporaryExposureKeyFormat.TEKSignature.newBuilder();
     theSignature
-        .setSignatureInfo(tekSignature())
+        .setSignatureInfo(signatureInfo)
         .setSignature(ByteString.copyFrom(exportSignature))
-        .setBatchNum(1)
-        .setBatchSize(1);
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize);
     signatureList.addSignatures(theSignature);
     return signatureList.build();
   }
@@ -256,7 +734,6 @@ public class ProtoSignature {
       }
 
       var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-      var protoFile = getProtoKeyV2(keys, keyDate);
       var zipFileName = new StringBuilder();
 
       zipFileName.append("key_export_").append(group);
@@ -266,14 +743,14 @@ public class ProtoSignature {
       ZipOutputStream zip = new ZipOutputStream(byteOut);
 
       zip.putNextEntry(new ZipEntry("export.bin"));
-      byte[] protoFileBytes = protoFile.toByteArray();
-      byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-      System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-      System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
+      ByteArrayOutputStream exportBinOut = new ByteArrayOutputStream();
+      exportBinOut.write(EXPORT_MAGIC);
+      exportEncoderV2.writeTo(CompactKeyList.of(keys), 0, keys.size(), keyDate, 1, 1, exportBinOut);
+      byte[] exportBin = exportBinOut.toByteArray();
       zip.write(exportBin);
       zip.closeEntry();
 
-      var signatureList = getSignatureObjectV2(exportBin);
+      var signatureList = getSignatureObjectV2(sign(exportBin), 1, 1);
 
       byte[] exportSig = signatureList.toByteArray();
       zip.putNextEntry(new ZipEntry("export.sig"));
@@ -307,62 +784,99 @@ public class ProtoSignature {
     return getPayload(grouped);
   }
 
-  private TemporaryExposureKeyFormat.TemporaryExposureKeyExport getProtoKey(
-      List<GaenKey> exposedKeys, Duration batchReleaseTimeDuration) {
-    var file = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
+  /** Updates a signature with all bytes written to the underlying stream. */
+  private static class SigningOutputStream extends FilterOutputStream {
+    private final Signature signature;
 
-    var tekList = new ArrayList<TemporaryExposureKeyFormat.TemporaryExposureKey>();
-    for (var key : exposedKeys) {
-      var protoKey =
-          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
-              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
-              .setRollingPeriod(key.getRollingPeriod())
-              .setRollingStartIntervalNumber(key.getRollingStartNumber())
-              .setTransmissionRiskLevel(key.getTransmissionRiskLevel())
-              .build();
-      tekList.add(protoKey);
+    SigningOutputStream(OutputStream out, Signature signature) {
+      super(out);
+      this.signature = signature;
     }
 
-    file.addAllKeys(tekList);
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        signature.update((byte) b);
+      } catch (SignatureException e) {
+        throw new IOException(e);
+      }
+      out.write(b);
+    }
 
-    file.setRegion(gaenRegion)
-        .setBatchNum(1)
-        .setBatchSize(1)
-        .setStartTimestamp(batchReleaseTimeDuration.toSeconds())
-        .setEndTimestamp(batchReleaseTimeDuration.toSeconds() + releaseBucketDuration.toSeconds());
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        signature.update(b, off, len);
+      } catch (SignatureException e) {
+        throw new IOException(e);
+      }
+      out.write(b, off, len);
+    }
+  }
 
-    file.addSignatureInfos(tekSignature());
+  /** Computes the size and CRC of the data written to it, which is then discarded. */
+  private static class ChecksumOutputStream extends OutputStream {
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
 
-    return file.build();
-  }
+    @Override
+    public void write(int b) {
+      crc.update(b);
+      size++;
+    }
 
-  private TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport getProtoKeyV2(
-      List<GaenKey> exposedKeys, Duration batchReleaseTimeDuration) {
-    var file = TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.newBuilder();
+    @Override
+    public void write(byte[] b, int off, int len) {
+      crc.update(b, off, len);
+      size += len;
+    }
 
-    var tekList = new ArrayList<TemporaryExposureKeyFormatV2.TemporaryExposureKey>();
-    for (var key : exposedKeys) {
-      var protoKey =
-          TemporaryExposureKeyFormatV2.TemporaryExposureKey.newBuilder()
-              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
-              .setRollingPeriod(key.getRollingPeriod())
-              .setRollingStartIntervalNumber(key.getRollingStartNumber())
-              .setDaysSinceOnsetOfSymptoms(0) // hardcode to zero
-              .build();
-      tekList.add(protoKey);
+    /** Sets up the given entry to be stored uncompressed, with the data written so far. */
+    void applyTo(ZipEntry entry) {
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(size);
+      entry.setCompressedSize(size);
+      entry.setCrc(crc.getValue());
     }
+  }
 
-    file.addAllKeys(tekList);
+  /**
+   * Draws uniformly distributed indices from HMAC-SHA256 in counter mode: block i is HMAC(seed,
+   * i), and each block yields eight 32 bit values. Unlike a java.util.Random seeded with the HMAC,
+   * which keeps only 48 bits of it and reveals its state in its output, the indices are as
+   * unpredictable as the seed.
+   */
+  private static class HmacIndexStream {
+    private static final long RANGE = 1L << 32;
 
-    file.setRegion(gaenRegion)
-        .setBatchNum(1)
-        .setBatchSize(1)
-        .setStartTimestamp(batchReleaseTimeDuration.toSeconds())
-        .setEndTimestamp(batchReleaseTimeDuration.toSeconds() + releaseBucketDuration.toSeconds());
+    private final Mac mac;
+    private final ByteBuffer counter = ByteBuffer.allocate(Long.BYTES);
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private long blockNum = 0;
 
-    file.addSignatureInfos(tekSignatureV2());
+    HmacIndexStream(byte[] seed) throws NoSuchAlgorithmException, InvalidKeyException {
+      mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(seed, "HmacSHA256"));
+    }
+
+    /** Returns an index in [0, bound). Values above the largest multiple of bound are redrawn. */
+    int nextInt(int bound) {
+      long limit = RANGE - RANGE % bound;
+      long value;
+      do {
+        value = nextUnsignedInt();
+      } while (value >= limit);
+      return (int) (value % bound);
+    }
 
-    return file.build();
+    private long nextUnsignedInt() {
+      if (!block.hasRemaining()) {
+        counter.clear();
+        counter.putLong(blockNum++);
+        block = ByteBuffer.wrap(mac.doFinal(counter.array()));
+      }
+      return Integer.toUnsignedLong(block.getInt());
+    }
   }
 
   public class ProtoSignatureWrapper {
@@ -113,12 +113,13 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
 
   public void outputData(OutputStream httpOutput) throws IOException {
     this.setSignature();
-    httpOutput.write(this.output.toByteArray());
+    this.output.writeTo(httpOutput);
   }
 
   private void setSignature() throws IOException {
     switch (HttpStatus.valueOf(this.getStatus())) {
-        // only setsignature for 200 and 204
+        // only setsignature for 200 and 204. A 304 must not carry a signature of its empty
+        // body, the client keeps the one it received with the cached response.
       case OK:
       case NO_CONTENT:
         break;
@@ -193,6 +194,12 @@ public class SignatureResponseWrapper extends HttpServletResponseWrapper {
       this.output.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.digest.update(b, off, len);
+      this.output.write(b, off, len);
+    }
+
     @Override
     public void close() throws IOException {
       this.output.close();
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+
+/**
+ * Encodes a {@code TemporaryExposureKeyExport} (v1 or v2) directly into a stream, without building
+ * a protobuf message per key. Fields are written in field number order, as the generated code
+ * does, so the output is byte-identical to the message built with the generated builders.
+ *
+ * <p>The keys are read from a {@link CompactKeyList}, and their raw key data is written as is, so
+ * keys read from the database are never Base64 decoded. The {@code SignatureInfo} is encoded once,
+ * when the encoder is created.
+ */
+class TemporaryExposureKeyExportEncoder {
+
+  // TemporaryExposureKeyExport
+  private static final int EXPORT_START_TIMESTAMP = 1;
+  private static final int EXPORT_END_TIMESTAMP = 2;
+  private static final int EXPORT_REGION = 3;
+  private static final int EXPORT_BATCH_NUM = 4;
+  private static final int EXPORT_BATCH_SIZE = 5;
+  private static final int EXPORT_SIGNATURE_INFOS = 6;
+  private static final int EXPORT_KEYS = 7;
+
+  // TemporaryExposureKey
+  private static final int KEY_KEY_DATA = 1;
+  private static final int KEY_TRANSMISSION_RISK_LEVEL = 2;
+  private static final int KEY_ROLLING_START_INTERVAL_NUMBER = 3;
+  private static final int KEY_ROLLING_PERIOD = 4;
+  private static final int KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS = 6;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final boolean v2;
+  private final String region;
+  private final byte[] signatureInfo;
+  private final long releaseBucketSeconds;
+
+  private TemporaryExposureKeyExportEncoder(
+      boolean v2, String region, MessageLite signatureInfo, Duration releaseBucketDuration) {
+    this.v2 = v2;
+    this.region = region;
+    this.signatureInfo = signatureInfo.toByteArray();
+    this.releaseBucketSeconds = releaseBucketDuration.toSeconds();
+  }
+
+  /** Encoder for the v1 format, with the transmission risk level of each key. */
+  static TemporaryExposureKeyExportEncoder v1(
+      MessageLite signatureInfo, String region, Duration releaseBucketDuration) {
+    return new TemporaryExposureKeyExportEncoder(
+        false, region, signatureInfo, releaseBucketDuration);
+  }
+
+  /** Encoder for the v2 format, with the days since onset of symptoms hardcoded to zero. */
+  static TemporaryExposureKeyExportEncoder v2(
+      MessageLite signatureInfo, String region, Duration releaseBucketDuration) {
+    return new TemporaryExposureKeyExportEncoder(
+        true, region, signatureInfo, releaseBucketDuration);
+  }
+
+  /**
+   * Writes the export of the given keys to the stream. The stream is flushed, but not closed.
+   *
+   * @param keys the keys of the export, in the order they are written
+   * @param from position of the first key of the export
+   * @param to position after the last key of the export
+   * @param batchReleaseTime start of the export
+   * @param batchNum number of this export in its batch, starting at 1
+   * @param batchSize number of exports in the batch
+   * @param out the stream to write the export to
+   * @throws IOException
+   */
+  void writeTo(
+      CompactKeyList keys,
+      int from,
+      int to,
+      Duration batchReleaseTime,
+      int batchNum,
+      int batchSize,
+      OutputStream out)
+      throws IOException {
+    var coded = CodedOutputStream.newInstance(out, BUFFER_SIZE);
+    long startTimestamp = batchReleaseTime.toSeconds();
+    coded.writeFixed64(EXPORT_START_TIMESTAMP, startTimestamp);
+    coded.writeFixed64(EXPORT_END_TIMESTAMP, startTimestamp + releaseBucketSeconds);
+    coded.writeString(EXPORT_REGION, region);
+    coded.writeInt32(EXPORT_BATCH_NUM, batchNum);
+    coded.writeInt32(EXPORT_BATCH_SIZE, batchSize);
+    // an embedded message has the same wire format as a bytes field
+    coded.writeByteArray(EXPORT_SIGNATURE_INFOS, signatureInfo);
+
+    byte[] keyData = keys.getKeyDataArray();
+    for (int i = from; i < to; i++) {
+      int keyDataLength = keys.getKeyDataLength(i);
+      int rollingStartIntervalNumber = keys.getRollingStartNumber(i);
+      int rollingPeriod = keys.getRollingPeriod(i);
+      int size =
+          CodedOutputStream.computeTagSize(KEY_KEY_DATA)
+              + CodedOutputStream.computeUInt32SizeNoTag(keyDataLength)
+              + keyDataLength
+              + CodedOutputStream.computeInt32Size(
+                  KEY_ROLLING_START_INTERVAL_NUMBER, rollingStartIntervalNumber)
+              + CodedOutputStream.computeInt32Size(KEY_ROLLING_PERIOD, rollingPeriod);
+      int transmissionRiskLevel = 0;
+      if (v2) {
+        size += CodedOutputStream.computeSInt32Size(KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS, 0);
+      } else {
+        transmissionRiskLevel = keys.getTransmissionRiskLevel(i);
+        size +=
+            CodedOutputStream.computeInt32Size(KEY_TRANSMISSION_RISK_LEVEL, transmissionRiskLevel);
+      }
+
+      coded.writeTag(EXPORT_KEYS, 2); // length delimited
+      coded.writeUInt32NoTag(size);
+      coded.writeByteArray(KEY_KEY_DATA, keyData, keys.getKeyDataOffset(i), keyDataLength);
+      if (!v2) {
+        coded.writeInt32(KEY_TRANSMISSION_RISK_LEVEL, transmissionRiskLevel);
+      }
+      coded.writeInt32(KEY_ROLLING_START_INTERVAL_NUMBER, rollingStartIntervalNumber);
+      coded.writeInt32(KEY_ROLLING_PERIOD, rollingPeriod);
+      if (v2) {
+        coded.writeSInt32(KEY_DAYS_SINCE_ONSET_OF_SYMPTOMS, 0);
+      }
+    }
+    coded.flush();
+  }
+}
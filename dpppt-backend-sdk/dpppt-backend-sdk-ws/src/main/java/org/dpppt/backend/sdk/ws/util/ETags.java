@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.util;
+
+/** Evaluates the If-None-Match header of a request, see RFC 7232, section 3.2. */
+public class ETags {
+  private ETags() {}
+
+  /**
+   * Checks if the given If-None-Match header matches the given ETag, using the weak comparison
+   * required for If-None-Match.
+   *
+   * @param ifNoneMatch the If-None-Match header of the request, may be null
+   * @param etag the ETag of the response, strong or weak
+   * @return true if the request can be answered with a 304
+   */
+  public static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null || etag == null) {
+      return false;
+    }
+    String opaqueTag = stripWeak(etag);
+    // the ETags of this service contain no commas, see ProtoSignature#getETag(String)
+    for (String candidate : ifNoneMatch.split(",")) {
+      if (stripWeak(candidate.trim()).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String stripWeak(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.util;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Pads requests which change the database to the same duration, such that an outside attacker
+ * cannot infer anything from the response time, see {@link
+ * UTCInstant#normalizeDuration(Duration)}.
+ *
+ * <p>Instead of sleeping on a request thread, the response is completed by a single shared timer
+ * thread once the request time has passed. A pending response therefore does not hold a thread, and
+ * the number of concurrent uploads does not depend on the size of a thread pool.
+ *
+ * <p>The work of a padded request is already done, so a response which is not completed in time,
+ * e.g. because the timer thread is late, is returned by the timeout of its {@link DeferredResult}
+ * instead of failing the request.
+ */
+public class RequestTimePadding implements DisposableBean {
+  private static final Logger logger = LoggerFactory.getLogger(RequestTimePadding.class);
+
+  // the timeout of a padded response, after the request time
+  private static final Duration TIMEOUT_MARGIN = Duration.ofSeconds(1);
+
+  private final Duration requestTime;
+  private final ScheduledThreadPoolExecutor timer;
+
+  /** @param requestTime how long each request should take */
+  public RequestTimePadding(Duration requestTime) {
+    this.requestTime = requestTime;
+    this.timer =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              var thread = new Thread(runnable, "request-time-padding");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Returns a result which is completed with the given response once the request time has passed
+   * since the start of the request. If the request already took longer, it is completed right away.
+   *
+   * @param requestStart when the request started
+   * @param response the response to return
+   */
+  public <T> DeferredResult<T> pad(UTCInstant requestStart, T response) {
+    var result = new DeferredResult<T>(requestTime.plus(TIMEOUT_MARGIN).toMillis(), response);
+    var timeFillUp = requestTime.minus(UTCInstant.now().getDuration(requestStart));
+    if (timeFillUp.isNegative()) {
+      logger.error("Total time spent in endpoint is longer than requestTime");
+      result.setResult(response);
+      return result;
+    }
+    try {
+      timer.schedule(() -> complete(result, response), timeFillUp.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down, there is no point in padding anymore
+      result.setResult(response);
+    }
+    return result;
+  }
+
+  // a failing completion must not affect the other responses completed by the timer thread
+  private static <T> void complete(DeferredResult<T> result, T response) {
+    try {
+      result.setResult(response);
+    } catch (RuntimeException e) {
+      logger.error("Could not complete a padded response", e);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    timer.shutdownNow();
+  }
+}
@@ -44,12 +44,22 @@ public class ValidationUtils {
   public boolean isValidKeyFormat(String value) {
     try {
       byte[] key = Base64.getDecoder().decode(value);
-      return key.length == KEY_LENGTH_BYTES;
+      return isValidKeyFormat(key);
     } catch (Exception e) {
       return false;
     }
   }
 
+  /**
+   * Check the validity of a decoded key by checking the key length
+   *
+   * @param key the raw key, may be null
+   * @return if _key_ is a valid key
+   */
+  public boolean isValidKeyFormat(byte[] key) {
+    return key != null && key.length == KEY_LENGTH_BYTES;
+  }
+
   /**
    * Check if the given date is in the range of [now - retentionPeriod ... now], inclusive
    *
@@ -72,6 +82,17 @@ public class ValidationUtils {
     return timestamp.isBeforeDateOf(now.minus(retentionPeriod));
   }
 
+  /**
+   * Returns the start of the first day in the retention period, a timestamp is before retention if
+   * and only if it is before this instant, see {@link #isBeforeRetention(UTCInstant, UTCInstant)}
+   *
+   * @param now current timestamp
+   * @return midnight UTC of the day of now - retentionPeriod
+   */
+  public UTCInstant getRetentionStart(UTCInstant now) {
+    return now.minus(retentionPeriod).atStartOfDay();
+  }
+
   /**
    * Check if the given timestamp is a valid key date: Must be midnight UTC.
    *
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyForInterops;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.junit.Test;
+
+public class DailyKeyBundleCacheTest {
+
+  private static final Duration BUCKET = Duration.ofHours(2);
+  private static final Duration RETENTION = Duration.ofDays(14);
+
+  private final StubDataService dataService = new StubDataService();
+
+  private DailyKeyBundleCache cache() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    var signer =
+        new ProtoSignature(
+            "1.2.840.10045.4.3.2",
+            generator.generateKeyPair(),
+            "bundleId",
+            "packageName",
+            "v1",
+            "228",
+            "ch",
+            BUCKET);
+    return new DailyKeyBundleCache(dataService, signer, BUCKET, RETENTION);
+  }
+
+  @Test
+  public void testDayIsClosedOneBucketAfterItEnded() throws Exception {
+    var cache = cache();
+    var today = UTCInstant.today();
+    var yesterday = today.minusDays(1);
+
+    var beforeClose = today.plusHours(1);
+    assertFalse(cache.isClosedDay(yesterday, beforeClose));
+    var days = cache.getClosedDays(beforeClose);
+    assertEquals(12, days.size());
+    assertEquals(today.minusDays(13).getTimestamp(), days.get(0).getTimestamp());
+    assertEquals(yesterday.getTimestamp(), cache.getLastKeyBundleTag(beforeClose).getTimestamp());
+
+    var afterClose = today.plus(BUCKET);
+    assertTrue(cache.isClosedDay(yesterday, afterClose));
+    assertEquals(13, cache.getClosedDays(afterClose).size());
+    assertEquals(today.getTimestamp(), cache.getLastKeyBundleTag(afterClose).getTimestamp());
+
+    // the partial first day of the retention period is not listed
+    assertFalse(cache.isClosedDay(today.minusDays(14), afterClose));
+    assertFalse(cache.isClosedDay(today, today.plusDays(1).plus(BUCKET).minusSeconds(1)));
+  }
+
+  @Test
+  public void testDayBundlesAreBuiltOnce() throws Exception {
+    var cache = cache();
+    var day = UTCInstant.today().minusDays(3);
+    dataService.keys = List.of(key("testKey32Bytes01"), key("testKey32Bytes02"));
+
+    var first = cache.get(day, false);
+    var second = cache.get(day, false);
+    assertTrue(first.isPresent());
+    assertSame(first.get(), second.get());
+    assertEquals(1, dataService.queries.size());
+    assertEquals(day.getTimestamp(), dataService.queries.get(0).getTimestamp());
+
+    // international keys are a separate bundle
+    cache.get(day, true);
+    assertEquals(2, dataService.queries.size());
+
+    dataService.keys = List.of();
+    assertTrue(cache.get(day.minusDays(1), false).isEmpty());
+    assertTrue(cache.get(day.minusDays(1), false).isEmpty());
+    assertEquals(3, dataService.queries.size());
+  }
+
+  @Test
+  public void testPrebuildBuildsClosedDaysAndDropsExpiredOnes() throws Exception {
+    var cache = cache();
+    var now = UTCInstant.today().plusHours(3);
+
+    cache.prebuild(now);
+    // 13 closed days, with and without international keys
+    assertEquals(26, cache.size());
+    assertEquals(26, dataService.queries.size());
+
+    cache.prebuild(now.plusDays(1));
+    assertEquals(26, cache.size());
+    assertEquals(28, dataService.queries.size());
+  }
+
+  private static GaenKey key(String keyData) {
+    var key = new GaenKey();
+    key.setKeyData(Base64.getEncoder().encodeToString(keyData.getBytes()));
+    key.setRollingStartNumber((int) UTCInstant.today().minusDays(5).get10MinutesSince1970());
+    key.setRollingPeriod(144);
+    key.setTransmissionRiskLevel(0);
+    key.setFake(0);
+    return key;
+  }
+
+  /** Returns fixed keys and records the start of each queried range. */
+  private static class StubDataService implements GaenDataService {
+    private List<GaenKey> keys = List.of();
+    private final List<UTCInstant> queries = new ArrayList<>();
+
+    @Override
+    public List<GaenKey> getSortedExposedSince(
+        UTCInstant keysSince, UTCInstant now, boolean withFederationGateway) {
+      queries.add(keysSince);
+      // like the database, return a list which can be sorted
+      return new ArrayList<>(keys);
+    }
+
+    @Override
+    public void upsertExposeeFromInterops(
+        List<GaenKey> keys, UTCInstant now, String origin, String batchTag) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void upsertExposees(List<GaenKey> keys, UTCInstant now, boolean withFederationGateway) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void upsertExposeesDelayed(
+        List<GaenKey> keys,
+        UTCInstant delayedReceivedAt,
+        UTCInstant now,
+        boolean withFederationGateway) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<GaenKey> getSortedExposedForKeyDate(
+        UTCInstant keyDate,
+        UTCInstant publishedAfter,
+        UTCInstant publishedUntil,
+        UTCInstant now,
+        boolean withFederationGateway) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cleanDB(Duration retentionPeriod) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<GaenKeyForInterops> getSortedExposedSinceForInteropsFromOrigin(
+        UTCInstant keysSince, UTCInstant now) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<GaenKeyForInterops> getExposedForEfgsUpload(
+        UTCInstant releasedSince, UTCInstant releasedUntil) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setBatchTagForKeys(List<GaenKeyForInterops> uploadedKeys, String batchTag) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
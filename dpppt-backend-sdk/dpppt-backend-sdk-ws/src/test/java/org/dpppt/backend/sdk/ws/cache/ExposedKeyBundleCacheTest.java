@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.cache.ExposedKeyBundleCache.BundleKey;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+
+public class ExposedKeyBundleCacheTest {
+
+  private static final Duration BUCKET = Duration.ofHours(2);
+  private static final Duration WAIT_TIMEOUT = Duration.ofSeconds(10);
+
+  private final AtomicInteger builds = new AtomicInteger();
+
+  private ProtoSignatureWrapper bundle() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    var signer =
+        new ProtoSignature(
+            "1.2.840.10045.4.3.2",
+            generator.generateKeyPair(),
+            "bundleId",
+            "packageName",
+            "v1",
+            "228",
+            "ch",
+            BUCKET);
+    return signer.new ProtoSignatureWrapper(new byte[] {1}, new byte[] {2});
+  }
+
+  @Test
+  public void testBundleIsBuiltOncePerBucket() throws Exception {
+    var cache = new ExposedKeyBundleCache(10, WAIT_TIMEOUT);
+    var now = UTCInstant.today().plusHours(5);
+    var until = now.roundToBucketStart(BUCKET);
+    var key = BundleKey.since(now.minusDays(1), until, true);
+    var theBundle = bundle();
+
+    var first = cache.get(key, () -> build(Optional.of(theBundle)));
+    var second =
+        cache.get(BundleKey.since(now.minusDays(1), until, true), () -> build(Optional.empty()));
+
+    assertEquals(1, builds.get());
+    assertSame(first.get(), second.get());
+  }
+
+  @Test
+  public void testEmptyResultsAreCached() throws Exception {
+    var cache = new ExposedKeyBundleCache(10, WAIT_TIMEOUT);
+    var until = UTCInstant.today().plusHours(4);
+    var key = BundleKey.forKeyDate(UTCInstant.today().minusDays(2), until.minusHours(2), until);
+
+    var theBundle = bundle();
+
+    assertTrue(cache.get(key, () -> build(Optional.empty())).isEmpty());
+    assertTrue(cache.get(key, () -> build(Optional.of(theBundle))).isEmpty());
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testCacheIsClearedWhenBucketRollsOver() throws Exception {
+    var cache = new ExposedKeyBundleCache(10, WAIT_TIMEOUT);
+    var keyDate = UTCInstant.today().minusDays(2);
+    var until = UTCInstant.today().plusHours(4);
+
+    var publishedAfter = until.minusHours(2);
+    cache.get(BundleKey.forKeyDate(keyDate, publishedAfter, until), () -> build(Optional.empty()));
+    cache.get(BundleKey.forKeyDate(keyDate, keyDate, until), () -> build(Optional.empty()));
+    assertEquals(2, cache.size());
+
+    var nextUntil = until.plus(BUCKET);
+    cache.get(
+        BundleKey.forKeyDate(keyDate, publishedAfter, nextUntil), () -> build(Optional.empty()));
+    assertEquals(1, cache.size());
+    assertEquals(3, builds.get());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedBundleIsEvicted() throws Exception {
+    var cache = new ExposedKeyBundleCache(2, WAIT_TIMEOUT);
+    var until = UTCInstant.today().plusHours(4);
+    var first = BundleKey.since(until.minusHours(2), until, true);
+    var second = BundleKey.since(until.minusHours(4), until, true);
+    var third = BundleKey.since(until.minusHours(6), until, true);
+
+    cache.get(first, () -> build(Optional.empty()));
+    cache.get(second, () -> build(Optional.empty()));
+    cache.get(first, () -> build(Optional.empty()));
+    cache.get(third, () -> build(Optional.empty()));
+    assertEquals(2, cache.size());
+    assertEquals(3, builds.get());
+
+    // second was evicted, first is still cached
+    cache.get(first, () -> build(Optional.empty()));
+    assertEquals(3, builds.get());
+    cache.get(second, () -> build(Optional.empty()));
+    assertEquals(4, builds.get());
+  }
+
+  @Test
+  public void testDisabledCacheAlwaysBuilds() throws Exception {
+    var cache = new ExposedKeyBundleCache(0, WAIT_TIMEOUT);
+    var until = UTCInstant.today().plusHours(4);
+    var key = BundleKey.since(until.minusHours(2), until, false);
+
+    cache.get(key, () -> build(Optional.empty()));
+    cache.get(key, () -> build(Optional.empty()));
+    assertEquals(2, builds.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testConcurrentRequestsShareOneBuild() throws Exception {
+    var cache = new ExposedKeyBundleCache(0, WAIT_TIMEOUT);
+    var until = UTCInstant.today().plusHours(4);
+    var key = BundleKey.since(until.minusHours(2), until, false);
+    var theBundle = bundle();
+    var building = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+
+    var executor = Executors.newFixedThreadPool(5);
+    try {
+      var first =
+          executor.submit(
+              () ->
+                  cache.get(
+                      key,
+                      () -> {
+                        building.countDown();
+                        await(release);
+                        return build(Optional.of(theBundle));
+                      }));
+      building.await();
+      var others = new ArrayList<Future<Optional<ProtoSignatureWrapper>>>();
+      for (int i = 0; i < 4; i++) {
+        others.add(executor.submit(() -> cache.get(key, () -> build(Optional.empty()))));
+      }
+      // give the other requests time to join the build in flight
+      Thread.sleep(200);
+      release.countDown();
+
+      assertSame(theBundle, first.get().get());
+      for (var other : others) {
+        assertSame(theBundle, other.get().get());
+      }
+      assertEquals(1, builds.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailuresArePropagatedToWaitingRequests() throws Exception {
+    var cache = new ExposedKeyBundleCache(10, WAIT_TIMEOUT);
+    var until = UTCInstant.today().plusHours(4);
+    var key = BundleKey.since(until.minusHours(2), until, false);
+    var building = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var first =
+          executor.submit(
+              () ->
+                  cache.get(
+                      key,
+                      () -> {
+                        building.countDown();
+                        await(release);
+                        throw new IOException("database unavailable");
+                      }));
+      building.await();
+      var second = executor.submit(() -> cache.get(key, () -> build(Optional.empty())));
+      Thread.sleep(200);
+      release.countDown();
+
+      assertFailedWith(first, "database unavailable");
+      assertFailedWith(second, "database unavailable");
+      assertEquals(0, builds.get());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // failures are not cached
+    assertTrue(cache.get(key, () -> build(Optional.empty())).isEmpty());
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testWaitingRequestsTimeOut() throws Exception {
+    var cache = new ExposedKeyBundleCache(10, Duration.ofMillis(100));
+    var until = UTCInstant.today().plusHours(4);
+    var key = BundleKey.since(until.minusHours(2), until, false);
+    var building = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+
+    var executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(
+          () ->
+              cache.get(
+                  key,
+                  () -> {
+                    building.countDown();
+                    await(release);
+                    return build(Optional.empty());
+                  }));
+      building.await();
+      try {
+        cache.get(key, () -> build(Optional.empty()));
+        fail("expected a timeout");
+      } catch (IOException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+      }
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  private void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void assertFailedWith(Future<?> future, String message) throws Exception {
+    try {
+      future.get();
+      fail("expected a failure");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertEquals(message, e.getCause().getMessage());
+    }
+  }
+
+  private Optional<ProtoSignatureWrapper> build(Optional<ProtoSignatureWrapper> result) {
+    builds.incrementAndGet();
+    return result;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.dpppt.backend.sdk.data.gaen.GaenDataService;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Revalidates exposed key bundles with If-None-Match. The keys are shuffled deterministically and
+ * the bundle cache is disabled, such that a 304 proves that no keys were loaded for it.
+ */
+@SpringBootTest(
+    properties = {
+      "ws.app.jwt.publickey=classpath://generated_pub.pem",
+      "ws.exposedlist.releaseBucketDuration=7200000",
+      "ws.gaen.randomkeysenabled=false",
+      "ws.exposedlist.shuffle.secret=c2h1ZmZsZVNlY3JldEZvclRlc3Rz",
+      "ws.exposedlist.bundlecache.enabled=false"
+    })
+public class ExposedKeysETagTest extends BaseControllerTest {
+  @SpyBean GaenDataService dataServiceSpy;
+
+  @After
+  public void tearDown() {
+    testGaenDataService.clear();
+  }
+
+  @Test
+  public void testV2IfNoneMatchReturnsNotModified() throws Exception {
+    insertKeys();
+    MockHttpServletResponse response = getOk("/v2/gaen/exposed");
+    verifyZipResponse(response, 10, 144);
+    String etag = response.getHeader("ETag");
+    assertNotNull(etag);
+    assertFalse(etag.startsWith("W/"));
+
+    // the zip is deterministic, so the ETag is strong
+    MockHttpServletResponse again = getOk("/v2/gaen/exposed");
+    assertEquals(etag, again.getHeader("ETag"));
+    assertArrayEquals(response.getContentAsByteArray(), again.getContentAsByteArray());
+
+    clearInvocations(dataServiceSpy);
+    MockHttpServletResponse notModified = getNotModified("/v2/gaen/exposed", etag);
+    assertEquals(etag, notModified.getHeader("ETag"));
+    assertEquals(
+        response.getHeader("x-key-bundle-tag"), notModified.getHeader("x-key-bundle-tag"));
+    verify(dataServiceSpy, never()).mayHaveExposed(any(), any(), any(), anyBoolean(), any());
+    verify(dataServiceSpy, never()).streamExposedSince(any(), any(), anyBoolean(), any());
+
+    mockMvc
+        .perform(
+            get("/v2/gaen/exposed")
+                .header("User-Agent", androidUserAgent)
+                .header("If-None-Match", "\"someOtherBundle\""))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  public void testV1IfNoneMatchReturnsNotModified() throws Exception {
+    insertKeys();
+    String url = "/v1/gaen/exposed/" + UTCInstant.today().minusDays(3).getTimestamp();
+    MockHttpServletResponse response = getOk(url);
+    String etag = response.getHeader("ETag");
+    assertNotNull(etag);
+
+    clearInvocations(dataServiceSpy);
+    MockHttpServletResponse notModified = getNotModified(url, "\"other\", " + etag);
+    assertEquals(etag, notModified.getHeader("ETag"));
+    assertEquals(
+        response.getHeader("X-PUBLISHED-UNTIL"), notModified.getHeader("X-PUBLISHED-UNTIL"));
+    verify(dataServiceSpy, never()).mayHaveExposed(any(), any(), any(), anyBoolean(), any());
+    verify(dataServiceSpy, never())
+        .getSortedExposedForKeyDate(any(), any(), any(), any(), anyBoolean());
+  }
+
+  private void insertKeys() throws Exception {
+    var now = UTCInstant.now();
+    List<GaenKey> keys = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      var key = new GaenKey();
+      key.setRollingStartNumber((int) now.atStartOfDay().minusDays(3).get10MinutesSince1970());
+      var keyData = String.format("testKey32Bytes%02d", i);
+      key.setKeyData(Base64.getEncoder().encodeToString(keyData.getBytes("UTF-8")));
+      key.setRollingPeriod(144);
+      key.setFake(0);
+      key.setTransmissionRiskLevel(0);
+      keys.add(key);
+    }
+    testGaenDataService.upsertExposees(keys, now.minusDays(2));
+  }
+
+  private MockHttpServletResponse getOk(String url) throws Exception {
+    return mockMvc
+        .perform(get(url).header("User-Agent", androidUserAgent))
+        .andExpect(status().isOk())
+        .andReturn()
+        .getResponse();
+  }
+
+  private MockHttpServletResponse getNotModified(String url, String ifNoneMatch)
+      throws Exception {
+    MockHttpServletResponse response =
+        mockMvc
+            .perform(
+                get(url)
+                    .header("User-Agent", androidUserAgent)
+                    .header("If-None-Match", ifNoneMatch))
+            .andExpect(status().isNotModified())
+            .andReturn()
+            .getResponse();
+    assertEquals(0, response.getContentAsByteArray().length);
+    // the client keeps the signature it received with the bundle
+    assertNull(response.getHeader("Signature"));
+    return response;
+  }
+}
@@ -0,0 +1,131 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.data.gaen.ExposeeUpload;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class GroupCommitKeyWriterTest {
+
+  private final RecordingDataSource dataService = new RecordingDataSource();
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @Test
+  public void testConcurrentUploadsAreWrittenTogether() throws Exception {
+    var writer =
+        new GroupCommitKeyWriter(
+            dataService, 5, Duration.ofSeconds(5), Duration.ofSeconds(10), registry);
+    try {
+      var uploads = upload(writer, 5, -1);
+      for (var upload : uploads) {
+        upload.get(5, TimeUnit.SECONDS);
+      }
+      // the batch is written as soon as it is full, without waiting for maxDelay
+      assertEquals(1, dataService.batches.size());
+      assertEquals(5, dataService.batches.get(0).size());
+      var batchKeys = registry.get("gaen.upload.groupcommit.batch.keys").summary();
+      assertEquals(1, batchKeys.count());
+      assertEquals(5, batchKeys.totalAmount(), 0);
+      assertEquals(5, registry.get("gaen.upload.groupcommit.wait").timer().count());
+    } finally {
+      writer.destroy();
+    }
+  }
+
+  @Test
+  public void testFailingUploadDoesNotFailTheBatch() throws Exception {
+    var writer =
+        new GroupCommitKeyWriter(
+            dataService, 4, Duration.ofSeconds(5), Duration.ofSeconds(10), registry);
+    try {
+      var uploads = upload(writer, 4, 2);
+      for (int i = 0; i < uploads.size(); i++) {
+        try {
+          uploads.get(i).get(5, TimeUnit.SECONDS);
+          assertTrue(i != 2);
+        } catch (ExecutionException e) {
+          assertEquals(2, i);
+          assertEquals("FAILING_UPLOAD", e.getCause().getMessage());
+        }
+      }
+      // the failed batch, then each upload on its own
+      assertEquals(5, dataService.batches.size());
+      assertEquals(3, dataService.written.size());
+    } finally {
+      writer.destroy();
+    }
+  }
+
+  @Test
+  public void testUploadFailsAfterWriteTimeout() throws Exception {
+    var written = new CountDownLatch(1);
+    var blockingDataService =
+        new MockDataSource() {
+          @Override
+          public void upsertExposees(List<ExposeeUpload> uploads) {
+            try {
+              written.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        };
+    var writer =
+        new GroupCommitKeyWriter(
+            blockingDataService, 1, Duration.ZERO, Duration.ofMillis(100), registry);
+    try {
+      var uploads = upload(writer, 1, -1);
+      try {
+        uploads.get(0).get(5, TimeUnit.SECONDS);
+        fail("the upload must not wait for the blocked write");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    } finally {
+      written.countDown();
+      writer.destroy();
+    }
+  }
+
+  private static List<CompletableFuture<Void>> upload(
+      GroupCommitKeyWriter writer, int uploads, int failing) {
+    var results = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < uploads; i++) {
+      var keyData = i == failing ? "FAILING+FAILING+" : "POSTMAN+POSTMAN" + i;
+      var key = new GaenKey(keyData, (int) UTCInstant.now().get10MinutesSince1970(), 144);
+      results.add(
+          CompletableFuture.runAsync(
+              () -> writer.upsertExposees(List.of(key), UTCInstant.now(), false)));
+    }
+    return results;
+  }
+
+  /** Records the written batches, and fails every batch containing a failing key. */
+  private static class RecordingDataSource extends MockDataSource {
+    private final List<List<ExposeeUpload>> batches = new ArrayList<>();
+    private final List<ExposeeUpload> written = new ArrayList<>();
+
+    @Override
+    public synchronized void upsertExposees(List<ExposeeUpload> uploads) {
+      batches.add(uploads);
+      for (var upload : uploads) {
+        if (upload.getKeys().get(0).getKeyData().startsWith("FAILING")) {
+          throw new RuntimeException("FAILING_UPLOAD");
+        }
+      }
+      written.addAll(uploads);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.dpppt.backend.sdk.ws.insertmanager;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -9,10 +10,18 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.AppenderBase;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.semver.Version;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceRetentionPeriod;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.EnforceValidRollingPeriod;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.KeyInsertionFilter;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.RemoveFakeKeys;
+import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.RemoveKeysFromFuture;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionmodifier.OldAndroid0RPModifier;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.junit.Test;
@@ -117,6 +126,79 @@ public class InsertManagerTest {
     }
   }
 
+  @Test
+  public void fusedFiltersKeepTheSameKeysAsChainedFilters() throws Exception {
+    var validationUtils =
+        new ValidationUtils(16, Duration.ofDays(14), Duration.ofHours(2).toMillis());
+    var manager = new InsertManager(new MockDataSource(), validationUtils);
+    List<KeyInsertionFilter> filters =
+        List.of(
+            new RemoveKeysFromFuture(),
+            new EnforceRetentionPeriod(validationUtils),
+            new AssertKeyFormat(validationUtils),
+            new RemoveFakeKeys(),
+            new EnforceValidRollingPeriod());
+    filters.forEach(manager::addFilter);
+    var written = new ArrayList<GaenKey>();
+    manager.setKeyWriter((keys, now, withFederationGateway) -> written.addAll(keys));
+
+    var now = UTCInstant.now();
+    var today = (int) now.atStartOfDay().get10MinutesSince1970();
+    var keys =
+        List.of(
+            key(today, 144, 0),
+            key(today - 144, 144, 0),
+            key(today + 2 * 144, 144, 0),
+            key(today - 15 * 144, 144, 0),
+            key(today, 144, 1),
+            key(today + 2 * 144, 144, 1),
+            key(today, 0, 0));
+
+    List<GaenKey> chained = keys;
+    for (var filter : filters) {
+      chained = filter.filter(now, chained, OSType.ANDROID, null, null, null);
+    }
+    manager.insertIntoDatabase(keys, "org.dpppt.testrunner;1.0.0;1;Android;29", null, now, false);
+
+    assertEquals(2, written.size());
+    assertEquals(chained, written);
+    assertSame(keys.get(0), written.get(0));
+    assertSame(keys.get(1), written.get(1));
+    // a key is counted by the first filter which rejects it
+    assertEquals(2, manager.getRejectedKeys(filters.get(0)));
+    assertEquals(1, manager.getRejectedKeys(filters.get(1)));
+    assertEquals(0, manager.getRejectedKeys(filters.get(2)));
+    assertEquals(1, manager.getRejectedKeys(filters.get(3)));
+    assertEquals(1, manager.getRejectedKeys(filters.get(4)));
+  }
+
+  @Test
+  public void dateFiltersRejectTheSameKeysAsBefore() {
+    var validationUtils =
+        new ValidationUtils(16, Duration.ofDays(14), Duration.ofHours(2).toMillis());
+    var now = UTCInstant.now();
+    var future = new RemoveKeysFromFuture().keyPredicate(now, OSType.ANDROID, null, null, null);
+    var retention =
+        new EnforceRetentionPeriod(validationUtils)
+            .keyPredicate(now, OSType.ANDROID, null, null, null);
+    var today = (int) now.atStartOfDay().get10MinutesSince1970();
+    for (int rollingStartNumber = today - 16 * 144;
+        rollingStartNumber < today + 4 * 144;
+        rollingStartNumber++) {
+      var key = key(rollingStartNumber, 144, 0);
+      var rollingStart = UTCInstant.of(rollingStartNumber, GaenUnit.TenMinutes);
+      assertEquals(rollingStart.isBeforeDateOf(now.plusDays(2)), future.test(key));
+      assertEquals(!validationUtils.isBeforeRetention(rollingStart, now), retention.test(key));
+    }
+  }
+
+  private static GaenKey key(int rollingStartNumber, int rollingPeriod, int fake) {
+    var keyData = Base64.getEncoder().encodeToString("testKey16Bytes01".getBytes());
+    var key = new GaenKey(keyData, rollingStartNumber, rollingPeriod);
+    key.setFake(fake);
+    return key;
+  }
+
   class TestAppender extends AppenderBase<ILoggingEvent> {
     private final List<ILoggingEvent> log = new ArrayList<ILoggingEvent>();
 
@@ -57,7 +57,8 @@ public class MockDataSource implements GaenDataService {
   }
 
   @Override
-  public List<GaenKeyForInterops> getExposedForEfgsUpload() { // TODO Auto-generated method stub
+  public List<GaenKeyForInterops> getExposedForEfgsUpload(
+      UTCInstant releasedSince, UTCInstant releasedUntil) { // TODO Auto-generated method stub
     return null;
   } // TODO Auto-generated method stub
 
@@ -0,0 +1,198 @@
+package org.dpppt.backend.sdk.ws.insertmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.dpppt.backend.sdk.data.gaen.ExposeeUpload;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadKeyLogTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final RecordingDataSource dataService = new RecordingDataSource();
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @Test
+  public void testDrainWritesLoggedKeys() throws Exception {
+    var log = createLog();
+    log.upsertExposees(List.of(key(1), key(2)), UTCInstant.now(), true);
+    log.upsertExposees(List.of(key(3)), UTCInstant.now(), false);
+    assertTrue(dataService.batches.isEmpty());
+
+    log.drain();
+    assertEquals(1, dataService.batches.size());
+    var uploads = dataService.batches.get(0);
+    assertEquals(2, uploads.size());
+    assertEquals(key(2).getKeyData(), uploads.get(0).getKeys().get(1).getKeyData());
+    assertEquals(144, (int) uploads.get(0).getKeys().get(1).getRollingPeriod());
+    assertTrue(uploads.get(0).isWithFederationGateway());
+    assertEquals(false, uploads.get(1).isWithFederationGateway());
+
+    // only the empty current segment is left
+    assertEquals(1, folder.getRoot().list().length);
+    log.drain();
+    assertEquals(1, dataService.batches.size());
+    log.destroy();
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testSegmentsOfCrashedRunAreDrained() throws Exception {
+    var crashed = createLog();
+    crashed.upsertExposees(List.of(key(1)), UTCInstant.now(), true);
+    crashed.upsertExposees(List.of(key(2)), UTCInstant.now(), true);
+    // a record torn by the crash
+    var segment = folder.getRoot().listFiles()[0].toPath();
+    Files.write(segment, new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+    var log = createLog();
+    log.drain();
+    assertEquals(1, dataService.batches.size());
+    assertEquals(2, dataService.batches.get(0).size());
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testFailedDrainIsRetried() throws Exception {
+    var log = createLog();
+    log.upsertExposees(List.of(key(1)), UTCInstant.now(), true);
+    dataService.failing = true;
+    log.drain();
+    assertTrue(dataService.batches.isEmpty());
+
+    log.upsertExposees(List.of(key(2)), UTCInstant.now(), true);
+    dataService.failing = false;
+    log.drain();
+    // one transaction per segment, oldest first
+    assertEquals(2, dataService.batches.size());
+    assertEquals(key(1).getKeyData(), firstKey(dataService.batches.get(0)).getKeyData());
+    assertEquals(key(2).getKeyData(), firstKey(dataService.batches.get(1)).getKeyData());
+  }
+
+  @Test
+  public void testFailingUploadIsRejected() throws Exception {
+    var log = createLog();
+    log.upsertExposees(List.of(key(1)), UTCInstant.now(), true);
+    log.upsertExposees(List.of(key(2)), UTCInstant.now(), true);
+    log.upsertExposees(List.of(key(3)), UTCInstant.now(), true);
+    dataService.rejectedKey = key(2).getKeyData();
+    log.drain();
+    // the other uploads are written one by one
+    assertEquals(2, dataService.batches.size());
+    assertEquals(key(1).getKeyData(), firstKey(dataService.batches.get(0)).getKeyData());
+    assertEquals(key(3).getKeyData(), firstKey(dataService.batches.get(1)).getKeyData());
+    assertEquals(1, rejectedCount(), 0);
+
+    // the rejected upload is kept, and written again once it is renamed to a segment
+    var rejected = rejectedFiles();
+    assertEquals(1, rejected.length);
+    var name = rejected[0].getName();
+    Files.move(
+        rejected[0].toPath(), rejected[0].toPath().resolveSibling(name.replace(".rejected", "")));
+    dataService.rejectedKey = null;
+    log.drain();
+    assertEquals(3, dataService.batches.size());
+    assertEquals(key(2).getKeyData(), firstKey(dataService.batches.get(2)).getKeyData());
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testFailedSegmentIsRejectedOnceOthersAreWritten() throws Exception {
+    var log = createLog();
+    log.upsertExposees(List.of(key(1)), UTCInstant.now(), true);
+    dataService.rejectedKey = key(1).getKeyData();
+    log.drain();
+    // nothing could be written, the database may be unavailable
+    assertTrue(dataService.batches.isEmpty());
+    assertEquals(0, rejectedCount(), 0);
+    assertEquals(2, folder.getRoot().list().length);
+
+    log.upsertExposees(List.of(key(2)), UTCInstant.now(), true);
+    log.drain();
+    // the failed segment does not hold back the later one
+    assertEquals(1, dataService.batches.size());
+    assertEquals(key(2).getKeyData(), firstKey(dataService.batches.get(0)).getKeyData());
+    assertEquals(1, rejectedCount(), 0);
+    assertEquals(1, rejectedFiles().length);
+    assertEquals(2, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testUploadTimeIsClampedToOpenBucket() throws Exception {
+    var log = createLog();
+    var now = UTCInstant.now();
+    var lastBucket = now.roundToBucketStart(BUCKET_LENGTH).minus(BUCKET_LENGTH);
+    log.upsertExposees(List.of(key(1)), now, true);
+    log.upsertExposees(List.of(key(2)), lastBucket, true);
+    log.drain();
+
+    var uploads = dataService.batches.get(0);
+    // received in the open bucket, the upload keeps its time
+    assertEquals(now.getTimestamp(), uploads.get(0).getNow().getTimestamp());
+    // the bucket of the upload is published, it is moved to the open one
+    assertEquals(
+        now.roundToBucketStart(BUCKET_LENGTH).getTimestamp(),
+        uploads.get(1).getNow().getTimestamp());
+  }
+
+  private WriteAheadKeyLog createLog() throws IOException {
+    return new WriteAheadKeyLog(folder.getRoot().toPath(), dataService, BUCKET_LENGTH, registry);
+  }
+
+  private double rejectedCount() {
+    return registry.get("gaen.upload.writeaheadlog.rejected").functionCounter().count();
+  }
+
+  private File[] rejectedFiles() {
+    return folder.getRoot().listFiles((dir, name) -> name.endsWith(".rejected"));
+  }
+
+  private static GaenKey key(int i) {
+    return new GaenKey(
+        "POSTMAN+POSTMAN" + i, (int) UTCInstant.today().minusDays(1).get10MinutesSince1970(), 144);
+  }
+
+  private static GaenKey firstKey(List<ExposeeUpload> uploads) {
+    return uploads.get(0).getKeys().get(0);
+  }
+
+  /**
+   * Records the written batches, or fails while failing is set or if a batch contains the rejected
+   * key.
+   */
+  private static class RecordingDataSource extends MockDataSource {
+    private final List<List<ExposeeUpload>> batches = new ArrayList<>();
+    private boolean failing = false;
+    private String rejectedKey;
+
+    @Override
+    public void upsertExposees(List<ExposeeUpload> uploads) {
+      if (failing) {
+        throw new RuntimeException("UPSERT_FAILED");
+      }
+      for (var upload : uploads) {
+        for (var key : upload.getKeys()) {
+          if (key.getKeyData().equals(rejectedKey)) {
+            throw new RuntimeException("UPSERT_REJECTED");
+          }
+        }
+      }
+      batches.add(uploads);
+    }
+  }
+}
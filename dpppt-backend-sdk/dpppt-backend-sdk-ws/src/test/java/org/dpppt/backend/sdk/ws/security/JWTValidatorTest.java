@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+import org.dpppt.backend.sdk.data.RedeemDataService;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+public class JWTValidatorTest {
+
+  private final CountingRedeemDataService dataService = new CountingRedeemDataService();
+
+  @After
+  public void tearDown() {
+    UTCInstant.resetClock();
+  }
+
+  @Test
+  public void testReplayIsRejectedFromCache() {
+    var validator = new JWTValidator(dataService, Duration.ofMinutes(5), 10);
+    assertFalse(validator.validate(token("a")).hasErrors());
+    assertTrue(validator.validate(token("a")).hasErrors());
+    assertEquals(1, dataService.queries);
+
+    // without the cache, the database rejects the replay
+    var uncached = new JWTValidator(dataService, Duration.ofMinutes(5));
+    assertTrue(uncached.validate(token("a")).hasErrors());
+    assertEquals(2, dataService.queries);
+  }
+
+  @Test
+  public void testCacheIsBoundedAndExpires() {
+    var now = UTCInstant.now();
+    setNow(now);
+    var validator = new JWTValidator(dataService, Duration.ofMinutes(5), 2);
+    validator.validate(token("a"));
+    validator.validate(token("b"));
+    validator.validate(token("c"));
+    assertEquals(3, dataService.queries);
+
+    // a was evicted, the database still rejects it
+    assertTrue(validator.validate(token("a")).hasErrors());
+    assertEquals(4, dataService.queries);
+    assertTrue(validator.validate(token("c")).hasErrors());
+    assertEquals(4, dataService.queries);
+
+    setNow(now.plusMinutes(6));
+    assertTrue(validator.validate(token("c")).hasErrors());
+    assertEquals(5, dataService.queries);
+  }
+
+  private static Jwt token(String jti) {
+    var now = UTCInstant.now();
+    return Jwt.withTokenValue("token")
+        .header("alg", "none")
+        .claim(JWTValidator.UUID_CLAIM, jti)
+        .issuedAt(now.getInstant())
+        .expiresAt(now.plusMinutes(5).getInstant())
+        .build();
+  }
+
+  private static void setNow(UTCInstant now) {
+    UTCInstant.resetClock();
+    UTCInstant.setClock(Clock.fixed(now.getInstant(), ZoneOffset.UTC));
+  }
+
+  /** Keeps redeemed uuids in memory and counts the queries. */
+  private static class CountingRedeemDataService implements RedeemDataService {
+    private final Set<String> redeemed = new HashSet<>();
+    private int queries = 0;
+
+    @Override
+    public boolean checkAndInsertPublishUUID(String uuid) {
+      queries++;
+      return redeemed.add(uuid);
+    }
+
+    @Override
+    public void cleanDB(Duration retentionPeriod) {}
+  }
+}
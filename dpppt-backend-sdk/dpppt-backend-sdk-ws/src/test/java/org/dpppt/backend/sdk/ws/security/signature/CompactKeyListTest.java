@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.junit.Test;
+
+public class CompactKeyListTest {
+
+  @Test
+  public void testKeysAreStoredInOrder() {
+    var keys = keys(200);
+    var list = CompactKeyList.of(keys);
+    assertEquals(keys.size(), list.size());
+    assertSameOrder(keys, list);
+
+    var streamed = new CompactKeyList();
+    for (var key : keys) {
+      streamed.handle(key.getKeyDataBytes(), key.getRollingStartNumber(), key.getRollingPeriod());
+    }
+    assertSameOrder(keys, streamed);
+  }
+
+  @Test
+  public void testShuffleMatchesCollectionsShuffle() {
+    var keys = keys(200);
+    var list = CompactKeyList.of(keys);
+    list.shuffle(new Random(42));
+    Collections.shuffle(keys, new Random(42));
+    assertSameOrder(keys, list);
+  }
+
+  @Test
+  public void testSortIsStableAndUnsigned() {
+    var keys = keys(200);
+    // duplicate key data with different rolling start numbers, to check stability
+    for (int i = 0; i < 20; i++) {
+      var key = keys.get(i * 7);
+      keys.add(
+          i * 3,
+          new GaenKey(key.getKeyData(), key.getRollingStartNumber() + 1, key.getRollingPeriod()));
+    }
+    var list = CompactKeyList.of(keys);
+    list.sortByKeyData();
+    keys.sort((a, b) -> Arrays.compareUnsigned(a.getKeyDataBytes(), b.getKeyDataBytes()));
+    assertSameOrder(keys, list);
+  }
+
+  private static void assertSameOrder(List<GaenKey> keys, CompactKeyList list) {
+    for (int i = 0; i < keys.size(); i++) {
+      var key = keys.get(i);
+      int offset = list.getKeyDataOffset(i);
+      assertArrayEquals(
+          key.getKeyDataBytes(),
+          Arrays.copyOfRange(
+              list.getKeyDataArray(), offset, offset + list.getKeyDataLength(i)));
+      assertEquals((int) key.getRollingStartNumber(), list.getRollingStartNumber(i));
+      assertEquals((int) key.getRollingPeriod(), list.getRollingPeriod(i));
+    }
+  }
+
+  private static List<GaenKey> keys(int count) {
+    var random = new Random(7);
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < count; i++) {
+      // some keys of other lengths, and bytes above 0x7f
+      var keyData = new byte[i % 10 == 0 ? 15 : 16];
+      random.nextBytes(keyData);
+      keys.add(new GaenKey(null, 2652768 + i, 144));
+      keys.get(i).setKeyDataBytes(keyData);
+    }
+    return keys;
+  }
+}
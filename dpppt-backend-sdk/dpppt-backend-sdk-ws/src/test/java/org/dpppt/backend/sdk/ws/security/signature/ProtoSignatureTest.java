@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class ProtoSignatureTest {
+
+  private static final String TAG = "v2[publishedAfter=1, publishedUntil=2]";
+
+  private ProtoSignature signer(KeyPair keyPair, byte[] shuffleSecret) {
+    return signer(keyPair, shuffleSecret, false);
+  }
+
+  private ProtoSignature signer(KeyPair keyPair, byte[] shuffleSecret, boolean storeZipEntries) {
+    return new ProtoSignature(
+        "1.2.840.10045.4.3.2",
+        keyPair,
+        "bundleId",
+        "packageName",
+        "v1",
+        "228",
+        "ch",
+        Duration.ofHours(2),
+        shuffleSecret,
+        storeZipEntries);
+  }
+
+  private List<GaenKey> keys(int count) {
+    var rollingStart = (int) UTCInstant.today().minusDays(1).get10MinutesSince1970();
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < count; i++) {
+      var keyData = String.format("testKey32Bytes%02d", i).getBytes();
+      keys.add(new GaenKey(Base64.getEncoder().encodeToString(keyData), rollingStart, 144));
+    }
+    return keys;
+  }
+
+  @Test
+  public void testDeterministicPayloadIsByteIdentical() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var signer = signer(keyPair, "secret".getBytes());
+
+    var keys = keys(50);
+    var reversed = keys(50);
+    Collections.reverse(reversed);
+
+    var first = signer.getPayloadV2(keys, TAG);
+    var second = signer.getPayloadV2(reversed, TAG);
+    assertArrayEquals(first.getZip(), second.getZip());
+    assertArrayEquals(first.getHash(), second.getHash());
+
+    var firstV1 = signer.getPayload(keys(50), TAG);
+    var secondV1 = signer.getPayload(keys(50), TAG);
+    assertArrayEquals(firstV1.getZip(), secondV1.getZip());
+  }
+
+  @Test
+  public void testDeterministicShuffleDependsOnSecretAndTag() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var signer = signer(keyPair, "secret".getBytes());
+    var otherSigner = signer(keyPair, "other secret".getBytes());
+
+    var keys = keys(50);
+    signer.getPayloadV2(keys, TAG);
+    var otherTag = keys(50);
+    signer.getPayloadV2(otherTag, TAG + "x");
+    var otherSecret = keys(50);
+    otherSigner.getPayloadV2(otherSecret, TAG);
+
+    assertFalse(keyData(keys).equals(keyData(otherTag)));
+    assertFalse(keyData(keys).equals(keyData(otherSecret)));
+    // the order of arrival is not kept
+    assertFalse(keyData(keys).equals(keyData(keys(50))));
+    assertEquals(50, keys.size());
+  }
+
+  @Test
+  public void testRandomPayloadIsStillSupported() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var signer = signer(keyPair, null);
+
+    var first = signer.getPayloadV2(keys(50), TAG);
+    var second = signer.getPayloadV2(keys(50), TAG);
+    assertFalse(Arrays.equals(first.getZip(), second.getZip()));
+  }
+
+  @Test
+  public void testETagDependsOnBundleAndConfig() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var signer = signer(keyPair, "secret".getBytes());
+
+    var etag = signer.getETag(TAG);
+    assertTrue(etag.startsWith("\""));
+    assertEquals(etag, signer(keyPair, "secret".getBytes()).getETag(TAG));
+    assertFalse(etag.equals(signer.getETag(TAG + "x")));
+    assertFalse(etag.equals(signer(keyPair, "other".getBytes()).getETag(TAG)));
+    assertFalse(etag.equals(signer(keyPair, "secret".getBytes(), true).getETag(TAG)));
+    var otherKeyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    assertFalse(etag.equals(signer(otherKeyPair, "secret".getBytes()).getETag(TAG)));
+    // random shuffling gives the same keys in other bytes
+    assertTrue(signer(keyPair, null).getETag(TAG).startsWith("W/\""));
+  }
+
+  @Test
+  public void testPayloadIsValid() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var payload = signer(keyPair, "secret".getBytes()).getPayloadV2(keys(50), TAG);
+    var hash = payload.getHash();
+
+    var entries = unzip(payload.getZip());
+    var exportBin = entries.get("export.bin");
+    var digest = MessageDigest.getInstance("SHA256");
+    digest.update(exportBin);
+    digest.update(keyPair.getPublic().getEncoded());
+    assertArrayEquals(digest.digest(), hash);
+
+    var signatureList =
+        TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(entries.get("export.sig"));
+    var signature = Signature.getInstance("SHA256withECDSA");
+    signature.initVerify(keyPair.getPublic());
+    signature.update(exportBin);
+    assertTrue(signature.verify(signatureList.getSignatures(0).getSignature().toByteArray()));
+  }
+
+  @Test
+  public void testStoredPayloadIsValid() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var deflated = signer(keyPair, "secret".getBytes()).getPayloadV2(keys(50), TAG);
+    var stored = signer(keyPair, "secret".getBytes(), true).getPayloadV2(keys(50), TAG);
+
+    // same content and hash, only the zip container differs
+    assertArrayEquals(deflated.getHash(), stored.getHash());
+    var storedEntries = unzip(stored.getZip());
+    var exportBin = storedEntries.get("export.bin");
+    assertArrayEquals(unzip(deflated.getZip()).get("export.bin"), exportBin);
+
+    var signatureList =
+        TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(storedEntries.get("export.sig"));
+    var signature = Signature.getInstance("SHA256withECDSA");
+    signature.initVerify(keyPair.getPublic());
+    signature.update(exportBin);
+    assertTrue(signature.verify(signatureList.getSignatures(0).getSignature().toByteArray()));
+
+    try (var zipIn = new ZipInputStream(new ByteArrayInputStream(stored.getZip()))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        assertEquals(ZipEntry.STORED, entry.getMethod());
+      }
+    }
+  }
+
+  @Test
+  public void testOversizedPayloadIsSplitIntoBatches() throws Exception {
+    var keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var signer =
+          new ProtoSignature(
+              "1.2.840.10045.4.3.2",
+              keyPair,
+              "bundleId",
+              "packageName",
+              "v1",
+              "228",
+              "ch",
+              Duration.ofHours(2),
+              "secret".getBytes(),
+              false,
+              20,
+              executor);
+      var keys = keys(50);
+      var payload = signer.getPayloadV2(CompactKeyList.of(keys), TAG, true);
+
+      var batches = unzip(payload.getZip());
+      assertEquals(3, batches.size());
+      var batchedKeys = new ArrayList<String>();
+      for (int batchNum = 1; batchNum <= 3; batchNum++) {
+        var entries = unzip(batches.get("export_" + batchNum + ".zip"));
+        var exportBin = entries.get("export.bin");
+        var export =
+            TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(
+                Arrays.copyOfRange(exportBin, 16, exportBin.length));
+        assertEquals(batchNum, export.getBatchNum());
+        assertEquals(3, export.getBatchSize());
+        assertEquals(batchNum < 3 ? 20 : 10, export.getKeysCount());
+        for (var key : export.getKeysList()) {
+          batchedKeys.add(Base64.getEncoder().encodeToString(key.getKeyData().toByteArray()));
+        }
+
+        var signatureList =
+            TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(entries.get("export.sig"));
+        assertEquals(batchNum, signatureList.getSignatures(0).getBatchNum());
+        assertEquals(3, signatureList.getSignatures(0).getBatchSize());
+        var signature = Signature.getInstance("SHA256withECDSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update(exportBin);
+        assertTrue(signature.verify(signatureList.getSignatures(0).getSignature().toByteArray()));
+      }
+
+      // every key is in exactly one batch, and batches are deterministic as well
+      Collections.sort(batchedKeys);
+      var expectedKeys = keyData(keys);
+      Collections.sort(expectedKeys);
+      assertEquals(expectedKeys, batchedKeys);
+      assertArrayEquals(
+          payload.getZip(), signer.getPayloadV2(CompactKeyList.of(keys(50)), TAG, true).getZip());
+
+      // the hash of the batch is the digest of the hashes of its exports
+      var digest = MessageDigest.getInstance("SHA256");
+      for (int batchNum = 1; batchNum <= 3; batchNum++) {
+        var exportDigest = MessageDigest.getInstance("SHA256");
+        exportDigest.update(unzip(batches.get("export_" + batchNum + ".zip")).get("export.bin"));
+        exportDigest.update(keyPair.getPublic().getEncoded());
+        digest.update(exportDigest.digest());
+      }
+      assertArrayEquals(digest.digest(), payload.getHash());
+
+      // clients which did not ask for batches get a single export
+      var single = unzip(signer.getPayloadV2(keys(50), TAG).getZip());
+      assertEquals(2, single.size());
+      var exportBin = single.get("export.bin");
+      var export =
+          TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(
+              Arrays.copyOfRange(exportBin, 16, exportBin.length));
+      assertEquals(1, export.getBatchNum());
+      assertEquals(1, export.getBatchSize());
+      assertEquals(50, export.getKeysCount());
+
+      // exports the executor rejects are signed by the calling thread
+      var rejectingSigner =
+          new ProtoSignature(
+              "1.2.840.10045.4.3.2",
+              keyPair,
+              "bundleId",
+              "packageName",
+              "v1",
+              "228",
+              "ch",
+              Duration.ofHours(2),
+              "secret".getBytes(),
+              false,
+              20,
+              task -> {
+                throw new RejectedExecutionException();
+              });
+      assertArrayEquals(
+          payload.getHash(),
+          rejectingSigner.getPayloadV2(CompactKeyList.of(keys(50)), TAG, true).getHash());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private Map<String, byte[]> unzip(byte[] zip) throws Exception {
+    var entries = new HashMap<String, byte[]>();
+    try (var zipIn = new ZipInputStream(new ByteArrayInputStream(zip))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        entries.put(entry.getName(), zipIn.readAllBytes());
+      }
+    }
+    return entries;
+  }
+
+  private List<String> keyData(List<GaenKey> keys) {
+    var result = new ArrayList<String>();
+    for (var key : keys) {
+      result.add(key.getKeyData());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 Ubique Innovation AG <https://www.ubique.ch>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class TemporaryExposureKeyExportEncoderTest {
+
+  private static final Duration RELEASE_BUCKET_DURATION = Duration.ofHours(2);
+
+  @Test
+  public void testV1IsByteIdenticalToBuilder() throws Exception {
+    var signatureInfo =
+        TemporaryExposureKeyFormat.SignatureInfo.newBuilder()
+            .setAppBundleId("bundleId")
+            .setVerificationKeyVersion("v1")
+            .setVerificationKeyId("228")
+            .setSignatureAlgorithm("1.2.840.10045.4.3.2")
+            .build();
+    var keys = keys(1000);
+    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
+
+    var export = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
+    for (var key : keys) {
+      export.addKeys(
+          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
+              .setRollingPeriod(key.getRollingPeriod())
+              .setRollingStartIntervalNumber(key.getRollingStartNumber())
+              .setTransmissionRiskLevel(key.getTransmissionRiskLevel()));
+    }
+    export
+        .setRegion("ch")
+        .setBatchNum(1)
+        .setBatchSize(1)
+        .setStartTimestamp(keyDate.toSeconds())
+        .setEndTimestamp(keyDate.toSeconds() + RELEASE_BUCKET_DURATION.toSeconds())
+        .addSignatureInfos(signatureInfo);
+
+    var out = new ByteArrayOutputStream();
+    TemporaryExposureKeyExportEncoder.v1(signatureInfo, "ch", RELEASE_BUCKET_DURATION)
+        .writeTo(CompactKeyList.of(keys), 0, keys.size(), keyDate, 1, 1, out);
+    assertArrayEquals(export.build().toByteArray(), out.toByteArray());
+  }
+
+  @Test
+  public void testV2IsByteIdenticalToBuilder() throws Exception {
+    var signatureInfo =
+        TemporaryExposureKeyFormatV2.SignatureInfo.newBuilder()
+            .setVerificationKeyVersion("v1")
+            .setVerificationKeyId("228")
+            .setSignatureAlgorithm("1.2.840.10045.4.3.2")
+            .build();
+    var keys = keys(1000);
+    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
+
+    var export = TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.newBuilder();
+    for (var key : keys) {
+      export.addKeys(
+          TemporaryExposureKeyFormatV2.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
+              .setRollingPeriod(key.getRollingPeriod())
+              .setRollingStartIntervalNumber(key.getRollingStartNumber())
+              .setDaysSinceOnsetOfSymptoms(0));
+    }
+    export
+        .setRegion("ch")
+        .setBatchNum(2)
+        .setBatchSize(3)
+        .setStartTimestamp(keyDate.toSeconds())
+        .setEndTimestamp(keyDate.toSeconds() + RELEASE_BUCKET_DURATION.toSeconds())
+        .addSignatureInfos(signatureInfo);
+
+    var out = new ByteArrayOutputStream();
+    TemporaryExposureKeyExportEncoder.v2(signatureInfo, "ch", RELEASE_BUCKET_DURATION)
+        .writeTo(CompactKeyList.of(keys), 0, keys.size(), keyDate, 2, 3, out);
+    assertArrayEquals(export.build().toByteArray(), out.toByteArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidKeyDataIsRejected() throws Exception {
+    var signatureInfo = TemporaryExposureKeyFormatV2.SignatureInfo.newBuilder().build();
+    var key = new GaenKey("not*base64*key==", 2652768, 144);
+    var keys = CompactKeyList.of(List.of(key));
+    TemporaryExposureKeyExportEncoder.v2(signatureInfo, "ch", RELEASE_BUCKET_DURATION)
+        .writeTo(keys, 0, 1, Duration.ZERO, 1, 1, new ByteArrayOutputStream());
+  }
+
+  private List<GaenKey> keys(int count) {
+    var random = new Random(42);
+    var rollingStart = (int) UTCInstant.today().minusDays(1).get10MinutesSince1970();
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < count; i++) {
+      // mostly 16 bytes, as well as a few other lengths to cover padding
+      var keyData = new byte[i % 10 == 0 ? i % 7 + 14 : 16];
+      random.nextBytes(keyData);
+      var key =
+          new GaenKey(
+              Base64.getEncoder().encodeToString(keyData),
+              rollingStart + random.nextInt(144),
+              1 + random.nextInt(144));
+      key.setTransmissionRiskLevel(random.nextInt(9) - 1);
+      keys.add(key);
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,80 @@
+package org.dpppt.backend.sdk.ws.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class RequestTimePaddingTest {
+  @Test
+  public void testResultIsSetAfterRequestTime() throws Exception {
+    var padding = new RequestTimePadding(Duration.ofMillis(300));
+    try {
+      var start = UTCInstant.now();
+      var done = new CountDownLatch(1);
+      var result = padding.pad(start, "OK");
+      result.setResultHandler(value -> done.countDown());
+      assertFalse(result.hasResult());
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals("OK", result.getResult());
+      assertTrue(UTCInstant.now().getDuration(start).toMillis() >= 300);
+    } finally {
+      padding.destroy();
+    }
+  }
+
+  @Test
+  public void testManyPendingResultsShareTheTimer() throws Exception {
+    var padding = new RequestTimePadding(Duration.ofMillis(200));
+    try {
+      var start = UTCInstant.now();
+      var done = new CountDownLatch(1000);
+      for (int i = 0; i < 1000; i++) {
+        var result = padding.pad(start, i);
+        result.setResultHandler(value -> done.countDown());
+      }
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    } finally {
+      padding.destroy();
+    }
+  }
+
+  @Test
+  public void testFailingCompletionDoesNotStopTheTimer() throws Exception {
+    var padding = new RequestTimePadding(Duration.ofMillis(100));
+    try {
+      var start = UTCInstant.now();
+      var failing = padding.pad(start, "FAILING");
+      failing.setResultHandler(
+          value -> {
+            throw new IllegalStateException("response already committed");
+          });
+      var done = new CountDownLatch(1);
+      var result = padding.pad(start, "OK");
+      result.setResultHandler(value -> done.countDown());
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals("OK", result.getResult());
+    } finally {
+      padding.destroy();
+    }
+  }
+
+  @Test
+  public void testExpiredRequestIsCompletedImmediately() throws Exception {
+    var padding = new RequestTimePadding(Duration.ofMillis(300));
+    try {
+      var result = padding.pad(UTCInstant.now().minusSeconds(1), "OK");
+      assertTrue(result.hasResult());
+      assertEquals("OK", result.getResult());
+    } finally {
+      padding.destroy();
+    }
+  }
+}
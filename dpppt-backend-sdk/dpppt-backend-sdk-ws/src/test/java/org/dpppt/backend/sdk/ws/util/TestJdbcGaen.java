@@ -10,6 +10,7 @@
 package org.dpppt.backend.sdk.ws.util;
 
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -17,6 +18,7 @@ import java.util.List;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.data.gaen.GaenKeyRowMapper;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
@@ -24,6 +26,8 @@ import org.springframework.transaction.annotation.Transactional;
 
 public class TestJdbcGaen {
   private static final String PGSQL = "pgsql";
+  // the default time skew of the web service
+  private static final Duration TIME_SKEW = Duration.ofHours(2);
   private final String dbType;
   private final NamedParameterJdbcTemplate jt;
 
@@ -44,7 +48,8 @@ public class TestJdbcGaen {
     params.addValue("publishedUntil", new Date(publishedUntil));
 
     String sql =
-        "select pk_exposed_id, key, rolling_start_number, rolling_period"
+        "select "
+            + GaenKeyRowMapper.COLUMNS
             + " from t_gaen_exposed where rolling_start_number >= :rollingPeriodStartNumberStart"
             + " and rolling_start_number < :rollingPeriodStartNumberEnd and received_at <"
             + " :publishedUntil";
@@ -65,28 +70,36 @@ public class TestJdbcGaen {
     if (dbType.equals(PGSQL)) {
       sql =
           "insert into t_gaen_exposed (key, rolling_start_number, rolling_period, received_at,"
-              + " origin, share_with_federation_gateway) values (:key, :rolling_start_number,"
-              + " :rolling_period, :received_at, :origin, :share_with_federation_gateway) on"
-              + " conflict on constraint gaen_exposed_key do nothing";
+              + " release_at, origin, share_with_federation_gateway) values (:key,"
+              + " :rolling_start_number, :rolling_period, :received_at, :release_at, :origin,"
+              + " :share_with_federation_gateway) on conflict on constraint gaen_exposed_key do"
+              + " nothing";
     } else {
       sql =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
-              + " :rolling_start_number, :rolling_period, :received_at, cast(:origin as"
-              + " varchar(10)), :share_with_federation_gateway)) as vals(key,"
-              + " rolling_start_number, rolling_period, received_at, origin,"
+          "merge into t_gaen_exposed using (values(cast(:key as varbinary(16)),"
+              + " :rolling_start_number, :rolling_period, :received_at, :release_at, cast(:origin"
+              + " as varchar(10)), :share_with_federation_gateway)) as vals(key,"
+              + " rolling_start_number, rolling_period, received_at, release_at, origin,"
               + " share_with_federation_gateway) on t_gaen_exposed.key = vals.key when not matched"
-              + " then insert (key, rolling_start_number, rolling_period, received_at, origin,"
-              + " share_with_federation_gateway) values (vals.key, vals.rolling_start_number,"
-              + " vals.rolling_period, vals.received_at, vals.origin,"
-              + " vals.share_with_federation_gateway)";
+              + " then insert (key, rolling_start_number, rolling_period, received_at, release_at,"
+              + " origin, share_with_federation_gateway) values (vals.key,"
+              + " vals.rolling_start_number, vals.rolling_period, vals.received_at,"
+              + " vals.release_at, vals.origin, vals.share_with_federation_gateway)";
     }
     var parameterList = new ArrayList<MapSqlParameterSource>();
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyDataBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("received_at", new Timestamp(receivedAt.getTimestamp()));
+      var expiry =
+          UTCInstant.of(
+                  gaenKey.getRollingStartNumber() + gaenKey.getRollingPeriod(),
+                  GaenUnit.TenMinutes)
+              .plus(TIME_SKEW);
+      var releaseAt = expiry.isAfterEpochMillisOf(receivedAt) ? expiry : receivedAt;
+      params.addValue("release_at", new Timestamp(releaseAt.getTimestamp()));
       params.addValue("origin", "CH");
       params.addValue("share_with_federation_gateway", false);
       parameterList.add(params);